@@ -0,0 +1,57 @@
+/**
+ * Copyright 2012-2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.rasc.embeddedtc.benchmark;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+final class BenchmarkSupport {
+
+	static final int PORT = 18765;
+
+	private BenchmarkSupport() {
+		// utility class
+	}
+
+	/**
+	 * Sends a GET request and reads the whole response, so the connection is returned
+	 * to the keep-alive cache of HttpURLConnection
+	 *
+	 * @return number of bytes read
+	 */
+	static int get(URL url, byte[] buffer) throws IOException {
+		HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+		if (connection.getResponseCode() != 200) {
+			throw new IOException("Unexpected status " + connection.getResponseCode()
+					+ " for " + url);
+		}
+		InputStream in = connection.getInputStream();
+		try {
+			int total = 0;
+			int read;
+			while ((read = in.read(buffer)) != -1) {
+				total += read;
+			}
+			return total;
+		}
+		finally {
+			in.close();
+		}
+	}
+
+}
@@ -0,0 +1,97 @@
+/**
+ * Copyright 2012-2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.rasc.embeddedtc.benchmark;
+
+import java.io.IOException;
+import java.net.URL;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ch.rasc.embeddedtc.ConnectorProtocol;
+import ch.rasc.embeddedtc.EmbeddedTomcat;
+
+/**
+ * Measures throughput and latency of requests over the loopback interface against the
+ * sample web application in src/main/webapp and the {@link HelloServlet}. Has to run
+ * in the benchmarks directory, because the embedded Tomcat resolves the web
+ * application and ./target/classes relative to the working directory.
+ *
+ * @author Ralph Schaer
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 5, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Threads(4)
+public class RequestBenchmark {
+
+	@Param({ "BIO", "NIO" })
+	public ConnectorProtocol protocol;
+
+	private EmbeddedTomcat embeddedTomcat;
+
+	private URL staticUrl;
+
+	private URL servletUrl;
+
+	@State(Scope.Thread)
+	public static class ReadBuffer {
+		final byte[] bytes = new byte[8192];
+	}
+
+	@Setup
+	public void startTomcat() throws IOException {
+		this.embeddedTomcat = new EmbeddedTomcat("/bench", BenchmarkSupport.PORT);
+		this.embeddedTomcat.setSilent(true).dontAddShutdownHook()
+				.setProtocol(this.protocol);
+		this.embeddedTomcat.start();
+
+		String base = "http://localhost:" + BenchmarkSupport.PORT + "/bench";
+		this.staticUrl = new URL(base + "/index.html");
+		this.servletUrl = new URL(base + "/hello");
+	}
+
+	@TearDown
+	public void stopTomcat() {
+		this.embeddedTomcat.stop();
+	}
+
+	@Benchmark
+	public int staticFile(ReadBuffer buffer) throws IOException {
+		return BenchmarkSupport.get(this.staticUrl, buffer.bytes);
+	}
+
+	@Benchmark
+	public int servlet(ReadBuffer buffer) throws IOException {
+		return BenchmarkSupport.get(this.servletUrl, buffer.bytes);
+	}
+
+}
@@ -0,0 +1,96 @@
+/**
+ * Copyright 2012-2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.rasc.embeddedtc.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ch.rasc.embeddedtc.ConnectorProtocol;
+import ch.rasc.embeddedtc.EmbeddedTomcat;
+
+/**
+ * Measures the cost of starting and stopping an embedded Tomcat with different
+ * configurations.
+ * <p>
+ * <code>coldStartStop</code> measures the first start in a new JVM (no class loading
+ * and JIT warmup), <code>warmStartStop</code> the average of repeated starts in the
+ * same JVM.
+ *
+ * @author Ralph Schaer
+ */
+@State(Scope.Benchmark)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class StartStopBenchmark {
+
+	@Param({ "BIO", "NIO" })
+	public ConnectorProtocol protocol;
+
+	@Param({ "false", "true" })
+	public boolean naming;
+
+	@Param({ "false", "true" })
+	public boolean defaultListeners;
+
+	@Param({ "false", "true" })
+	public boolean compression;
+
+	@Benchmark
+	@BenchmarkMode(Mode.SingleShotTime)
+	@Fork(10)
+	@Warmup(iterations = 0)
+	@Measurement(iterations = 1)
+	public EmbeddedTomcat coldStartStop() {
+		return startStop();
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.AverageTime)
+	@Fork(1)
+	@Warmup(iterations = 5, time = 5)
+	@Measurement(iterations = 5, time = 5)
+	public EmbeddedTomcat warmStartStop() {
+		return startStop();
+	}
+
+	private EmbeddedTomcat startStop() {
+		EmbeddedTomcat embeddedTomcat = new EmbeddedTomcat("/bench",
+				BenchmarkSupport.PORT);
+		embeddedTomcat.setSilent(true).dontAddShutdownHook().setProtocol(this.protocol);
+		if (this.naming) {
+			embeddedTomcat.enableNaming();
+		}
+		if (this.defaultListeners) {
+			embeddedTomcat.addDefaultListeners();
+		}
+		if (this.compression) {
+			embeddedTomcat.enableCompression(1024, "text/html,text/plain");
+		}
+		embeddedTomcat.start();
+		embeddedTomcat.stop();
+		return embeddedTomcat;
+	}
+
+}
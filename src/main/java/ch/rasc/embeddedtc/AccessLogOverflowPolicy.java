@@ -0,0 +1,39 @@
+/**
+ * Copyright 2012-2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.rasc.embeddedtc;
+
+/**
+ * Decides what an {@link AsyncAccessLogValve} does with a record when its ring buffer
+ * is full because the writer thread does not keep up.
+ *
+ * @author Ralph Schaer
+ * @see EmbeddedTomcat#enableAccessLog(String, int, AccessLogOverflowPolicy)
+ */
+public enum AccessLogOverflowPolicy {
+
+	/**
+	 * Discards the record and counts it in
+	 * {@link AsyncAccessLogValve#getDroppedCount()}. The request thread never waits.
+	 */
+	DROP,
+
+	/**
+	 * Waits until the writer thread has freed a slot. No record is lost, but a slow
+	 * disk slows down the requests.
+	 */
+	BLOCK
+
+}
@@ -0,0 +1,578 @@
+/**
+ * Copyright 2012-2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.rasc.embeddedtc;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.Charset;
+import java.text.SimpleDateFormat;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import javax.servlet.ServletException;
+
+import org.apache.catalina.AccessLog;
+import org.apache.catalina.LifecycleException;
+import org.apache.catalina.LifecycleState;
+import org.apache.catalina.connector.Request;
+import org.apache.catalina.connector.Response;
+import org.apache.catalina.valves.ValveBase;
+import org.apache.juli.logging.Log;
+import org.apache.juli.logging.LogFactory;
+
+/**
+ * Access log that keeps the formatting and the file I/O off the request threads. A
+ * request thread copies the values of the request into a preallocated record of a
+ * lock-free ring buffer. One writer thread formats the records in batches in the
+ * combined log format, followed by the processing time in milliseconds, and writes
+ * them with a FileChannel through a reused direct buffer.
+ * <p>
+ * The log file is named <code>prefix + yyyy-MM-dd + suffix</code> and rotates at
+ * midnight. When the ring buffer is full the {@link AccessLogOverflowPolicy} decides if
+ * the record is dropped or the request thread waits.
+ * <p>
+ * Tomcat calls {@link #log(Request, Response, long)} after the response is finished,
+ * for asynchronous requests after the processing completes.
+ *
+ * @author Ralph Schaer
+ */
+public class AsyncAccessLogValve extends ValveBase implements AccessLog {
+
+	private static final Log log = LogFactory.getLog(AsyncAccessLogValve.class);
+
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+
+	private String directory = "logs";
+
+	private String prefix = "access_log.";
+
+	private String suffix = ".txt";
+
+	private int bufferSize = 8192;
+
+	private AccessLogOverflowPolicy overflowPolicy = AccessLogOverflowPolicy.DROP;
+
+	private boolean requestAttributesEnabled = false;
+
+	private Record[] ring;
+
+	private int mask;
+
+	private final AtomicLong tail = new AtomicLong();
+
+	private volatile long head;
+
+	private volatile boolean running;
+
+	private volatile boolean writerSleeping;
+
+	private Thread writer;
+
+	private final AtomicLong dropped = new AtomicLong();
+
+	private final AtomicLong written = new AtomicLong();
+
+	public AsyncAccessLogValve() {
+		super(true);
+	}
+
+	/**
+	 * @param directory directory of the log files, relative paths are resolved against
+	 * catalina.base
+	 */
+	public void setDirectory(String directory) {
+		this.directory = directory;
+	}
+
+	public String getDirectory() {
+		return this.directory;
+	}
+
+	public void setPrefix(String prefix) {
+		this.prefix = prefix;
+	}
+
+	public String getPrefix() {
+		return this.prefix;
+	}
+
+	public void setSuffix(String suffix) {
+		this.suffix = suffix;
+	}
+
+	public String getSuffix() {
+		return this.suffix;
+	}
+
+	/**
+	 * @param bufferSize number of records in the ring buffer, rounded up to the next
+	 * power of two
+	 */
+	public void setBufferSize(int bufferSize) {
+		this.bufferSize = bufferSize;
+	}
+
+	public int getBufferSize() {
+		return this.bufferSize;
+	}
+
+	public void setOverflowPolicy(AccessLogOverflowPolicy overflowPolicy) {
+		this.overflowPolicy = overflowPolicy;
+	}
+
+	public AccessLogOverflowPolicy getOverflowPolicy() {
+		return this.overflowPolicy;
+	}
+
+	@Override
+	public void setRequestAttributesEnabled(boolean requestAttributesEnabled) {
+		this.requestAttributesEnabled = requestAttributesEnabled;
+	}
+
+	@Override
+	public boolean getRequestAttributesEnabled() {
+		return this.requestAttributesEnabled;
+	}
+
+	/**
+	 * Number of records discarded because the ring buffer was full
+	 */
+	public long getDroppedCount() {
+		return this.dropped.get();
+	}
+
+	/**
+	 * Number of records written to the log file
+	 */
+	public long getWrittenCount() {
+		return this.written.get();
+	}
+
+	@Override
+	protected synchronized void startInternal() throws LifecycleException {
+		int capacity = 1;
+		while (capacity < this.bufferSize) {
+			capacity <<= 1;
+		}
+		this.ring = new Record[capacity];
+		for (int i = 0; i < capacity; i++) {
+			this.ring[i] = new Record();
+		}
+		this.mask = capacity - 1;
+
+		this.running = true;
+		this.writer = new Thread(new Writer(), "access-log-writer");
+		this.writer.setDaemon(true);
+		this.writer.start();
+
+		setState(LifecycleState.STARTING);
+	}
+
+	@Override
+	protected synchronized void stopInternal() throws LifecycleException {
+		setState(LifecycleState.STOPPING);
+
+		this.running = false;
+		if (this.writer != null) {
+			LockSupport.unpark(this.writer);
+			try {
+				this.writer.join(TimeUnit.SECONDS.toMillis(10));
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			this.writer = null;
+		}
+	}
+
+	@Override
+	public void invoke(Request request, Response response)
+			throws IOException, ServletException {
+		getNext().invoke(request, response);
+	}
+
+	@Override
+	public void log(Request request, Response response, long time) {
+		if (!this.running) {
+			return;
+		}
+
+		long sequence = claim();
+		if (sequence < 0) {
+			return;
+		}
+
+		Record record = this.ring[(int) sequence & this.mask];
+		try {
+			record.fill(request, response, time, this.requestAttributesEnabled);
+		}
+		finally {
+			record.sequence = sequence;
+		}
+
+		if (this.writerSleeping) {
+			LockSupport.unpark(this.writer);
+		}
+	}
+
+	/**
+	 * Claims the next slot of the ring buffer
+	 *
+	 * @return the sequence of the slot or -1 if the record is dropped
+	 */
+	private long claim() {
+		while (true) {
+			long sequence = this.tail.get();
+			if (sequence - this.head >= this.ring.length) {
+				if (this.overflowPolicy == AccessLogOverflowPolicy.DROP || !this.running) {
+					this.dropped.incrementAndGet();
+					return -1;
+				}
+				LockSupport.unpark(this.writer);
+				LockSupport.parkNanos(100000);
+				continue;
+			}
+			if (this.tail.compareAndSet(sequence, sequence + 1)) {
+				return sequence;
+			}
+		}
+	}
+
+	private static final class Record {
+
+		volatile long sequence = -1;
+
+		long startTime;
+
+		long time;
+
+		String remoteAddr;
+
+		String user;
+
+		String method;
+
+		String uri;
+
+		String query;
+
+		String protocol;
+
+		int status;
+
+		long bytes;
+
+		String referer;
+
+		String userAgent;
+
+		void fill(Request request, Response response, long processingTime,
+				boolean requestAttributesEnabled) {
+			this.time = processingTime;
+			this.startTime = request.getCoyoteRequest().getStartTime();
+			if (this.startTime <= 0) {
+				this.startTime = System.currentTimeMillis() - processingTime;
+			}
+
+			this.remoteAddr = null;
+			this.protocol = null;
+			if (requestAttributesEnabled) {
+				Object value = request.getAttribute(REMOTE_ADDR_ATTRIBUTE);
+				this.remoteAddr = value != null ? value.toString() : null;
+				value = request.getAttribute(PROTOCOL_ATTRIBUTE);
+				this.protocol = value != null ? value.toString() : null;
+			}
+			if (this.remoteAddr == null) {
+				this.remoteAddr = request.getRemoteAddr();
+			}
+			if (this.protocol == null) {
+				this.protocol = request.getProtocol();
+			}
+
+			this.user = request.getRemoteUser();
+			this.method = request.getMethod();
+			this.uri = request.getRequestURI();
+			this.query = request.getQueryString();
+			this.status = response.getStatus();
+			this.bytes = response.getBytesWritten(false);
+			this.referer = request.getHeader("Referer");
+			this.userAgent = request.getHeader("User-Agent");
+		}
+	}
+
+	private final class Writer implements Runnable {
+
+		private final SimpleDateFormat timestampFormat = new SimpleDateFormat(
+				"dd/MMM/yyyy:HH:mm:ss Z", Locale.US);
+
+		private final SimpleDateFormat fileDateFormat = new SimpleDateFormat("yyyy-MM-dd");
+
+		private final StringBuilder lines = new StringBuilder(WRITE_BUFFER_SIZE);
+
+		private final ByteBuffer buffer = ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE);
+
+		private final CharsetEncoder encoder = UTF_8.newEncoder();
+
+		private long lastSecond = -1;
+
+		private String lastTimestamp;
+
+		private FileChannel channel;
+
+		private long nextRotation;
+
+		@Override
+		public void run() {
+			try {
+				long stopDeadline = -1;
+				while (true) {
+					int count = drain();
+					if (count > 0) {
+						continue;
+					}
+
+					if (!AsyncAccessLogValve.this.running) {
+						// wait for claimed records that are not yet published
+						if (AsyncAccessLogValve.this.head == AsyncAccessLogValve.this.tail
+								.get()) {
+							break;
+						}
+						if (stopDeadline < 0) {
+							stopDeadline = System.currentTimeMillis() + 1000;
+						}
+						else if (System.currentTimeMillis() > stopDeadline) {
+							break;
+						}
+						LockSupport.parkNanos(1000000);
+						continue;
+					}
+
+					AsyncAccessLogValve.this.writerSleeping = true;
+					if (!isPublished(AsyncAccessLogValve.this.head)
+							&& AsyncAccessLogValve.this.running) {
+						LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(100));
+					}
+					AsyncAccessLogValve.this.writerSleeping = false;
+				}
+			}
+			catch (Throwable t) {
+				// request threads must not wait for a writer that does not run anymore
+				AsyncAccessLogValve.this.running = false;
+				log.error("Access log writer failed", t);
+			}
+			finally {
+				close();
+			}
+		}
+
+		private boolean isPublished(long sequence) {
+			Record[] ring = AsyncAccessLogValve.this.ring;
+			return ring[(int) sequence & AsyncAccessLogValve.this.mask].sequence == sequence;
+		}
+
+		/**
+		 * Formats and writes all published records
+		 *
+		 * @return number of records written
+		 */
+		private int drain() {
+			int count = 0;
+			long sequence = AsyncAccessLogValve.this.head;
+			Record[] ring = AsyncAccessLogValve.this.ring;
+			int mask = AsyncAccessLogValve.this.mask;
+			while (true) {
+				Record record = ring[(int) sequence & mask];
+				if (record.sequence != sequence) {
+					break;
+				}
+				format(record);
+				sequence++;
+				count++;
+				// frees the slot for the request threads
+				AsyncAccessLogValve.this.head = sequence;
+				if (this.lines.length() >= WRITE_BUFFER_SIZE) {
+					write();
+				}
+			}
+			if (count > 0) {
+				write();
+				AsyncAccessLogValve.this.written.addAndGet(count);
+			}
+			return count;
+		}
+
+		private void format(Record record) {
+			StringBuilder sb = this.lines;
+			sb.append(record.remoteAddr).append(" - ");
+			if (record.user != null) {
+				appendEscaped(sb, record.user);
+			}
+			else {
+				sb.append('-');
+			}
+			sb.append(" [").append(timestamp(record.startTime)).append("] \"");
+			appendEscaped(sb, record.method);
+			sb.append(' ');
+			appendEscaped(sb, record.uri);
+			if (record.query != null) {
+				sb.append('?');
+				appendEscaped(sb, record.query);
+			}
+			sb.append(' ');
+			appendEscaped(sb, record.protocol);
+			sb.append("\" ").append(record.status).append(' ');
+			if (record.bytes > 0) {
+				sb.append(record.bytes);
+			}
+			else {
+				sb.append('-');
+			}
+			sb.append(" \"");
+			appendEscaped(sb, record.referer != null ? record.referer : "-");
+			sb.append("\" \"");
+			appendEscaped(sb, record.userAgent != null ? record.userAgent : "-");
+			sb.append("\" ").append(record.time).append('\n');
+		}
+
+		private String timestamp(long millis) {
+			long second = millis / 1000;
+			if (second != this.lastSecond) {
+				this.lastSecond = second;
+				this.lastTimestamp = this.timestampFormat.format(new Date(millis));
+			}
+			return this.lastTimestamp;
+		}
+
+		/**
+		 * Writes the formatted lines. On an I/O error the lines are discarded and the
+		 * file is opened again with the next batch.
+		 */
+		private void write() {
+			if (this.lines.length() == 0) {
+				return;
+			}
+			try {
+				FileChannel fileChannel = openChannel();
+
+				CharBuffer chars = CharBuffer.wrap(this.lines);
+				this.encoder.reset();
+				while (this.encoder.encode(chars, this.buffer, true).isOverflow()) {
+					flushBuffer(fileChannel);
+				}
+				while (this.encoder.flush(this.buffer).isOverflow()) {
+					flushBuffer(fileChannel);
+				}
+				flushBuffer(fileChannel);
+			}
+			catch (IOException e) {
+				log.error("Writing access log failed", e);
+				this.buffer.clear();
+				close();
+			}
+			finally {
+				this.lines.setLength(0);
+			}
+		}
+
+		private void flushBuffer(FileChannel fileChannel) throws IOException {
+			this.buffer.flip();
+			while (this.buffer.hasRemaining()) {
+				fileChannel.write(this.buffer);
+			}
+			this.buffer.clear();
+		}
+
+		private FileChannel openChannel() throws IOException {
+			long now = System.currentTimeMillis();
+			if (this.channel != null && now < this.nextRotation) {
+				return this.channel;
+			}
+			close();
+
+			File dir = new File(AsyncAccessLogValve.this.directory);
+			if (!dir.isAbsolute()) {
+				dir = new File(System.getProperty("catalina.base", "."),
+						AsyncAccessLogValve.this.directory);
+			}
+			if (!dir.mkdirs() && !dir.isDirectory()) {
+				throw new IOException("Creating access log directory " + dir + " failed");
+			}
+			File file = new File(dir, AsyncAccessLogValve.this.prefix
+					+ this.fileDateFormat.format(new Date(now))
+					+ AsyncAccessLogValve.this.suffix);
+			this.channel = new FileOutputStream(file, true).getChannel();
+
+			Calendar midnight = Calendar.getInstance();
+			midnight.setTimeInMillis(now);
+			midnight.set(Calendar.HOUR_OF_DAY, 0);
+			midnight.set(Calendar.MINUTE, 0);
+			midnight.set(Calendar.SECOND, 0);
+			midnight.set(Calendar.MILLISECOND, 0);
+			midnight.add(Calendar.DAY_OF_MONTH, 1);
+			this.nextRotation = midnight.getTimeInMillis();
+			return this.channel;
+		}
+
+		private void close() {
+			if (this.channel != null) {
+				try {
+					this.channel.close();
+				}
+				catch (IOException e) {
+					log.warn("Closing access log failed", e);
+				}
+				this.channel = null;
+			}
+		}
+	}
+
+	/**
+	 * Escapes quotes, backslashes and control characters, a request cannot forge log
+	 * lines
+	 */
+	static void appendEscaped(StringBuilder sb, String value) {
+		if (value == null) {
+			sb.append('-');
+			return;
+		}
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if (c == '"' || c == '\\') {
+				sb.append('\\').append(c);
+			}
+			else if (c < 32 || c == 127) {
+				sb.append("\\x").append(HEX[(c >> 4) & 0xf]).append(HEX[c & 0xf]);
+			}
+			else {
+				sb.append(c);
+			}
+		}
+	}
+
+}
@@ -0,0 +1,506 @@
+/**
+ * Copyright 2012-2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.rasc.embeddedtc;
+
+import java.io.IOException;
+import java.lang.reflect.Array;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.catalina.Container;
+import org.apache.catalina.Context;
+import org.apache.catalina.LifecycleException;
+import org.apache.catalina.LifecycleState;
+import org.apache.catalina.Manager;
+import org.apache.catalina.Session;
+import org.apache.catalina.session.ManagerBase;
+import org.apache.catalina.session.StandardSession;
+
+/**
+ * Session manager with an upper limit for the number of sessions and the estimated
+ * memory the sessions use. If a limit is reached the manager expires sessions
+ * according to the {@link SessionEvictionPolicy} instead of rejecting new sessions.
+ * <p>
+ * The sessions are kept in striped access ordered maps. Looking up a session only
+ * locks one stripe and eviction compares the oldest sessions of every stripe.
+ * <p>
+ * Expiration is incremental: every run of the background processor and every new
+ * session only inspects the least recently used sessions of a stripe and stops at the
+ * first session with the default session timeout that is still valid. Valid sessions
+ * with a different max inactive interval, or one that never expires, are skipped.
+ * <p>
+ * The memory usage is a shallow estimate of the session attributes, see
+ * {@link #estimateSize(String, Object)}. Sessions are not persisted on stop.
+ *
+ * @author Ralph Schaer
+ */
+public class BoundedSessionManager extends ManagerBase {
+
+	private static final String name = "BoundedSessionManager";
+
+	/**
+	 * Estimated size of a session without attributes
+	 */
+	private static final long SESSION_SIZE = 512;
+
+	/**
+	 * Estimated size of an attribute value of an unknown type
+	 */
+	private static final long DEFAULT_ATTRIBUTE_SIZE = 256;
+
+	/**
+	 * Number of the least recently used sessions per stripe the LFU policy compares
+	 */
+	private static final int LFU_SAMPLES = 8;
+
+	private final Stripe[] stripes;
+
+	private final AtomicLong memoryUsage = new AtomicLong();
+
+	private final AtomicLong evictedSessions = new AtomicLong();
+
+	private final AtomicInteger nextStripe = new AtomicInteger();
+
+	private long maxMemory = -1;
+
+	private SessionEvictionPolicy evictionPolicy = SessionEvictionPolicy.LRU;
+
+	private int expireBatchSize = 1000;
+
+	private static class Stripe {
+		final LinkedHashMap<String, BoundedSession> sessions = new LinkedHashMap<String, BoundedSession>(
+				16, 0.75f, true);
+	}
+
+	public BoundedSessionManager() {
+		this(16);
+	}
+
+	/**
+	 * @param stripeCount number of independently locked session maps
+	 */
+	public BoundedSessionManager(int stripeCount) {
+		this.stripes = new Stripe[Math.max(1, stripeCount)];
+		for (int i = 0; i < this.stripes.length; i++) {
+			this.stripes[i] = new Stripe();
+		}
+		// every run of the background processor expires a few sessions
+		this.processExpiresFrequency = 1;
+	}
+
+	@Override
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * @return the maximum estimated memory of all sessions in bytes, -1 for no limit
+	 */
+	public long getMaxMemory() {
+		return this.maxMemory;
+	}
+
+	public void setMaxMemory(long maxMemory) {
+		this.maxMemory = maxMemory;
+	}
+
+	public SessionEvictionPolicy getEvictionPolicy() {
+		return this.evictionPolicy;
+	}
+
+	public void setEvictionPolicy(SessionEvictionPolicy evictionPolicy) {
+		this.evictionPolicy = evictionPolicy;
+	}
+
+	/**
+	 * @return maximum number of sessions per stripe one background run inspects
+	 */
+	public int getExpireBatchSize() {
+		return this.expireBatchSize;
+	}
+
+	public void setExpireBatchSize(int expireBatchSize) {
+		this.expireBatchSize = expireBatchSize;
+	}
+
+	/**
+	 * @return the estimated memory of all sessions in bytes
+	 */
+	public long getMemoryUsage() {
+		return this.memoryUsage.get();
+	}
+
+	/**
+	 * @return the number of sessions that expired because a limit was reached
+	 */
+	public long getEvictedSessions() {
+		return this.evictedSessions.get();
+	}
+
+	private Stripe stripe(String id) {
+		return this.stripes[(id.hashCode() & 0x7fffffff) % this.stripes.length];
+	}
+
+	@Override
+	protected StandardSession getNewSession() {
+		return new BoundedSession(this);
+	}
+
+	@Override
+	public Session createSession(String sessionId) {
+		// ManagerBase rejects new sessions if the limit is reached
+		if (this.maxActiveSessions >= 0) {
+			while (getActiveSessions() >= this.maxActiveSessions && evictOne(null)) {
+				// evict until there is room
+			}
+		}
+		return super.createSession(sessionId);
+	}
+
+	@Override
+	public void add(Session session) {
+		super.add(session);
+		if (!(session instanceof BoundedSession)) {
+			return;
+		}
+
+		BoundedSession boundedSession = (BoundedSession) session;
+		Stripe stripe = stripe(session.getIdInternal());
+		synchronized (stripe) {
+			stripe.sessions.put(session.getIdInternal(), boundedSession);
+		}
+		this.memoryUsage.addAndGet(boundedSession.count());
+
+		expire(stripe, 2, System.currentTimeMillis());
+		enforceLimits(boundedSession);
+	}
+
+	@Override
+	public Session findSession(String id) throws IOException {
+		Session session = super.findSession(id);
+		if (session instanceof BoundedSession) {
+			Stripe stripe = stripe(id);
+			synchronized (stripe) {
+				// moves the session to the end of the access order
+				if (stripe.sessions.get(id) != null) {
+					((BoundedSession) session).hits++;
+				}
+			}
+		}
+		return session;
+	}
+
+	@Override
+	public void remove(Session session, boolean update) {
+		super.remove(session, update);
+		if (session instanceof BoundedSession && session.getIdInternal() != null) {
+			Stripe stripe = stripe(session.getIdInternal());
+			synchronized (stripe) {
+				if (stripe.sessions.get(session.getIdInternal()) == session) {
+					stripe.sessions.remove(session.getIdInternal());
+				}
+			}
+			this.memoryUsage.addAndGet(-((BoundedSession) session).uncount());
+		}
+	}
+
+	/**
+	 * Inspects the least recently used sessions of every stripe instead of all sessions
+	 */
+	@Override
+	public void processExpires() {
+		long timeNow = System.currentTimeMillis();
+		int expired = 0;
+		for (Stripe stripe : this.stripes) {
+			expired += expire(stripe, this.expireBatchSize, timeNow);
+		}
+		long timeEnd = System.currentTimeMillis();
+		this.processingTime += timeEnd - timeNow;
+		if (getContainer() != null && getContainer().getLogger().isDebugEnabled()) {
+			getContainer().getLogger().debug("Expired " + expired + " sessions in "
+					+ (timeEnd - timeNow) + " ms");
+		}
+	}
+
+	private int expire(Stripe stripe, int maxInspected, long timeNow) {
+		Container container = getContainer();
+		int defaultMaxInactive = container instanceof Context
+				? ((Context) container).getSessionTimeout() * 60 : -1;
+		List<BoundedSession> expired = null;
+		synchronized (stripe) {
+			int inspected = 0;
+			Iterator<BoundedSession> it = stripe.sessions.values().iterator();
+			while (it.hasNext() && inspected++ < maxInspected) {
+				BoundedSession session = it.next();
+				int maxInactive = session.getMaxInactiveInterval();
+				if (maxInactive > 0 && timeNow
+						- session.getThisAccessedTimeInternal() >= maxInactive * 1000L) {
+					if (expired == null) {
+						expired = new ArrayList<BoundedSession>();
+					}
+					expired.add(session);
+				}
+				else if (maxInactive > 0 && maxInactive == defaultMaxInactive) {
+					// the following sessions with the default timeout were accessed later
+					break;
+				}
+			}
+		}
+
+		if (expired == null) {
+			return 0;
+		}
+		int count = 0;
+		for (BoundedSession session : expired) {
+			// isValid() expires the session and removes it from the stripe
+			if (!session.isValid()) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	void sizeChanged(BoundedSession session, long delta) {
+		if (session.addSize(delta)) {
+			this.memoryUsage.addAndGet(delta);
+			if (delta > 0) {
+				enforceLimits(session);
+			}
+		}
+	}
+
+	private void enforceLimits(BoundedSession keep) {
+		while (isLimitExceeded() && evictOne(keep)) {
+			// evict until the limits are met
+		}
+	}
+
+	private boolean isLimitExceeded() {
+		return this.maxMemory >= 0 && this.memoryUsage.get() > this.maxMemory
+				|| this.maxActiveSessions >= 0
+						&& getActiveSessions() > this.maxActiveSessions;
+	}
+
+	/**
+	 * Expires the session the eviction policy selects among the least recently used
+	 * sessions of all stripes
+	 *
+	 * @param keep session that must not be evicted, may be null
+	 * @return false if there is no session to evict
+	 */
+	private boolean evictOne(BoundedSession keep) {
+		int samples = this.evictionPolicy == SessionEvictionPolicy.LFU ? LFU_SAMPLES : 1;
+		BoundedSession victim = null;
+		int start = this.nextStripe.getAndIncrement() & 0x7fffffff;
+		for (int i = 0; i < this.stripes.length; i++) {
+			Stripe stripe = this.stripes[(start + i) % this.stripes.length];
+			synchronized (stripe) {
+				int sampled = 0;
+				for (BoundedSession session : stripe.sessions.values()) {
+					if (session == keep) {
+						continue;
+					}
+					if (victim == null || isBetterVictim(session, victim)) {
+						victim = session;
+					}
+					if (++sampled >= samples) {
+						break;
+					}
+				}
+			}
+		}
+
+		if (victim == null) {
+			return false;
+		}
+		this.evictedSessions.incrementAndGet();
+		victim.expire();
+		return true;
+	}
+
+	private boolean isBetterVictim(BoundedSession session, BoundedSession victim) {
+		if (this.evictionPolicy == SessionEvictionPolicy.LFU
+				&& session.hits != victim.hits) {
+			return session.hits < victim.hits;
+		}
+		return session.getThisAccessedTimeInternal() < victim
+				.getThisAccessedTimeInternal();
+	}
+
+	/**
+	 * Estimates the memory of a session attribute. Strings, arrays and boxed primitives
+	 * are measured, collections and maps count their entries but not the elements and
+	 * all other objects count {@value #DEFAULT_ATTRIBUTE_SIZE} bytes. Subclasses may
+	 * override this method with a more precise estimate.
+	 *
+	 * @param name the attribute name
+	 * @param value the attribute value, may be null
+	 * @return the estimated size in bytes
+	 */
+	protected long estimateSize(String name, Object value) {
+		if (value == null) {
+			return 0;
+		}
+		long size = 48 + 2L * name.length();
+		if (value instanceof String) {
+			return size + 40 + 2L * ((String) value).length();
+		}
+		if (value instanceof Number || value instanceof Boolean
+				|| value instanceof Character) {
+			return size + 16;
+		}
+		if (value.getClass().isArray()) {
+			int length = Array.getLength(value);
+			Class<?> type = value.getClass().getComponentType();
+			long elementSize = type == byte.class || type == boolean.class ? 1
+					: type == char.class || type == short.class ? 2
+							: type == long.class || type == double.class ? 8 : 4;
+			return size + 16 + elementSize * length;
+		}
+		if (value instanceof Collection) {
+			return size + 48 + 32L * ((Collection<?>) value).size();
+		}
+		if (value instanceof Map) {
+			return size + 48 + 48L * ((Map<?, ?>) value).size();
+		}
+		return size + DEFAULT_ATTRIBUTE_SIZE;
+	}
+
+	@Override
+	public void load() {
+		// sessions are not persisted
+	}
+
+	@Override
+	public void unload() {
+		// sessions are not persisted
+	}
+
+	@Override
+	protected synchronized void startInternal() throws LifecycleException {
+		super.startInternal();
+		setState(LifecycleState.STARTING);
+	}
+
+	@Override
+	protected synchronized void stopInternal() throws LifecycleException {
+		setState(LifecycleState.STOPPING);
+
+		for (Session session : findSessions()) {
+			if (session.isValid()) {
+				session.expire();
+			}
+		}
+
+		super.stopInternal();
+	}
+
+	/**
+	 * Session that reports the estimated size of its attributes to the manager
+	 */
+	static class BoundedSession extends StandardSession {
+
+		private static final long serialVersionUID = 1L;
+
+		/**
+		 * Number of lookups, only changed while the stripe is locked
+		 */
+		int hits;
+
+		private long size = SESSION_SIZE;
+
+		private boolean counted;
+
+		BoundedSession(Manager manager) {
+			super(manager);
+		}
+
+		synchronized boolean addSize(long delta) {
+			this.size += delta;
+			return this.counted;
+		}
+
+		/**
+		 * @return the size to add to the memory usage of the manager
+		 */
+		synchronized long count() {
+			if (this.counted) {
+				return 0;
+			}
+			this.counted = true;
+			return this.size;
+		}
+
+		/**
+		 * @return the size to subtract from the memory usage of the manager
+		 */
+		synchronized long uncount() {
+			if (!this.counted) {
+				return 0;
+			}
+			this.counted = false;
+			return this.size;
+		}
+
+		private BoundedSessionManager boundedManager() {
+			return this.manager instanceof BoundedSessionManager
+					? (BoundedSessionManager) this.manager : null;
+		}
+
+		@Override
+		public void setAttribute(String name, Object value, boolean notify) {
+			if (value == null) {
+				super.setAttribute(name, value, notify);
+				return;
+			}
+			Object oldValue = this.attributes.get(name);
+			super.setAttribute(name, value, notify);
+			BoundedSessionManager boundedManager = boundedManager();
+			if (boundedManager != null) {
+				boundedManager.sizeChanged(this, boundedManager.estimateSize(name, value)
+						- boundedManager.estimateSize(name, oldValue));
+			}
+		}
+
+		@Override
+		protected void removeAttributeInternal(String name, boolean notify) {
+			Object oldValue = name != null ? this.attributes.get(name) : null;
+			super.removeAttributeInternal(name, notify);
+			BoundedSessionManager boundedManager = boundedManager();
+			if (oldValue != null && boundedManager != null) {
+				boundedManager.sizeChanged(this,
+						-boundedManager.estimateSize(name, oldValue));
+			}
+		}
+
+		@Override
+		public void recycle() {
+			super.recycle();
+			synchronized (this) {
+				this.size = SESSION_SIZE;
+				this.counted = false;
+				this.hits = 0;
+			}
+		}
+	}
+
+}
@@ -0,0 +1,570 @@
+/**
+ * Copyright 2012-2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.rasc.embeddedtc;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+
+import org.apache.catalina.deploy.WebXml;
+import org.apache.catalina.startup.ContextConfig;
+import org.apache.juli.logging.Log;
+import org.apache.juli.logging.LogFactory;
+import org.apache.tomcat.util.bcel.classfile.AnnotationEntry;
+import org.apache.tomcat.util.bcel.classfile.ClassFormatException;
+import org.apache.tomcat.util.bcel.classfile.ClassParser;
+import org.apache.tomcat.util.bcel.classfile.JavaClass;
+
+/**
+ * ContextConfig that speeds up the annotation scan.
+ * <p>
+ * With a {@link JarScanCache} it skips the annotation scan of unchanged jars that did
+ * not contain any annotated servlets, filters, listeners or classes matching a
+ * {@literal @}HandlesTypes annotation during a previous start.
+ * <p>
+ * With a {@link ClassScanCache} it reads and parses the class files of the
+ * /WEB-INF/classes directories in parallel and only parses class files that changed
+ * since the previous start or that contributed to the configuration.
+ * <p>
+ * With a {@link StartupReport} it records the duration of the configuration, the jar
+ * scan for web fragments and the annotation processing.
+ *
+ * @author Ralph Schaer
+ */
+public class CachingContextConfig extends ContextConfig {
+
+	private static final Log log = LogFactory.getLog(CachingContextConfig.class);
+
+	private final JarScanCache jarScanCache;
+
+	private final ClassScanCache classScanCache;
+
+	private final int scanThreads;
+
+	private volatile StartupReport startupReport;
+
+	private int annotationDepth;
+
+	/**
+	 * @param jarScanCache cache for the annotation scan of jars, may be null
+	 * @param classScanCache cache for the annotation scan of class directories, may be
+	 * null
+	 * @param scanThreads number of threads that read and parse class files
+	 */
+	public CachingContextConfig(JarScanCache jarScanCache, ClassScanCache classScanCache,
+			int scanThreads) {
+		this.jarScanCache = jarScanCache;
+		this.classScanCache = classScanCache;
+		this.scanThreads = Math.max(1, scanThreads);
+	}
+
+	void setStartupReport(StartupReport startupReport) {
+		this.startupReport = startupReport;
+	}
+
+	private void record(String phase, long start) {
+		this.startupReport.record(phase, StartupReport.contextName(this.context.getPath()),
+				start);
+	}
+
+	@Override
+	protected synchronized void configureStart() {
+		if (this.startupReport == null) {
+			super.configureStart();
+			return;
+		}
+		long start = System.nanoTime();
+		super.configureStart();
+		record(StartupReport.CONTEXT_CONFIGURATION, start);
+	}
+
+	@Override
+	protected Map<String, WebXml> processJarsForWebFragments(WebXml application) {
+		if (this.startupReport == null) {
+			return super.processJarsForWebFragments(application);
+		}
+		long start = System.nanoTime();
+		Map<String, WebXml> fragments = super.processJarsForWebFragments(application);
+		record(StartupReport.JAR_SCANNING, start);
+		return fragments;
+	}
+
+	/**
+	 * The processAnnotations methods call each other, only the outermost call is
+	 * recorded
+	 */
+	private long beginAnnotations() {
+		return this.annotationDepth++ == 0 ? System.nanoTime() : 0;
+	}
+
+	private void endAnnotations(long start) {
+		if (--this.annotationDepth == 0 && this.startupReport != null) {
+			record(StartupReport.ANNOTATION_PROCESSING, start);
+		}
+	}
+
+	@Override
+	protected void processAnnotationsUrl(URL url, WebXml fragment,
+			boolean handlesTypesOnly) {
+		long start = beginAnnotations();
+		try {
+			super.processAnnotationsUrl(url, fragment, handlesTypesOnly);
+		}
+		finally {
+			endAnnotations(start);
+		}
+	}
+
+	@Override
+	protected void processAnnotations(Set<WebXml> fragments, boolean handlesTypesOnly) {
+		long start = beginAnnotations();
+		try {
+			processAnnotationsWithCache(fragments, handlesTypesOnly);
+		}
+		finally {
+			endAnnotations(start);
+		}
+	}
+
+	private void processAnnotationsWithCache(Set<WebXml> fragments,
+			boolean handlesTypesOnly) {
+		if (this.jarScanCache == null) {
+			super.processAnnotations(fragments, handlesTypesOnly);
+			return;
+		}
+
+		this.jarScanCache.addHandlesTypes(handlesTypesSignature());
+		super.processAnnotations(fragments, handlesTypesOnly);
+		this.jarScanCache.store();
+	}
+
+	@Override
+	protected void processAnnotationsJar(URL url, WebXml fragment,
+			boolean handlesTypesOnly) {
+		File jar = this.jarScanCache != null ? JarScanCache.toJarFile(url) : null;
+		if (jar == null) {
+			super.processAnnotationsJar(url, fragment, handlesTypesOnly);
+			return;
+		}
+
+		String handlesTypes = handlesTypesSignature();
+		JarScanCache.Entry entry = this.jarScanCache.getEntry(jar);
+		if (entry != null && !entry.isAnnotationScanNeeded(handlesTypes)) {
+			return;
+		}
+
+		int before = countInitializerClasses();
+		super.processAnnotationsJar(url, fragment, handlesTypesOnly);
+
+		if (!handlesTypesOnly) {
+			boolean found = countInitializerClasses() != before
+					|| !fragment.getServlets().isEmpty()
+					|| !fragment.getFilters().isEmpty()
+					|| !fragment.getListeners().isEmpty()
+					|| !fragment.getServletMappings().isEmpty()
+					|| !fragment.getFilterMappings().isEmpty();
+			this.jarScanCache.recordAnnotations(jar, handlesTypes, found);
+		}
+	}
+
+	@Override
+	protected void processAnnotationsFile(File file, WebXml fragment,
+			boolean handlesTypesOnly) {
+		long start = beginAnnotations();
+		try {
+			if (this.classScanCache != null && file.isDirectory()) {
+				scanClassesDirectory(file.getAbsoluteFile(), fragment, handlesTypesOnly);
+			}
+			else {
+				super.processAnnotationsFile(file, fragment, handlesTypesOnly);
+			}
+		}
+		finally {
+			endAnnotations(start);
+		}
+	}
+
+	private void scanClassesDirectory(File directory, WebXml fragment,
+			boolean handlesTypesOnly) {
+		String handlesTypes = handlesTypesSignature();
+		this.classScanCache.setHandlesTypes(handlesTypes);
+		// without @HandlesTypes types the super types do not matter
+		this.classScanCache.setClasspath(handlesTypes.length() == 0 ? ""
+				: classpathSignature(this.context.getLoader().getClassLoader()));
+		boolean trustHierarchy = !this.classScanCache.isHandlesTypesChanged()
+				&& !this.classScanCache.isClasspathChanged();
+
+		List<File> classFiles = new ArrayList<File>();
+		collectClassFiles(directory, classFiles);
+
+		List<Callable<ClassFileResult>> tasks = new ArrayList<Callable<ClassFileResult>>(
+				classFiles.size());
+		for (File classFile : classFiles) {
+			tasks.add(new ReadClassFileTask(classFile));
+		}
+
+		List<Future<ClassFileResult>> futures;
+		ExecutorService executorService = Executors.newFixedThreadPool(this.scanThreads,
+				new ScanThreadFactory());
+		try {
+			futures = executorService.invokeAll(tasks);
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return;
+		}
+		finally {
+			executorService.shutdown();
+		}
+
+		List<ClassFileResult> results = new ArrayList<ClassFileResult>(futures.size());
+		Map<String, ClassFileResult> resultsByClassName = new HashMap<String, ClassFileResult>();
+		Set<String> existingFiles = new HashSet<String>();
+		for (Future<ClassFileResult> future : futures) {
+			try {
+				ClassFileResult result = future.get();
+				results.add(result);
+				resultsByClassName.put(result.className, result);
+				existingFiles.add(result.file.getAbsolutePath());
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+			catch (ExecutionException e) {
+				log.error("Reading class file failed", e.getCause());
+			}
+		}
+
+		Map<String, Boolean> unchangedHierarchies = new HashMap<String, Boolean>();
+		for (ClassFileResult result : results) {
+			if (result.unchanged && !result.cachedEntry.isRelevant() && trustHierarchy
+					&& isHierarchyUnchanged(result.superTypes, resultsByClassName,
+							unchangedHierarchies)) {
+				if (result.cachedEntry.matches(result.size, result.lastModified)) {
+					continue;
+				}
+				// the file was touched but the content did not change
+				this.classScanCache.put(result.file,
+						result.cachedEntry.touch(result.lastModified));
+				continue;
+			}
+
+			JavaClass javaClass = result.javaClass;
+			if (javaClass == null) {
+				try {
+					javaClass = parse(readFile(result.file));
+				}
+				catch (IOException e) {
+					log.error("Reading class file " + result.file + " failed", e);
+					continue;
+				}
+				catch (ClassFormatException e) {
+					log.error("Parsing class file " + result.file + " failed", e);
+					continue;
+				}
+			}
+
+			boolean relevant = processClass(javaClass, fragment, handlesTypesOnly);
+			this.classScanCache.put(result.file,
+					new ClassScanCache.Entry(result.size, result.lastModified,
+							result.checksum, relevant, javaClass.getClassName(),
+							result.superTypes));
+		}
+
+		this.classScanCache.retain(directory, existingFiles);
+		this.classScanCache.store();
+	}
+
+	/**
+	 * Same processing as {@link #processAnnotationsStream} but with an already parsed
+	 * class
+	 *
+	 * @return true if the class is annotated with a servlet annotation or matches a
+	 * {@literal @}HandlesTypes annotation
+	 */
+	private boolean processClass(JavaClass javaClass, WebXml fragment,
+			boolean handlesTypesOnly) {
+		int before = countInitializerClasses();
+		checkHandlesTypes(javaClass);
+		boolean relevant = countInitializerClasses() != before;
+
+		AnnotationEntry[] annotationsEntries = javaClass.getAnnotationEntries();
+		if (annotationsEntries != null) {
+			String className = javaClass.getClassName();
+			for (AnnotationEntry ae : annotationsEntries) {
+				String type = ae.getAnnotationType();
+				if ("Ljavax/servlet/annotation/WebServlet;".equals(type)) {
+					relevant = true;
+					if (!handlesTypesOnly) {
+						processAnnotationWebServlet(className, ae, fragment);
+					}
+				}
+				else if ("Ljavax/servlet/annotation/WebFilter;".equals(type)) {
+					relevant = true;
+					if (!handlesTypesOnly) {
+						processAnnotationWebFilter(className, ae, fragment);
+					}
+				}
+				else if ("Ljavax/servlet/annotation/WebListener;".equals(type)) {
+					relevant = true;
+					if (!handlesTypesOnly) {
+						fragment.addListener(className);
+					}
+				}
+			}
+		}
+
+		return relevant;
+	}
+
+	/**
+	 * A class that did not match a {@literal @}HandlesTypes annotation during the
+	 * previous start can only match now if one of its super types changed. This method
+	 * checks the super types in the scanned directory, the super types in the jars are
+	 * covered by {@link ClassScanCache#setClasspath(String)}.
+	 */
+	static boolean isHierarchyUnchanged(String[] superTypes,
+			Map<String, ClassFileResult> resultsByClassName, Map<String, Boolean> memo) {
+		for (String superType : superTypes) {
+			Boolean unchanged = memo.get(superType);
+			if (unchanged == null) {
+				ClassFileResult result = resultsByClassName.get(superType);
+				if (result == null) {
+					// not in the scanned directory
+					unchanged = Boolean.TRUE;
+				}
+				else if (!result.unchanged) {
+					unchanged = Boolean.FALSE;
+				}
+				else {
+					// guard against cycles
+					memo.put(superType, Boolean.TRUE);
+					unchanged = Boolean.valueOf(isHierarchyUnchanged(result.superTypes,
+							resultsByClassName, memo));
+				}
+				memo.put(superType, unchanged);
+			}
+			if (!unchanged.booleanValue()) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Returns a checksum of the Java version and of path, size and last modification
+	 * time of all jars visible to the class loader
+	 */
+	static String classpathSignature(ClassLoader classLoader) {
+		Set<File> jars = new LinkedHashSet<File>();
+		for (ClassLoader cl = classLoader; cl != null; cl = cl.getParent()) {
+			if (cl instanceof URLClassLoader) {
+				for (URL url : ((URLClassLoader) cl).getURLs()) {
+					File jar = JarScanCache.toJarFile(url);
+					if (jar != null) {
+						jars.add(jar.getAbsoluteFile());
+					}
+				}
+			}
+		}
+		// the application class loader of Java 9 and later is no URLClassLoader
+		String classPath = System.getProperty("java.class.path", "");
+		for (String path : classPath.split(File.pathSeparator)) {
+			if (path.endsWith(".jar")) {
+				jars.add(new File(path).getAbsoluteFile());
+			}
+		}
+
+		StringBuilder sb = new StringBuilder(System.getProperty("java.version"));
+		for (File jar : jars) {
+			sb.append(';').append(jar.getPath()).append(',').append(jar.length())
+					.append(',').append(jar.lastModified());
+		}
+		CRC32 crc = new CRC32();
+		try {
+			crc.update(sb.toString().getBytes("UTF-8"));
+		}
+		catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+		return Long.toString(crc.getValue());
+	}
+
+	private String handlesTypesSignature() {
+		List<String> types = new ArrayList<String>();
+		for (Class<?> type : this.typeInitializerMap.keySet()) {
+			types.add(type.getName());
+		}
+		Collections.sort(types);
+		StringBuilder sb = new StringBuilder();
+		for (String type : types) {
+			sb.append(type).append(';');
+		}
+		return sb.toString();
+	}
+
+	private int countInitializerClasses() {
+		int count = 0;
+		for (Set<Class<?>> classes : this.initializerClassMap.values()) {
+			if (classes != null) {
+				count += classes.size();
+			}
+		}
+		return count;
+	}
+
+	private static void collectClassFiles(File directory, List<File> classFiles) {
+		File[] files = directory.listFiles();
+		if (files == null) {
+			return;
+		}
+		for (File file : files) {
+			if (file.isDirectory()) {
+				collectClassFiles(file, classFiles);
+			}
+			else if (file.getName().endsWith(".class")) {
+				classFiles.add(file);
+			}
+		}
+	}
+
+	private static byte[] readFile(File file) throws IOException {
+		byte[] bytes = new byte[(int) file.length()];
+		DataInputStream dis = new DataInputStream(new FileInputStream(file));
+		try {
+			dis.readFully(bytes);
+		}
+		finally {
+			dis.close();
+		}
+		return bytes;
+	}
+
+	private static JavaClass parse(byte[] bytes) throws IOException {
+		return new ClassParser(new ByteArrayInputStream(bytes)).parse();
+	}
+
+	private static String[] superTypes(JavaClass javaClass) {
+		String[] interfaceNames = javaClass.getInterfaceNames();
+		String[] superTypes = new String[interfaceNames.length + 1];
+		superTypes[0] = javaClass.getSuperclassName();
+		System.arraycopy(interfaceNames, 0, superTypes, 1, interfaceNames.length);
+		return superTypes;
+	}
+
+	static class ClassFileResult {
+		File file;
+
+		long size;
+
+		long lastModified;
+
+		long checksum;
+
+		boolean unchanged;
+
+		ClassScanCache.Entry cachedEntry;
+
+		JavaClass javaClass;
+
+		String className;
+
+		String[] superTypes;
+	}
+
+	private class ReadClassFileTask implements Callable<ClassFileResult> {
+
+		private final File file;
+
+		ReadClassFileTask(File file) {
+			this.file = file;
+		}
+
+		@Override
+		public ClassFileResult call() throws IOException {
+			ClassFileResult result = new ClassFileResult();
+			result.file = this.file;
+			result.size = this.file.length();
+			result.lastModified = this.file.lastModified();
+			result.cachedEntry = CachingContextConfig.this.classScanCache.get(this.file);
+
+			ClassScanCache.Entry cached = result.cachedEntry;
+			if (cached != null && cached.matches(result.size, result.lastModified)) {
+				result.unchanged = true;
+				result.checksum = cached.getChecksum();
+			}
+
+			if (!result.unchanged || cached.isRelevant()) {
+				byte[] bytes = readFile(this.file);
+				CRC32 crc = new CRC32();
+				crc.update(bytes);
+				result.checksum = crc.getValue();
+				result.size = bytes.length;
+				result.unchanged = cached != null && cached.getChecksum() == result.checksum;
+
+				if (!result.unchanged || cached.isRelevant()) {
+					result.javaClass = parse(bytes);
+				}
+			}
+
+			if (result.javaClass != null) {
+				result.className = result.javaClass.getClassName();
+				result.superTypes = superTypes(result.javaClass);
+			}
+			else {
+				result.className = cached.getClassName();
+				result.superTypes = cached.getSuperTypes();
+			}
+			return result;
+		}
+	}
+
+	private static class ScanThreadFactory implements ThreadFactory {
+
+		private final AtomicInteger threadNumber = new AtomicInteger(1);
+
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r,
+					"annotation-scan-" + this.threadNumber.getAndIncrement());
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+
+}
@@ -0,0 +1,209 @@
+/**
+ * Copyright 2012-2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.rasc.embeddedtc;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import javax.naming.NamingException;
+import javax.naming.directory.Attributes;
+
+import org.apache.naming.resources.FileDirContext;
+import org.apache.naming.resources.ResourceAttributes;
+
+/**
+ * FileDirContext that remembers the result of every file lookup (found and not found)
+ * instead of resolving and validating the path on the file system each time. A
+ * {@link DirectoryWatcher} clears the cache as soon as a file or directory in the
+ * document base is created, deleted or renamed. Every check of the watcher lists all
+ * directories of the document base, the interval should be long for large trees.
+ *
+ * @author Ralph Schaer
+ */
+public class CachingFileDirContext extends FileDirContext {
+
+	/**
+	 * Default number of milliseconds between two checks of the document base
+	 */
+	public static final long DEFAULT_WATCH_INTERVAL = 10000;
+
+	private static final Object NOT_FOUND = new Object();
+
+	private static final int MAX_CACHE_SIZE = 10000;
+
+	private final ConcurrentMap<String, Object> fileCache = new ConcurrentHashMap<String, Object>();
+
+	private long watchInterval = -1;
+
+	private final List<DirectoryWatcher> watchers = new CopyOnWriteArrayList<DirectoryWatcher>();
+
+	private volatile ResourceVersions resourceVersions;
+
+	/**
+	 * Enables the lookup cache
+	 *
+	 * @param watchInterval number of milliseconds between two checks of the document
+	 * base. A value less or equal 0 disables the cache.
+	 */
+	public void setWatchInterval(long watchInterval) {
+		this.watchInterval = watchInterval;
+	}
+
+	public long getWatchInterval() {
+		return this.watchInterval;
+	}
+
+	/**
+	 * Replaces the weak, modification time based ETags of the files with strong ETags
+	 * computed from the content and resolves fingerprinted paths. The watcher then also
+	 * checks the modification times of the files and discards the hashes of the
+	 * document base when a file changes. Without watch interval the watcher checks
+	 * every {@value #DEFAULT_WATCH_INTERVAL} milliseconds and the lookup cache stays
+	 * disabled.
+	 *
+	 * @param contentVersioning true to enable the content hashes
+	 *
+	 * @see ResourceVersions
+	 */
+	public void setContentVersioning(boolean contentVersioning) {
+		this.resourceVersions = contentVersioning ? new ResourceVersions(this) : null;
+	}
+
+	/**
+	 * @return the content hashes or null if content versioning is disabled
+	 */
+	public ResourceVersions getResourceVersions() {
+		return this.resourceVersions;
+	}
+
+	@Override
+	public void allocate() {
+		super.allocate();
+		startWatcher();
+	}
+
+	@Override
+	public void release() {
+		stopWatcher();
+		super.release();
+	}
+
+	protected synchronized void startWatcher() {
+		final ResourceVersions versions = this.resourceVersions;
+		long interval = this.watchInterval > 0 ? this.watchInterval
+				: versions != null ? DEFAULT_WATCH_INTERVAL : -1;
+		if (interval > 0 && this.watchers.isEmpty() && this.base != null) {
+			DirectoryWatcher.Listener listener = new DirectoryWatcher.Listener() {
+				@Override
+				public void changed(File root) {
+					CachingFileDirContext.this.fileCache.clear();
+					if (versions != null) {
+						versions.clear();
+					}
+				}
+			};
+			for (File directory : getWatchedDirectories()) {
+				// the hashes depend on the content, the lookups only on the names
+				DirectoryWatcher watcher = new DirectoryWatcher(directory, versions != null,
+						interval, listener);
+				watcher.start();
+				this.watchers.add(watcher);
+			}
+		}
+	}
+
+	protected synchronized void stopWatcher() {
+		for (DirectoryWatcher watcher : this.watchers) {
+			watcher.stop();
+		}
+		this.watchers.clear();
+		this.fileCache.clear();
+	}
+
+	/**
+	 * Returns the directories whose changes invalidate the lookup cache. Subclasses that
+	 * resolve files outside the document base have to add these locations.
+	 */
+	protected List<File> getWatchedDirectories() {
+		return Collections.singletonList(this.base);
+	}
+
+	@Override
+	protected Attributes doGetAttributes(String name, String[] attrIds)
+			throws NamingException {
+		Attributes attributes = super.doGetAttributes(name, attrIds);
+		ResourceVersions versions = this.resourceVersions;
+		if (versions != null && attributes instanceof ResourceAttributes) {
+			String etag = versions.getETag(file(name, true));
+			if (etag != null) {
+				((ResourceAttributes) attributes).setETag(etag);
+			}
+		}
+		return attributes;
+	}
+
+	@Override
+	protected File file(String name, boolean mustExist) {
+		if (!mustExist) {
+			return super.file(name, false);
+		}
+
+		if (this.watchInterval <= 0 || this.watchers.isEmpty()) {
+			return resolveFileOrVersion(name);
+		}
+
+		Object cached = this.fileCache.get(name);
+		if (cached == null) {
+			File file = resolveFileOrVersion(name);
+			if (file == null && this.resourceVersions != null
+					&& ResourceVersions.isVersionedPathSyntax(name)) {
+				// not cached, random fingerprints would flush the cache
+				return null;
+			}
+			if (this.fileCache.size() >= MAX_CACHE_SIZE) {
+				this.fileCache.clear();
+			}
+			this.fileCache.put(name, file != null ? file : NOT_FOUND);
+			return file;
+		}
+
+		return cached == NOT_FOUND ? null : (File) cached;
+	}
+
+	private File resolveFileOrVersion(String name) {
+		File file = resolveFile(name);
+		ResourceVersions versions = this.resourceVersions;
+		if (file == null && versions != null) {
+			return versions.resolve(name);
+		}
+		return file;
+	}
+
+	/**
+	 * Resolves the name to an existing file or directory
+	 *
+	 * @param name name of the resource, relative to the document base
+	 * @return the file or null if it does not exist
+	 */
+	protected File resolveFile(String name) {
+		return super.file(name, true);
+	}
+
+}
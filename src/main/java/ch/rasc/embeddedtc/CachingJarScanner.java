@@ -0,0 +1,88 @@
+/**
+ * Copyright 2012-2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.rasc.embeddedtc;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.JarURLConnection;
+import java.util.Set;
+
+import javax.servlet.ServletContext;
+
+import org.apache.tomcat.JarScannerCallback;
+import org.apache.tomcat.util.scan.StandardJarScanner;
+
+/**
+ * JarScanner that consults a {@link JarScanCache} and does not pass jars to the TLD
+ * scanners of Tomcat and Jasper that are known to contain no TLD files.
+ *
+ * @author Ralph Schaer
+ */
+public class CachingJarScanner extends StandardJarScanner {
+
+	private final JarScanCache cache;
+
+	public CachingJarScanner(JarScanCache cache) {
+		this.cache = cache;
+	}
+
+	@Override
+	public void scan(ServletContext context, ClassLoader classloader,
+			JarScannerCallback callback, Set<String> jarsToSkip) {
+
+		if (isTldCallback(callback)) {
+			super.scan(context, classloader, new TldCallback(callback), jarsToSkip);
+			this.cache.store();
+		}
+		else {
+			super.scan(context, classloader, callback, jarsToSkip);
+		}
+	}
+
+	private static boolean isTldCallback(JarScannerCallback callback) {
+		String className = callback.getClass().getName();
+		return className.equals("org.apache.catalina.startup.TldConfig$TldJarScannerCallback")
+				|| className.equals(
+						"org.apache.jasper.compiler.TldLocationsCache$TldJarScannerCallback");
+	}
+
+	private class TldCallback implements JarScannerCallback {
+
+		private final JarScannerCallback delegate;
+
+		TldCallback(JarScannerCallback delegate) {
+			this.delegate = delegate;
+		}
+
+		@Override
+		public void scan(JarURLConnection urlConn) throws IOException {
+			File jar = JarScanCache.toJarFile(urlConn.getURL());
+			if (jar != null) {
+				JarScanCache.Entry entry = CachingJarScanner.this.cache.getEntry(jar);
+				if (entry != null && !entry.has(JarScanCache.TLD)) {
+					return;
+				}
+			}
+			this.delegate.scan(urlConn);
+		}
+
+		@Override
+		public void scan(File file) throws IOException {
+			this.delegate.scan(file);
+		}
+	}
+
+}
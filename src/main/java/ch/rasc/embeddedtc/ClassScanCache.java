@@ -0,0 +1,271 @@
+/**
+ * Copyright 2012-2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.rasc.embeddedtc;
+
+import java.io.File;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Persistent cache that records per class file (keyed by absolute path) the result of
+ * the annotation scan. An entry stays valid as long as size and last modification time
+ * or, if the file was touched, the CRC32 checksum of the class file do not change.
+ *
+ * @author Ralph Schaer
+ */
+public class ClassScanCache {
+
+	private static final String HANDLES_TYPES_KEY = "@handlesTypes";
+
+	private static final String CLASSPATH_KEY = "@classpath";
+
+	private final File cacheFile;
+
+	private final ConcurrentMap<String, Entry> entries;
+
+	private volatile String handlesTypes;
+
+	private volatile boolean handlesTypesChanged;
+
+	private volatile String classpath;
+
+	private volatile boolean classpathChanged;
+
+	private volatile boolean modified;
+
+	public ClassScanCache(File cacheFile) {
+		this.cacheFile = cacheFile;
+		this.entries = new ConcurrentHashMap<String, Entry>();
+		this.handlesTypes = "";
+		this.handlesTypesChanged = false;
+		this.classpath = "";
+		this.classpathChanged = false;
+		this.modified = false;
+		load();
+	}
+
+	public Entry get(File classFile) {
+		return this.entries.get(classFile.getAbsolutePath());
+	}
+
+	public void put(File classFile, Entry entry) {
+		this.entries.put(classFile.getAbsolutePath(), entry);
+		this.modified = true;
+	}
+
+	/**
+	 * Removes the entries of all class files below the directory that are not in the
+	 * set of existing files
+	 *
+	 * @param directory the scanned directory
+	 * @param existingFiles absolute paths of all class files in the directory
+	 */
+	public void retain(File directory, Set<String> existingFiles) {
+		String prefix = directory.getAbsolutePath() + File.separator;
+		for (String path : this.entries.keySet()) {
+			if (path.startsWith(prefix) && !existingFiles.contains(path)) {
+				this.entries.remove(path);
+				this.modified = true;
+			}
+		}
+	}
+
+	/**
+	 * The result of the annotation scan depends on the @HandlesTypes types of the
+	 * ServletContainerInitializers. If the types differ from the ones the cache was built
+	 * with, no recorded result is trusted during this start.
+	 *
+	 * @param types signature of the current @HandlesTypes types
+	 */
+	public synchronized void setHandlesTypes(String types) {
+		if (!this.handlesTypes.equals(types)) {
+			this.handlesTypes = types;
+			this.handlesTypesChanged = true;
+			this.modified = true;
+		}
+	}
+
+	public boolean isHandlesTypesChanged() {
+		return this.handlesTypesChanged;
+	}
+
+	/**
+	 * Whether a class matches a @HandlesTypes annotation also depends on its super
+	 * types outside of the scanned directory, these are loaded from the jars of the
+	 * class path. If the jars differ from the ones the cache was built with, the
+	 * recorded results of unchanged classes are not trusted during this start.
+	 *
+	 * @param classpath signature of the current jars of the class path
+	 */
+	public synchronized void setClasspath(String classpath) {
+		if (!this.classpath.equals(classpath)) {
+			this.classpath = classpath;
+			this.classpathChanged = true;
+			this.modified = true;
+		}
+	}
+
+	public boolean isClasspathChanged() {
+		return this.classpathChanged;
+	}
+
+	/**
+	 * Writes the cache to disk if it was modified
+	 */
+	public synchronized void store() {
+		if (!this.modified) {
+			return;
+		}
+
+		Properties props = new Properties();
+		props.setProperty(HANDLES_TYPES_KEY, this.handlesTypes);
+		props.setProperty(CLASSPATH_KEY, this.classpath);
+		for (Map.Entry<String, Entry> entry : this.entries.entrySet()) {
+			props.setProperty(entry.getKey(), entry.getValue().toString());
+		}
+
+		if (PropertiesFile.store(this.cacheFile, props, "class scan cache")) {
+			this.modified = false;
+		}
+	}
+
+	private void load() {
+		Properties props = PropertiesFile.load(this.cacheFile, "class scan cache");
+		if (props == null) {
+			return;
+		}
+
+		for (String key : props.stringPropertyNames()) {
+			String value = props.getProperty(key);
+			if (HANDLES_TYPES_KEY.equals(key)) {
+				this.handlesTypes = value;
+			}
+			else if (CLASSPATH_KEY.equals(key)) {
+				this.classpath = value;
+			}
+			else {
+				Entry entry = Entry.parse(value);
+				if (entry != null) {
+					this.entries.put(key, entry);
+				}
+			}
+		}
+	}
+
+	public static class Entry {
+
+		private final long size;
+
+		private final long lastModified;
+
+		private final long checksum;
+
+		private final boolean relevant;
+
+		private final String className;
+
+		private final String[] superTypes;
+
+		/**
+		 * @param size size of the class file
+		 * @param lastModified last modification time of the class file
+		 * @param checksum CRC32 checksum of the class file
+		 * @param relevant true if the class is annotated with a servlet annotation or
+		 * matched a @HandlesTypes annotation
+		 * @param className the name of the class
+		 * @param superTypes names of the superclass and the directly implemented
+		 * interfaces
+		 */
+		public Entry(long size, long lastModified, long checksum, boolean relevant,
+				String className, String[] superTypes) {
+			this.size = size;
+			this.lastModified = lastModified;
+			this.checksum = checksum;
+			this.relevant = relevant;
+			this.className = className;
+			this.superTypes = superTypes;
+		}
+
+		static Entry parse(String value) {
+			String[] parts = value.split(",", -1);
+			if (parts.length != 6) {
+				return null;
+			}
+			try {
+				String[] superTypes = parts[5].length() == 0 ? new String[0]
+						: parts[5].split(";");
+				return new Entry(Long.parseLong(parts[0]), Long.parseLong(parts[1]),
+						Long.parseLong(parts[2]), Boolean.parseBoolean(parts[3]), parts[4],
+						superTypes);
+			}
+			catch (NumberFormatException e) {
+				return null;
+			}
+		}
+
+		public boolean matches(long fileSize, long fileLastModified) {
+			return this.size == fileSize && this.lastModified == fileLastModified;
+		}
+
+		public long getChecksum() {
+			return this.checksum;
+		}
+
+		public boolean isRelevant() {
+			return this.relevant;
+		}
+
+		public String getClassName() {
+			return this.className;
+		}
+
+		public String[] getSuperTypes() {
+			return this.superTypes;
+		}
+
+		/**
+		 * Returns a copy of this entry with a new last modification time
+		 *
+		 * @param fileLastModified the new last modification time
+		 * @return the new entry
+		 */
+		public Entry touch(long fileLastModified) {
+			return new Entry(this.size, fileLastModified, this.checksum, this.relevant,
+					this.className, this.superTypes);
+		}
+
+		@Override
+		public String toString() {
+			StringBuilder sb = new StringBuilder();
+			sb.append(this.size).append(',');
+			sb.append(this.lastModified).append(',');
+			sb.append(this.checksum).append(',');
+			sb.append(this.relevant).append(',');
+			sb.append(this.className).append(',');
+			for (int i = 0; i < this.superTypes.length; i++) {
+				if (i > 0) {
+					sb.append(';');
+				}
+				sb.append(this.superTypes[i]);
+			}
+			return sb.toString();
+		}
+	}
+
+}
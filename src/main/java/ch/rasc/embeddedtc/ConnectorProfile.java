@@ -0,0 +1,105 @@
+/**
+ * Copyright 2012-2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.rasc.embeddedtc;
+
+import org.apache.catalina.connector.Connector;
+
+/**
+ * Named sets of connector settings that are applied together to every connector of the
+ * embedded Tomcat.
+ *
+ * @author Ralph Schaer
+ * @see EmbeddedTomcat#setConnectorProfile(ConnectorProfile)
+ */
+public enum ConnectorProfile {
+
+	/**
+	 * Optimized for many requests over long lived connections. Unlimited keep-alive
+	 * requests, a long accept queue, big socket buffers and an unbounded processor
+	 * cache.
+	 */
+	THROUGHPUT(60000, -1, 1000, 65536, true, -1),
+
+	/**
+	 * Optimized for short response times. Small socket buffers, a short accept queue so
+	 * overload is signaled early instead of piling up connections, and a limited number
+	 * of keep-alive requests per connection.
+	 */
+	LOW_LATENCY(15000, 100, 50, 8192, true, 200);
+
+	private final int keepAliveTimeout;
+
+	private final int maxKeepAliveRequests;
+
+	private final int acceptCount;
+
+	private final int socketBufferSize;
+
+	private final boolean tcpNoDelay;
+
+	private final int processorCache;
+
+	private ConnectorProfile(int keepAliveTimeout, int maxKeepAliveRequests,
+			int acceptCount, int socketBufferSize, boolean tcpNoDelay, int processorCache) {
+		this.keepAliveTimeout = keepAliveTimeout;
+		this.maxKeepAliveRequests = maxKeepAliveRequests;
+		this.acceptCount = acceptCount;
+		this.socketBufferSize = socketBufferSize;
+		this.tcpNoDelay = tcpNoDelay;
+		this.processorCache = processorCache;
+	}
+
+	/**
+	 * Sets the properties of this profile on the connector
+	 *
+	 * @param connector the connector to configure
+	 */
+	public void applyTo(Connector connector) {
+		connector.setProperty("keepAliveTimeout", String.valueOf(this.keepAliveTimeout));
+		connector.setProperty("maxKeepAliveRequests",
+				String.valueOf(this.maxKeepAliveRequests));
+		connector.setProperty("acceptCount", String.valueOf(this.acceptCount));
+		connector.setProperty("socket.rxBufSize", String.valueOf(this.socketBufferSize));
+		connector.setProperty("socket.txBufSize", String.valueOf(this.socketBufferSize));
+		connector.setProperty("tcpNoDelay", String.valueOf(this.tcpNoDelay));
+		connector.setProperty("processorCache", String.valueOf(this.processorCache));
+	}
+
+	public int getKeepAliveTimeout() {
+		return this.keepAliveTimeout;
+	}
+
+	public int getMaxKeepAliveRequests() {
+		return this.maxKeepAliveRequests;
+	}
+
+	public int getAcceptCount() {
+		return this.acceptCount;
+	}
+
+	public int getSocketBufferSize() {
+		return this.socketBufferSize;
+	}
+
+	public boolean isTcpNoDelay() {
+		return this.tcpNoDelay;
+	}
+
+	public int getProcessorCache() {
+		return this.processorCache;
+	}
+
+}
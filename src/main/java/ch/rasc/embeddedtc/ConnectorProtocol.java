@@ -0,0 +1,75 @@
+/**
+ * Copyright 2012-2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.rasc.embeddedtc;
+
+/**
+ * The protocol handler implementations an embedded Tomcat connector can use.
+ *
+ * @author Ralph Schaer
+ * @see EmbeddedTomcat#setProtocol(ConnectorProtocol)
+ */
+public enum ConnectorProtocol {
+
+	/**
+	 * Blocking Java connector (org.apache.coyote.http11.Http11Protocol)
+	 */
+	BIO("org.apache.coyote.http11.Http11Protocol"),
+
+	/**
+	 * Non blocking Java connector (org.apache.coyote.http11.Http11NioProtocol)
+	 */
+	NIO("org.apache.coyote.http11.Http11NioProtocol"),
+
+	/**
+	 * Asynchronous Java connector (org.apache.coyote.http11.Http11Nio2Protocol). Tomcat 7
+	 * does not ship this connector, the embedded Tomcat falls back to {@link #NIO} if the
+	 * class is not available.
+	 */
+	NIO2("org.apache.coyote.http11.Http11Nio2Protocol"),
+
+	/**
+	 * Native connector (org.apache.coyote.http11.Http11AprProtocol). Requires the Tomcat
+	 * native library. The embedded Tomcat falls back to {@link #NIO} if the
+	 * AprLifecycleListener does not find the library.
+	 */
+	APR("org.apache.coyote.http11.Http11AprProtocol");
+
+	private final String protocolHandlerClassName;
+
+	private ConnectorProtocol(String protocolHandlerClassName) {
+		this.protocolHandlerClassName = protocolHandlerClassName;
+	}
+
+	public String getProtocolHandlerClassName() {
+		return this.protocolHandlerClassName;
+	}
+
+	/**
+	 * Checks if the protocol handler class is on the classpath
+	 *
+	 * @return true if the protocol handler class can be loaded
+	 */
+	public boolean isClassAvailable() {
+		try {
+			Class.forName(this.protocolHandlerClassName);
+			return true;
+		}
+		catch (ClassNotFoundException e) {
+			return false;
+		}
+	}
+
+}
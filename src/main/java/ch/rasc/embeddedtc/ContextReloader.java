@@ -0,0 +1,164 @@
+/**
+ * Copyright 2012-2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.rasc.embeddedtc;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.catalina.Context;
+import org.apache.catalina.Lifecycle;
+import org.apache.catalina.LifecycleEvent;
+import org.apache.catalina.LifecycleListener;
+import org.apache.juli.logging.Log;
+import org.apache.juli.logging.LogFactory;
+
+/**
+ * Server lifecycle listener that watches the class directories of a context and
+ * reloads only this context when a class file changes. Connectors and the other
+ * contexts keep running. Changes are debounced: the reload starts after no further
+ * change was detected for the configured period, so a rebuild that writes many files
+ * triggers only one reload. The period must not be shorter than the watch interval,
+ * otherwise the reload starts before the next check could see the rest of the
+ * rebuild.
+ *
+ * @author Ralph Schaer
+ */
+public class ContextReloader implements LifecycleListener {
+
+	private static final Log log = LogFactory.getLog(ContextReloader.class);
+
+	private final Context context;
+
+	private final List<File> directories;
+
+	private final long watchInterval;
+
+	private final long debounce;
+
+	private final List<DirectoryWatcher> watchers = new ArrayList<DirectoryWatcher>();
+
+	private ScheduledExecutorService scheduler;
+
+	private ScheduledFuture<?> pendingReload;
+
+	/**
+	 * @param context the context that is reloaded
+	 * @param directories the directories that are watched
+	 * @param watchInterval number of milliseconds between two checks of the directories
+	 * @param debounce number of milliseconds without a change before the context is
+	 * reloaded, must be greater than or equal to watchInterval
+	 */
+	public ContextReloader(Context context, List<File> directories, long watchInterval,
+			long debounce) {
+		if (debounce < watchInterval) {
+			throw new IllegalArgumentException(
+					"debounce must be greater than or equal to watchInterval");
+		}
+		this.context = context;
+		this.directories = new ArrayList<File>(directories);
+		this.watchInterval = watchInterval;
+		this.debounce = debounce;
+	}
+
+	@Override
+	public void lifecycleEvent(LifecycleEvent event) {
+		if (Lifecycle.AFTER_START_EVENT.equals(event.getType())) {
+			start();
+		}
+		else if (Lifecycle.BEFORE_STOP_EVENT.equals(event.getType())) {
+			stop();
+		}
+	}
+
+	public synchronized void start() {
+		if (this.scheduler != null) {
+			return;
+		}
+
+		this.scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r,
+						"ContextReloader[" + ContextReloader.this.context.getName() + "]");
+				thread.setDaemon(true);
+				thread.setContextClassLoader(ContextReloader.class.getClassLoader());
+				return thread;
+			}
+		});
+
+		DirectoryWatcher.Listener listener = new DirectoryWatcher.Listener() {
+			@Override
+			public void changed(File root) {
+				scheduleReload();
+			}
+		};
+		for (File directory : this.directories) {
+			if (directory.isDirectory()) {
+				DirectoryWatcher watcher = new DirectoryWatcher(directory, true,
+						this.watchInterval, listener);
+				watcher.start();
+				this.watchers.add(watcher);
+			}
+		}
+	}
+
+	public synchronized void stop() {
+		for (DirectoryWatcher watcher : this.watchers) {
+			watcher.stop();
+		}
+		this.watchers.clear();
+
+		if (this.scheduler != null) {
+			this.scheduler.shutdownNow();
+			this.scheduler = null;
+			this.pendingReload = null;
+		}
+	}
+
+	synchronized void scheduleReload() {
+		if (this.scheduler == null) {
+			return;
+		}
+		if (this.pendingReload != null) {
+			this.pendingReload.cancel(false);
+		}
+		this.pendingReload = this.scheduler.schedule(new Runnable() {
+			@Override
+			public void run() {
+				reload();
+			}
+		}, this.debounce, TimeUnit.MILLISECONDS);
+	}
+
+	private void reload() {
+		long start = System.currentTimeMillis();
+		try {
+			this.context.reload();
+			log.info("Reloaded context [" + this.context.getName() + "] in "
+					+ (System.currentTimeMillis() - start) + " ms");
+		}
+		catch (RuntimeException e) {
+			log.error("Reloading context [" + this.context.getName() + "] failed", e);
+		}
+	}
+
+}
@@ -0,0 +1,210 @@
+/**
+ * Copyright 2012-2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.rasc.embeddedtc;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.catalina.deploy.ContextResource;
+import org.apache.tomcat.jdbc.pool.PoolProperties;
+
+/**
+ * Typed configuration of a tomcat-jdbc connection pool
+ * (org.apache.tomcat.jdbc.pool.DataSource) that is registered in JNDI under
+ * java:comp/env/<i>name</i>.
+ *
+ * <pre>
+ * embeddedTomcat.addDataSource(new DataSourceBuilder(&quot;jdbc/ds&quot;)
+ * 		.setDriverClassName(&quot;org.h2.Driver&quot;).setUrl(&quot;jdbc:h2:&tilde;/mydb&quot;)
+ * 		.setUsername(&quot;sa&quot;).setPassword(&quot;&quot;).setInitialSize(10).setMaxActive(20));
+ * </pre>
+ *
+ * The initial connections are opened in parallel while the web application starts,
+ * before the connectors accept requests. Properties without a typed setter can be set
+ * with {@link #setProperty(String, String)}, see the tomcat-jdbc documentation for
+ * the names.
+ *
+ * @author Ralph Schaer
+ * @see EmbeddedTomcat#addDataSource(DataSourceBuilder)
+ */
+public class DataSourceBuilder {
+
+	private static final String FACTORY = "org.apache.tomcat.jdbc.pool.DataSourceFactory";
+
+	private final String name;
+
+	private final Map<String, String> properties = new LinkedHashMap<String, String>();
+
+	private int initialSize = 0;
+
+	private boolean parallelPrewarm = true;
+
+	/**
+	 * @param name the JNDI name relative to java:comp/env, e.g. jdbc/ds
+	 */
+	public DataSourceBuilder(String name) {
+		this.name = name;
+	}
+
+	public String getName() {
+		return this.name;
+	}
+
+	public DataSourceBuilder setUrl(String url) {
+		return setProperty("url", url);
+	}
+
+	public DataSourceBuilder setDriverClassName(String driverClassName) {
+		return setProperty("driverClassName", driverClassName);
+	}
+
+	public DataSourceBuilder setUsername(String username) {
+		return setProperty("username", username);
+	}
+
+	public DataSourceBuilder setPassword(String password) {
+		return setProperty("password", password);
+	}
+
+	/**
+	 * Number of connections opened during the startup, at most maxActive. Default 0
+	 */
+	public DataSourceBuilder setInitialSize(int initialSize) {
+		this.initialSize = initialSize;
+		return this;
+	}
+
+	public int getInitialSize() {
+		return this.initialSize;
+	}
+
+	public DataSourceBuilder setMaxActive(int maxActive) {
+		return setProperty("maxActive", String.valueOf(maxActive));
+	}
+
+	/**
+	 * @return the maxActive property, the default of the pool if it is not set or not
+	 * a number
+	 */
+	public int getMaxActive() {
+		String maxActive = this.properties.get("maxActive");
+		if (maxActive != null) {
+			try {
+				return Integer.parseInt(maxActive.trim());
+			}
+			catch (NumberFormatException e) {
+				// the pool ignores it as well
+			}
+		}
+		return PoolProperties.DEFAULT_MAX_ACTIVE;
+	}
+
+	/**
+	 * @return the number of initial connections, at most maxActive
+	 */
+	int getEffectiveInitialSize() {
+		return Math.min(this.initialSize, getMaxActive());
+	}
+
+	public DataSourceBuilder setMaxIdle(int maxIdle) {
+		return setProperty("maxIdle", String.valueOf(maxIdle));
+	}
+
+	public DataSourceBuilder setMinIdle(int minIdle) {
+		return setProperty("minIdle", String.valueOf(minIdle));
+	}
+
+	/**
+	 * Maximum time in milliseconds to wait for a free connection
+	 */
+	public DataSourceBuilder setMaxWait(int maxWait) {
+		return setProperty("maxWait", String.valueOf(maxWait));
+	}
+
+	public DataSourceBuilder setValidationQuery(String validationQuery) {
+		return setProperty("validationQuery", validationQuery);
+	}
+
+	public DataSourceBuilder setTestOnBorrow(boolean testOnBorrow) {
+		return setProperty("testOnBorrow", String.valueOf(testOnBorrow));
+	}
+
+	public DataSourceBuilder setTestWhileIdle(boolean testWhileIdle) {
+		return setProperty("testWhileIdle", String.valueOf(testWhileIdle));
+	}
+
+	public DataSourceBuilder setDefaultAutoCommit(boolean defaultAutoCommit) {
+		return setProperty("defaultAutoCommit", String.valueOf(defaultAutoCommit));
+	}
+
+	/**
+	 * @param jdbcInterceptors semicolon separated list of JdbcInterceptor class names
+	 */
+	public DataSourceBuilder setJdbcInterceptors(String jdbcInterceptors) {
+		return setProperty("jdbcInterceptors", jdbcInterceptors);
+	}
+
+	/**
+	 * Opens the initial connections in parallel during the startup (default). If false
+	 * the pool opens them one after another on the first lookup.
+	 */
+	public DataSourceBuilder setParallelPrewarm(boolean parallelPrewarm) {
+		this.parallelPrewarm = parallelPrewarm;
+		return this;
+	}
+
+	public boolean isParallelPrewarm() {
+		return this.parallelPrewarm;
+	}
+
+	/**
+	 * Sets any property of org.apache.tomcat.jdbc.pool.PoolProperties
+	 */
+	public DataSourceBuilder setProperty(String propertyName, String value) {
+		this.properties.put(propertyName, value);
+		return this;
+	}
+
+	/**
+	 * @param statistics records the statement and borrow times, may be null
+	 */
+	ContextResource toContextResource(JdbcStatistics statistics) {
+		ContextResource resource = new ContextResource();
+		resource.setName(this.name);
+		resource.setType("javax.sql.DataSource");
+		resource.setAuth("Container");
+		resource.setProperty("factory", FACTORY);
+		for (Map.Entry<String, String> entry : this.properties.entrySet()) {
+			resource.setProperty(entry.getKey(), entry.getValue());
+		}
+		if (statistics != null) {
+			resource.setProperty("factory",
+					JdbcStatisticsDataSourceFactory.class.getName());
+			resource.setProperty("statistics", statistics.getKey());
+			String interceptor = JdbcStatisticsInterceptor.class.getName()
+					+ "(statistics=" + statistics.getKey() + ")";
+			String interceptors = this.properties.get("jdbcInterceptors");
+			resource.setProperty("jdbcInterceptors",
+					interceptors != null && interceptors.trim().length() > 0
+							? interceptors + ";" + interceptor : interceptor);
+		}
+		// the prewarmer opens the initial connections in parallel
+		resource.setProperty("initialSize",
+				String.valueOf(this.parallelPrewarm ? 0 : getEffectiveInitialSize()));
+		return resource;
+	}
+
+}
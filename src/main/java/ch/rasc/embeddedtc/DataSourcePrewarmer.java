@@ -0,0 +1,169 @@
+/**
+ * Copyright 2012-2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.rasc.embeddedtc;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.naming.InitialContext;
+import javax.naming.NamingException;
+import javax.servlet.ServletContainerInitializer;
+import javax.servlet.ServletContext;
+import javax.sql.DataSource;
+
+import org.apache.juli.logging.Log;
+import org.apache.juli.logging.LogFactory;
+
+/**
+ * Looks up the configured data sources and opens their initial connections in
+ * parallel. Runs as ServletContainerInitializer: after the naming context is created
+ * and before the ServletContextListeners and the connectors start.
+ *
+ * @author Ralph Schaer
+ */
+class DataSourcePrewarmer implements ServletContainerInitializer {
+
+	private static final Log log = LogFactory.getLog(DataSourcePrewarmer.class);
+
+	/**
+	 * Maximum number of threads that open the connections of one data source
+	 */
+	private static final int MAX_THREADS = 8;
+
+	private final List<DataSourceBuilder> dataSources;
+
+	private final boolean silent;
+
+	DataSourcePrewarmer(List<DataSourceBuilder> dataSources, boolean silent) {
+		this.dataSources = dataSources;
+		this.silent = silent;
+	}
+
+	@Override
+	public void onStartup(Set<Class<?>> classes, ServletContext servletContext) {
+		for (DataSourceBuilder dataSource : this.dataSources) {
+			int connections = dataSource.getEffectiveInitialSize();
+			if (dataSource.isParallelPrewarm() && connections > 0) {
+				prewarm(dataSource.getName(), connections);
+			}
+		}
+	}
+
+	private void prewarm(String name, int connections) {
+		long start = System.currentTimeMillis();
+		DataSource dataSource;
+		try {
+			dataSource = (DataSource) new InitialContext().lookup("java:comp/env/" + name);
+		}
+		catch (NamingException e) {
+			log.error("Lookup of data source " + name + " failed", e);
+			return;
+		}
+
+		List<Callable<Connection>> tasks = new ArrayList<Callable<Connection>>(
+				connections);
+		for (int i = 0; i < connections; i++) {
+			tasks.add(new GetConnectionTask(dataSource));
+		}
+
+		// every task keeps its connection until all tasks are finished, this forces
+		// the pool to open a new connection for every task. connections is at most
+		// maxActive, otherwise the remaining tasks would wait maxWait for a connection.
+		List<Connection> opened = new ArrayList<Connection>(connections);
+		ExecutorService executorService = Executors.newFixedThreadPool(
+				Math.min(connections, MAX_THREADS), new PrewarmThreadFactory(name));
+		try {
+			for (Future<Connection> future : executorService.invokeAll(tasks)) {
+				try {
+					opened.add(future.get());
+				}
+				catch (ExecutionException e) {
+					log.warn("Opening a connection of " + name + " failed", e.getCause());
+				}
+			}
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		finally {
+			executorService.shutdown();
+			for (Connection connection : opened) {
+				try {
+					// returns the connection to the pool
+					connection.close();
+				}
+				catch (SQLException e) {
+					log.warn("Returning a connection of " + name + " failed", e);
+				}
+			}
+		}
+
+		if (!this.silent) {
+			log.info("Opened " + opened.size() + " connections of " + name + " in "
+					+ (System.currentTimeMillis() - start) + " ms");
+		}
+	}
+
+	private static class GetConnectionTask implements Callable<Connection> {
+		private final DataSource dataSource;
+
+		GetConnectionTask(DataSource dataSource) {
+			this.dataSource = dataSource;
+		}
+
+		@Override
+		public Connection call() throws SQLException {
+			return this.dataSource.getConnection();
+		}
+	}
+
+	/**
+	 * Creates threads with the class loader of the web application, the pool loads the
+	 * JDBC driver with it
+	 */
+	private static class PrewarmThreadFactory implements ThreadFactory {
+		private final AtomicInteger threadNumber = new AtomicInteger(1);
+
+		private final String name;
+
+		private final ClassLoader classLoader;
+
+		PrewarmThreadFactory(String name) {
+			this.name = name;
+			this.classLoader = Thread.currentThread().getContextClassLoader();
+		}
+
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r,
+					"prewarm-" + this.name + "-" + this.threadNumber.getAndIncrement());
+			thread.setDaemon(true);
+			thread.setContextClassLoader(this.classLoader);
+			return thread;
+		}
+	}
+
+}
@@ -0,0 +1,150 @@
+/**
+ * Copyright 2012-2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.rasc.embeddedtc;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.juli.logging.Log;
+import org.apache.juli.logging.LogFactory;
+
+/**
+ * Watches a directory tree in a background thread and notifies a listener when the
+ * tree changes. The watcher compares the names of all files and directories and the
+ * last modification times of all directories (and optionally all files) in the tree,
+ * so lookups do not have to check the file system themselves. A check lists every directory and reads the modification time of
+ * every directory (and file), its cost grows with the size of the tree.
+ *
+ * @author Ralph Schaer
+ */
+public class DirectoryWatcher implements Runnable {
+
+	private static final Log log = LogFactory.getLog(DirectoryWatcher.class);
+
+	public interface Listener {
+		void changed(File root);
+	}
+
+	private final File root;
+
+	private final boolean watchFiles;
+
+	private final long intervalMillis;
+
+	private final Listener listener;
+
+	private Map<String, Long> snapshot;
+
+	private Thread thread;
+
+	/**
+	 * @param root the root of the directory tree
+	 * @param watchFiles if true changes of file contents are detected too, otherwise
+	 * only files and directories that are created, deleted or renamed
+	 * @param intervalMillis number of milliseconds between two checks
+	 * @param listener the listener that is notified after a change
+	 */
+	public DirectoryWatcher(File root, boolean watchFiles, long intervalMillis,
+			Listener listener) {
+		this.root = root;
+		this.watchFiles = watchFiles;
+		this.intervalMillis = intervalMillis;
+		this.listener = listener;
+	}
+
+	public synchronized void start() {
+		if (this.thread == null) {
+			this.snapshot = takeSnapshot();
+			this.thread = new Thread(this, "DirectoryWatcher[" + this.root.getPath() + "]");
+			this.thread.setDaemon(true);
+			// do not pin the class loader of the web application that started the watcher
+			this.thread.setContextClassLoader(DirectoryWatcher.class.getClassLoader());
+			this.thread.start();
+		}
+	}
+
+	public synchronized void stop() {
+		if (this.thread != null) {
+			this.thread.interrupt();
+			this.thread = null;
+		}
+	}
+
+	@Override
+	public void run() {
+		Thread currentThread = Thread.currentThread();
+		while (!currentThread.isInterrupted()) {
+			try {
+				Thread.sleep(this.intervalMillis);
+			}
+			catch (InterruptedException e) {
+				return;
+			}
+			check();
+		}
+	}
+
+	/**
+	 * Compares the directory tree with the last snapshot and notifies the listener if
+	 * something changed
+	 *
+	 * @return true if the tree changed since the last check
+	 */
+	public boolean check() {
+		Map<String, Long> newSnapshot = takeSnapshot();
+		synchronized (this) {
+			if (newSnapshot.equals(this.snapshot)) {
+				return false;
+			}
+			this.snapshot = newSnapshot;
+		}
+
+		try {
+			this.listener.changed(this.root);
+		}
+		catch (RuntimeException e) {
+			log.error("Directory change listener failed", e);
+		}
+		return true;
+	}
+
+	private Map<String, Long> takeSnapshot() {
+		Map<String, Long> newSnapshot = new HashMap<String, Long>();
+		collect(this.root, newSnapshot);
+		return newSnapshot;
+	}
+
+	private void collect(File directory, Map<String, Long> newSnapshot) {
+		newSnapshot.put(directory.getPath(), directory.lastModified());
+		File[] files = directory.listFiles();
+		if (files == null) {
+			return;
+		}
+		for (File file : files) {
+			if (file.isDirectory()) {
+				collect(file, newSnapshot);
+			}
+			else {
+				// the names detect new files even when the modification time of the
+				// directory did not change because it has a coarse resolution
+				newSnapshot.put(file.getPath(),
+						this.watchFiles ? file.lastModified() : 0L);
+			}
+		}
+	}
+
+}
@@ -17,42 +17,61 @@ package ch.rasc.embeddedtc;
 
 import java.io.File;
 import java.io.IOException;
-import java.io.OutputStream;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.net.MalformedURLException;
 import java.net.ServerSocket;
-import java.net.Socket;
 import java.net.URL;
-import java.net.UnknownHostException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
 
+import javax.servlet.ServletContainerInitializer;
+import javax.servlet.ServletContext;
 import javax.servlet.ServletException;
 
+import org.apache.catalina.Container;
 import org.apache.catalina.Context;
+import org.apache.catalina.Executor;
+import org.apache.catalina.Host;
+import org.apache.catalina.Lifecycle;
 import org.apache.catalina.LifecycleEvent;
 import org.apache.catalina.LifecycleException;
 import org.apache.catalina.LifecycleListener;
 import org.apache.catalina.LifecycleState;
 import org.apache.catalina.Server;
+import org.apache.catalina.Service;
+import org.apache.catalina.Wrapper;
 import org.apache.catalina.connector.Connector;
 import org.apache.catalina.core.AprLifecycleListener;
 import org.apache.catalina.core.JasperListener;
 import org.apache.catalina.core.JreMemoryLeakPreventionListener;
+import org.apache.catalina.core.StandardContext;
 import org.apache.catalina.core.StandardServer;
+import org.apache.catalina.core.StandardThreadExecutor;
 import org.apache.catalina.core.ThreadLocalLeakPreventionListener;
 import org.apache.catalina.deploy.ApplicationParameter;
 import org.apache.catalina.deploy.ContextEnvironment;
 import org.apache.catalina.deploy.ContextResource;
 import org.apache.catalina.deploy.NamingResources;
+import org.apache.catalina.loader.WebappLoader;
 import org.apache.catalina.mbeans.GlobalResourcesLifecycleListener;
+import org.apache.catalina.servlets.DefaultServlet;
+import org.apache.catalina.session.PersistentManager;
 import org.apache.catalina.session.StandardManager;
 import org.apache.catalina.startup.CatalinaProperties;
+import org.apache.catalina.startup.ContextConfig;
 import org.apache.catalina.startup.Tomcat;
+import org.apache.catalina.util.ContextName;
+import org.apache.coyote.AbstractProtocol;
+import org.apache.coyote.ProtocolHandler;
 import org.apache.juli.logging.Log;
 import org.apache.juli.logging.LogFactory;
+import org.apache.naming.resources.BaseDirContext;
 
 /**
  * Helper class to simplify setting up a Embedded Tomcat in a IDE and with a Maven web
@@ -88,26 +107,108 @@ public class EmbeddedTomcat {
 
 	private String contextDirectory;
 
+	private final List<String> classesDirectories = new ArrayList<String>();
+
+	private final List<String> resourceDirectories = new ArrayList<String>();
+
+	private final List<Webapp> webapps = new ArrayList<Webapp>();
+
+	private final List<DataSourceBuilder> dataSources = new ArrayList<DataSourceBuilder>();
+
+	private Integer startStopThreads;
+
 	private String skipJarsDefaultJarScanner;
 
 	private String skipJarsContextConfig;
 
 	private String skipJarsTldConfig;
 
+	private boolean useJarScanCache = false;
+
+	private boolean learnSkipJars = false;
+
+	private int classScanThreads = 0;
+
+	private long resourceWatchInterval = -1;
+
+	private long reloadWatchInterval = -1;
+
+	private long reloadDebounce;
+
 	private boolean privileged;
 
 	private boolean silent;
 
 	private boolean addDefaultListeners = false;
 
-	private boolean useNio = false;
+	private boolean recordLatency = false;
+
+	private boolean prometheusMetrics = false;
+
+	private LatencyValve latencyValve;
+
+	private long responseCacheMaxSize = -1;
+
+	private int responseCacheMaxEntrySize;
+
+	private ResponseCacheValve responseCacheValve;
+
+	private boolean accessLog = false;
+
+	private String accessLogDirectory;
+
+	private int accessLogBufferSize;
+
+	private AccessLogOverflowPolicy accessLogOverflowPolicy;
+
+	private AsyncAccessLogValve accessLogValve;
+
+	private boolean profileStartup = false;
+
+	private boolean recordJdbcStatistics = false;
+
+	private List<JdbcStatistics> jdbcStatistics;
+
+	private boolean persistentSessions = false;
+
+	private Integer maxActiveSessions;
+
+	private long maxSessionMemory = -1;
+
+	private SessionEvictionPolicy sessionEvictionPolicy;
+
+	private StartupReport startupReport;
+
+	private ConnectorProtocol protocol;
+
+	private ConnectorProfile connectorProfile;
 
 	private int compressionMinSize = -1;
 
 	private String compressableMimeType;
 
+	private boolean precompression = false;
+
+	private int sendfileSize = -1;
+
+	private boolean resourceVersioning = false;
+
 	private boolean enableNaming = false;
 
+	private int executorMaxThreads = -1;
+
+	private int executorMinSpareThreads = 25;
+
+	private int executorMaxIdleTime = 60000;
+
+	private int executorMaxQueueSize = Integer.MAX_VALUE;
+
+	private String executorNamePrefix = null;
+
+	private boolean useVirtualThreads = false;
+
+	private Executor executor;
+
 	private final List<ContextEnvironment> contextEnvironments;
 
 	private final List<ContextResource> contextResources;
@@ -118,6 +219,14 @@ public class EmbeddedTomcat {
 
 	private Tomcat tomcat;
 
+	private ShutdownListener shutdownListener;
+
+	/**
+	 * Counted down when the server has stopped. With a ShutdownListener
+	 * startAndWait() waits for this latch instead of Server.await()
+	 */
+	private volatile CountDownLatch shutdownLatch;
+
 	/**
 	 * Starts a embedded Tomcat on port 8080 with context path "" and context directory
 	 * current directory + /src/main/webapp
@@ -338,6 +447,65 @@ public class EmbeddedTomcat {
 		return this;
 	}
 
+	/**
+	 * Adds a directory that is mapped to /WEB-INF/classes. Can be called multiple times,
+	 * for example with the target/classes directories of the sibling modules of a
+	 * multi-module build. The directories are scanned for annotations in the order they
+	 * were added. Directories that are not part of the classpath of the JVM are added to
+	 * the class loader of the web application.
+	 * <p>
+	 * If this method is never called ./target/classes is used
+	 *
+	 * @param classesDirectory Path name of a directory with class files
+	 * @return The embedded Tomcat
+	 */
+	public EmbeddedTomcat addClassesDirectory(String classesDirectory) {
+		this.classesDirectories.add(classesDirectory);
+		return this;
+	}
+
+	/**
+	 * Adds a directory that is overlaid behind the context directory. A resource that
+	 * does not exist in the context directory is looked up in the resource directories in
+	 * the order they were added, for example the src/main/webapp directory of a web
+	 * module this application depends on.
+	 *
+	 * @param resourceDirectory Path name of a directory with web resources
+	 * @return The embedded Tomcat
+	 */
+	public EmbeddedTomcat addResourceDirectory(String resourceDirectory) {
+		this.resourceDirectories.add(resourceDirectory);
+		return this;
+	}
+
+	/**
+	 * Adds an additional web application. All web applications share the connectors,
+	 * the executor and the JVM. They are started in parallel, the number of threads can
+	 * be changed with {@link #setStartStopThreads(int)}.
+	 *
+	 * @param webapp configuration of the web application
+	 * @return The embedded Tomcat
+	 */
+	public EmbeddedTomcat addWebapp(Webapp webapp) {
+		this.webapps.add(webapp);
+		return this;
+	}
+
+	/**
+	 * Sets the number of threads the host uses to start and stop the web applications in
+	 * parallel. 0 means number of available processors, negative values are subtracted
+	 * from the number of available processors. Default is 1 with only one web application
+	 * and one thread per web application if web applications were added with
+	 * {@link #addWebapp(Webapp)}.
+	 *
+	 * @param threads number of start stop threads
+	 * @return The embedded Tomcat
+	 */
+	public EmbeddedTomcat setStartStopThreads(int threads) {
+		this.startStopThreads = threads;
+		return this;
+	}
+
 	/**
 	 * List of JAR files that should not be scanned using the JarScanner functionality.
 	 * This is typically used to scan JARs for configuration information. JARs that do not
@@ -390,6 +558,369 @@ public class EmbeddedTomcat {
 		return this;
 	}
 
+	/**
+	 * Enables a persistent cache in the temporary directory (file jarscan.cache) that
+	 * records per jar (keyed by path, size and last modification time) the web
+	 * fragments, TLDs, ServletContainerInitializers and annotations found during
+	 * startup. On the next start the TLD scan is skipped for unchanged jars that contain
+	 * no TLDs and the annotation scan is skipped for unchanged jars that contained no
+	 * annotated classes.
+	 *
+	 * @return The embedded Tomcat
+	 */
+	public EmbeddedTomcat enableJarScanCache() {
+		this.useJarScanCache = true;
+		return this;
+	}
+
+	/**
+	 * Records which jars provided web fragments, TLDs, ServletContainerInitializers,
+	 * resources or annotations during startup and adds the jars that did not to the
+	 * skip lists on the next start. Jars without TLDs are appended to the
+	 * TldConfig.jarsToSkip list, jars without pluggability features to the
+	 * ContextConfig.jarsToSkip list and jars that provide nothing to the
+	 * DefaultJarScanner.jarsToSkip list. A jar that changes (size or last modification
+	 * time) is scanned again.
+	 * <p>
+	 * The information is stored in the jar scan cache in the temporary directory. This
+	 * method implies {@link #enableJarScanCache()}.
+	 *
+	 * @return The embedded Tomcat
+	 *
+	 * @see #skipJarsDefaultJarScanner(String)
+	 * @see #skipJarsContextConfig(String)
+	 * @see #skipJarsTldConfig(String)
+	 */
+	public EmbeddedTomcat enableSkipJarLearning() {
+		this.learnSkipJars = true;
+		this.useJarScanCache = true;
+		return this;
+	}
+
+	/**
+	 * Reads and parses the class files in ./target/classes in parallel with one thread
+	 * per available processor during the annotation scan.
+	 *
+	 * @return The embedded Tomcat
+	 *
+	 * @see #enableParallelClassScan(int)
+	 */
+	public EmbeddedTomcat enableParallelClassScan() {
+		return enableParallelClassScan(Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * Reads and parses the class files in ./target/classes in parallel during the
+	 * annotation scan. The result is cached per class file in the temporary directory
+	 * (file classscan.cache) and validated with the size, last modification time and
+	 * checksum of the class file. On the next start only changed class files and class
+	 * files that contain servlet annotations or match a {@literal @}HandlesTypes
+	 * annotation are parsed again. If a jar of the class path changed, all class files
+	 * are parsed again because a super type in the jar may match a
+	 * {@literal @}HandlesTypes annotation now.
+	 *
+	 * @param threads number of threads that read and parse the class files
+	 * @return The embedded Tomcat
+	 */
+	public EmbeddedTomcat enableParallelClassScan(int threads) {
+		if (threads <= 0) {
+			throw new IllegalArgumentException("threads must be greater than 0");
+		}
+		this.classScanThreads = threads;
+		return this;
+	}
+
+	/**
+	 * Caches the result of every resource lookup in the context directory, the resource
+	 * directories and the classes directories. A background thread checks the
+	 * directories every 10 seconds and clears the cache when a file or directory is
+	 * created, deleted or renamed.
+	 *
+	 * @return The embedded Tomcat
+	 *
+	 * @see #enableResourceLookupCache(long)
+	 */
+	public EmbeddedTomcat enableResourceLookupCache() {
+		return enableResourceLookupCache(CachingFileDirContext.DEFAULT_WATCH_INTERVAL);
+	}
+
+	/**
+	 * Caches the result of every resource lookup in the context directory, the resource
+	 * directories and the classes directories. A background thread checks the
+	 * directories in the specified interval and clears the cache when a file or
+	 * directory is created, deleted or renamed.
+	 * <p>
+	 * Every check lists all directories of the trees and reads their modification
+	 * times, one system call per directory. The requests no longer touch the file
+	 * system for lookups, but the check costs the same as looking up every directory
+	 * once. On large trees use a long interval, a new or deleted file is only noticed
+	 * with the next check.
+	 *
+	 * @param watchInterval number of milliseconds between two checks
+	 * @return The embedded Tomcat
+	 */
+	public EmbeddedTomcat enableResourceLookupCache(long watchInterval) {
+		if (watchInterval <= 0) {
+			throw new IllegalArgumentException("watchInterval must be greater than 0");
+		}
+		this.resourceWatchInterval = watchInterval;
+		return this;
+	}
+
+	/**
+	 * Reloads the context when a class file in the classes directories changes. Only the
+	 * context is restarted, the connectors and open connections stay up. Checks the
+	 * directories once per second and waits until no change happened for 1500
+	 * milliseconds before it reloads the context.
+	 *
+	 * @return The embedded Tomcat
+	 *
+	 * @see #enableHotReload(long, long)
+	 */
+	public EmbeddedTomcat enableHotReload() {
+		return enableHotReload(1000, 1500);
+	}
+
+	/**
+	 * Reloads the context when a class file in the classes directories changes. Only the
+	 * context is restarted, the connectors and open connections stay up.
+	 * <p>
+	 * To be able to reload the classes they are loaded by the class loader of the web
+	 * application, even if the classes directories are part of the classpath of the JVM.
+	 * <p>
+	 * The debounce only starts again when a check of the directories finds a change, so
+	 * it must not be shorter than the watch interval. Otherwise the reload starts before
+	 * the next check could see the rest of a rebuild and one rebuild reloads the context
+	 * several times.
+	 *
+	 * @param watchInterval number of milliseconds between two checks of the classes
+	 * directories
+	 * @param debounce number of milliseconds without a further change before the context
+	 * is reloaded, must be greater than or equal to watchInterval
+	 * @return The embedded Tomcat
+	 */
+	public EmbeddedTomcat enableHotReload(long watchInterval, long debounce) {
+		if (watchInterval <= 0) {
+			throw new IllegalArgumentException("watchInterval must be greater than 0");
+		}
+		if (debounce < watchInterval) {
+			throw new IllegalArgumentException(
+					"debounce must be greater than or equal to watchInterval");
+		}
+		this.reloadWatchInterval = watchInterval;
+		this.reloadDebounce = debounce;
+		return this;
+	}
+
+	/**
+	 * Records the latency of every request per context and status class in fixed size
+	 * histograms. If the web application does not run in the root context the
+	 * percentiles and the throughput are available as JSON on <code>/latency</code>.
+	 *
+	 * @return The embedded Tomcat
+	 *
+	 * @see #getLatencyValve()
+	 */
+	public EmbeddedTomcat enableLatencyHistogram() {
+		this.recordLatency = true;
+		return this;
+	}
+
+	/**
+	 * Writes an access log in the combined log format, followed by the processing time
+	 * in milliseconds, to the directory logs in the temp directory. Uses a ring buffer
+	 * of 8192 records and drops records when the buffer is full.
+	 *
+	 * @return The embedded Tomcat
+	 *
+	 * @see #enableAccessLog(String, int, AccessLogOverflowPolicy)
+	 */
+	public EmbeddedTomcat enableAccessLog() {
+		return enableAccessLog(null, 8192, AccessLogOverflowPolicy.DROP);
+	}
+
+	/**
+	 * Writes an access log in the combined log format, followed by the processing time
+	 * in milliseconds. The request threads pass the records through a lock-free ring
+	 * buffer to one writer thread that formats and writes them in batches. A new file
+	 * is started every day.
+	 *
+	 * @param directory directory of the log files, null for the directory logs in the
+	 * temp directory
+	 * @param bufferSize number of records the ring buffer holds
+	 * @param overflowPolicy what happens with a record when the ring buffer is full
+	 * @return The embedded Tomcat
+	 *
+	 * @see AsyncAccessLogValve
+	 * @see #getAccessLogValve()
+	 */
+	public EmbeddedTomcat enableAccessLog(String directory, int bufferSize,
+			AccessLogOverflowPolicy overflowPolicy) {
+		this.accessLog = true;
+		this.accessLogDirectory = directory;
+		this.accessLogBufferSize = bufferSize;
+		this.accessLogOverflowPolicy = overflowPolicy;
+		return this;
+	}
+
+	/**
+	 * Caches GET responses that allow shared caching (<code>Cache-Control</code> with
+	 * <code>max-age</code> or <code>s-maxage</code>) in memory for the number of seconds
+	 * of the directive. Concurrent requests for the same uncached response run the
+	 * servlet only once, unless the last response for the URL could not be cached.
+	 *
+	 * @param maxSize maximum total size of the cache in bytes, the cached bodies plus an
+	 * estimate for the key and the headers of every entry
+	 * @param maxEntrySize responses with a larger body are not cached
+	 * @return The embedded Tomcat
+	 *
+	 * @see ResponseCacheValve
+	 * @see #getResponseCacheValve()
+	 */
+	public EmbeddedTomcat enableResponseCache(long maxSize, int maxEntrySize) {
+		this.responseCacheMaxSize = maxSize;
+		this.responseCacheMaxEntrySize = maxEntrySize;
+		return this;
+	}
+
+	/**
+	 * Exports the statistics of the connectors, thread pools, session managers and
+	 * tomcat-jdbc connection pools in the Prometheus text format on
+	 * <code>/metrics</code>. The endpoint is only available if the web application
+	 * does not run in the root context.
+	 *
+	 * @return The embedded Tomcat
+	 */
+	public EmbeddedTomcat enablePrometheusMetrics() {
+		this.prometheusMetrics = true;
+		return this;
+	}
+
+	/**
+	 * Keeps the sessions across restarts. The sessions of every web application are
+	 * stored in a memory-mapped file in the temp directory. Changed sessions are
+	 * written every 10 seconds and at stop, a start only reads the session ids and
+	 * deserializes a session when a request uses it.
+	 * <p>
+	 * Without this option the sessions are discarded on stop.
+	 *
+	 * @return The embedded Tomcat
+	 *
+	 * @see MappedFileStore
+	 */
+	public EmbeddedTomcat enablePersistentSessions() {
+		this.persistentSessions = true;
+		return this;
+	}
+
+	/**
+	 * Replaces the StandardManager of every web application with a
+	 * {@link BoundedSessionManager}. When a web application reaches the maximum number
+	 * of sessions or the estimated session memory, the least recently used sessions are
+	 * expired instead of rejecting new sessions.
+	 *
+	 * @param maxActiveSessions maximum number of sessions per web application, -1 for
+	 * no limit
+	 * @param maxMemory maximum estimated memory of the sessions per web application in
+	 * bytes, -1 for no limit
+	 * @return The embedded Tomcat
+	 */
+	public EmbeddedTomcat useBoundedSessionManager(int maxActiveSessions,
+			long maxMemory) {
+		return useBoundedSessionManager(maxActiveSessions, maxMemory,
+				SessionEvictionPolicy.LRU);
+	}
+
+	/**
+	 * Same as {@link #useBoundedSessionManager(int, long)} with a configurable eviction
+	 * policy. {@link SessionEvictionPolicy#LFU} keeps frequently used sessions when a
+	 * lot of single request sessions are created.
+	 *
+	 * @param maxActiveSessions maximum number of sessions per web application, -1 for
+	 * no limit
+	 * @param maxMemory maximum estimated memory of the sessions per web application in
+	 * bytes, -1 for no limit
+	 * @param evictionPolicy selects the session that is expired
+	 * @return The embedded Tomcat
+	 */
+	public EmbeddedTomcat useBoundedSessionManager(int maxActiveSessions, long maxMemory,
+			SessionEvictionPolicy evictionPolicy) {
+		this.maxActiveSessions = maxActiveSessions;
+		this.maxSessionMemory = maxMemory;
+		this.sessionEvictionPolicy = evictionPolicy;
+		return this;
+	}
+
+	/**
+	 * Measures the duration of the startup phases: loading catalina.properties, binding
+	 * the connectors and for every context the configuration, the jar scan, the
+	 * annotation processing, the naming setup, the TLD scan, every
+	 * ServletContextListener and every load-on-startup servlet. The report is logged
+	 * after the start, unless silent is set, and is available with
+	 * {@link #getStartupReport()}.
+	 *
+	 * @return The embedded Tomcat
+	 */
+	public EmbeddedTomcat enableStartupReport() {
+		this.profileStartup = true;
+		return this;
+	}
+
+	/**
+	 * @return the durations of the phases of the last start, null if
+	 * {@link #enableStartupReport()} was not called or Tomcat is not started
+	 */
+	public StartupReport getStartupReport() {
+		return this.startupReport;
+	}
+
+	/**
+	 * Records the statement execution times, the connection borrow times and the
+	 * slowest statements of the pools added with
+	 * {@link #addDataSource(DataSourceBuilder)}. If the web application does not run in
+	 * the root context the statistics are available as JSON on <code>/jdbc</code>.
+	 *
+	 * @return The embedded Tomcat
+	 *
+	 * @see #getJdbcStatistics()
+	 */
+	public EmbeddedTomcat enableJdbcStatistics() {
+		this.recordJdbcStatistics = true;
+		return this;
+	}
+
+	/**
+	 * @return one entry per data source, null if {@link #enableJdbcStatistics()} was
+	 * not called or Tomcat is not started
+	 */
+	public List<JdbcStatistics> getJdbcStatistics() {
+		return this.jdbcStatistics;
+	}
+
+	/**
+	 * @return the access log, null if {@link #enableAccessLog()} was not called or
+	 * Tomcat is not started
+	 */
+	public AsyncAccessLogValve getAccessLogValve() {
+		return this.accessLogValve;
+	}
+
+	/**
+	 * @return the response cache, null if {@link #enableResponseCache(long, int)} was
+	 * not called or Tomcat is not started
+	 */
+	public ResponseCacheValve getResponseCacheValve() {
+		return this.responseCacheValve;
+	}
+
+	/**
+	 * @return the valve that records the request latencies, null if
+	 * {@link #enableLatencyHistogram()} was not called or Tomcat is not started
+	 */
+	public LatencyValve getLatencyValve() {
+		return this.latencyValve;
+	}
+
 	/**
 	 * Sets the location of the temporary directory. Tomcat needs this for storing
 	 * temporary files like compiled jsp files. Default value is
@@ -435,8 +966,10 @@ public class EmbeddedTomcat {
 
 	/**
 	 * Before starting the embedded Tomcat the programm tries to stop a previous process
-	 * by sendig the shutdown command to the shutdown port. It then waits for the port to
-	 * become available. It checks this every second for the specified number of seconds
+	 * by sendig the shutdown command to the shutdown port. It then waits the specified
+	 * number of seconds for the acknowledgement that the previous process has closed its
+	 * connectors. If the previous process does not send an acknowledgement it checks
+	 * every half second if the port has become available.
 	 *
 	 * @param seconds number of seconds
 	 * @return The embedded Tomcat
@@ -478,17 +1011,213 @@ public class EmbeddedTomcat {
 	 *
 	 * @return The embedded Tomcat
 	 */
-	public EmbeddedTomcat useNio() {
-		this.useNio = true;
-		return this;
+	public EmbeddedTomcat useNio() {
+		return setProtocol(ConnectorProtocol.NIO);
+	}
+
+	/**
+	 * Sets the protocol handler all connectors (http and https) are using. If not set
+	 * Tomcat uses the Blocking Connector or the APR Connector when the native library is
+	 * available.
+	 * <p>
+	 * {@link ConnectorProtocol#NIO2} falls back to {@link ConnectorProtocol#NIO} when the
+	 * class is not available. {@link ConnectorProtocol#APR} falls back to
+	 * {@link ConnectorProtocol#NIO} when the AprLifecycleListener does not find the
+	 * native library.
+	 *
+	 * @param protocol the connector protocol
+	 * @return The embedded Tomcat
+	 */
+	public EmbeddedTomcat setProtocol(ConnectorProtocol protocol) {
+		this.protocol = protocol;
+		return this;
+	}
+
+	/**
+	 * Applies the settings (keep-alive, acceptCount, socket buffers, TCP_NODELAY and
+	 * processorCache) of the profile to all connectors.
+	 *
+	 * @param connectorProfile the tuning profile
+	 * @return The embedded Tomcat
+	 */
+	public EmbeddedTomcat setConnectorProfile(ConnectorProfile connectorProfile) {
+		this.connectorProfile = connectorProfile;
+		return this;
+	}
+
+	/**
+	 * Replaces the weak, modification time based ETags of the static resources with
+	 * strong ETags computed from the content. A hash is computed once per file and
+	 * recomputed when the size or the modification time of the file changed. A
+	 * background thread checks the modification times of the files in the interval of
+	 * {@link #enableResourceLookupCache(long)} (default 10 seconds) and discards the
+	 * hashes of changed files early.
+	 * <p>
+	 * The web application gets a {@link ResourceVersions} instance as servlet context
+	 * attribute {@link ResourceVersions#ATTRIBUTE}. Its
+	 * {@link ResourceVersions#getVersionedPath(String)} method returns a fingerprinted
+	 * path (e.g. <code>/css/app.3f2a9c0e5b7d1a46.css</code>) that is served with
+	 * <code>Cache-Control: public, max-age=31536000, immutable</code>.
+	 * <p>
+	 * Applies to the main web application only.
+	 *
+	 * @return The embedded Tomcat
+	 */
+	public EmbeddedTomcat enableResourceVersioning() {
+		this.resourceVersioning = true;
+		return this;
+	}
+
+	/**
+	 * Sends static files of at least <code>sendfileSize</code> KB with sendfile. The
+	 * connector transfers the file with <code>FileChannel.transferTo</code> from the
+	 * poller thread, the request thread returns immediately and the file content is
+	 * not copied through the heap. Requests with a single range are sent with sendfile
+	 * too.
+	 * <p>
+	 * Smaller files are cached in the heap by the web application resources and served
+	 * from there. Sendfile requires the NIO, NIO2 or APR connector, when no protocol is
+	 * set the connectors use NIO.
+	 *
+	 * @param sendfileSize minimum file size in KB
+	 * @return The embedded Tomcat
+	 */
+	@SuppressWarnings("hiding")
+	public EmbeddedTomcat enableSendfile(int sendfileSize) {
+		this.sendfileSize = sendfileSize;
+		return this;
+	}
+
+	@SuppressWarnings("hiding")
+	public EmbeddedTomcat enableCompression(int compressionMinSize,
+			String compressableMimeType) {
+		this.compressionMinSize = compressionMinSize;
+		this.compressableMimeType = compressableMimeType;
+		return this;
+	}
+
+	/**
+	 * Compresses the static resources of every web application with gzip once, in a
+	 * background thread at startup, and stores them in the temp directory. Requests
+	 * that accept gzip get the compressed file instead of compressing the resource again
+	 * on every request.
+	 * <p>
+	 * Uses the minimum size and the mime types of
+	 * {@link #enableCompression(int, String)} when set. Dynamic responses are still
+	 * compressed on the fly by the connector when compression is enabled.
+	 *
+	 * @return The embedded Tomcat
+	 *
+	 * @see PrecompressedDefaultServlet
+	 */
+	public EmbeddedTomcat enablePrecompression() {
+		this.precompression = true;
+		return this;
+	}
+
+	/**
+	 * Creates one {@link StandardThreadExecutor} that is shared by all connectors (http
+	 * and https) instead of a separate default thread pool for every connector.
+	 *
+	 * @param minSpareThreads minimum number of threads always kept alive
+	 * @param maxThreads maximum number of active threads in the pool
+	 * @return The embedded Tomcat
+	 *
+	 * @see #setExecutorMaxIdleTime(int)
+	 * @see #setExecutorMaxQueueSize(int)
+	 * @see #setExecutorNamePrefix(String)
+	 */
+	public EmbeddedTomcat useSharedExecutor(int minSpareThreads, int maxThreads) {
+		if (minSpareThreads < 0 || maxThreads <= 0 || minSpareThreads > maxThreads) {
+			throw new IllegalArgumentException(
+					"maxThreads must be greater than 0 and minSpareThreads between 0 and maxThreads");
+		}
+		this.executorMinSpareThreads = minSpareThreads;
+		this.executorMaxThreads = maxThreads;
+		return this;
+	}
+
+	/**
+	 * Sets the number of milliseconds an idle thread of the shared executor is kept
+	 * alive before it is shut down, as long as there are more than minSpareThreads
+	 * threads. Default is 60000 (1 minute).
+	 *
+	 * @param maxIdleTime idle time in milliseconds
+	 * @return The embedded Tomcat
+	 *
+	 * @see #useSharedExecutor(int, int)
+	 */
+	public EmbeddedTomcat setExecutorMaxIdleTime(int maxIdleTime) {
+		this.executorMaxIdleTime = maxIdleTime;
+		return this;
+	}
+
+	/**
+	 * Sets the maximum number of runnable tasks that can queue up in the shared executor
+	 * before new requests are rejected. Default is Integer.MAX_VALUE (unbounded).
+	 *
+	 * @param maxQueueSize maximum queue size
+	 * @return The embedded Tomcat
+	 *
+	 * @see #useSharedExecutor(int, int)
+	 */
+	public EmbeddedTomcat setExecutorMaxQueueSize(int maxQueueSize) {
+		this.executorMaxQueueSize = maxQueueSize;
+		return this;
+	}
+
+	/**
+	 * Sets the name prefix for the threads created by the shared executor. Default is
+	 * "tomcat-exec-" for the thread pool and "tomcat-virt-" for virtual threads.
+	 *
+	 * @param namePrefix thread name prefix
+	 * @return The embedded Tomcat
+	 *
+	 * @see #useSharedExecutor(int, int)
+	 * @see #useVirtualThreads()
+	 */
+	public EmbeddedTomcat setExecutorNamePrefix(String namePrefix) {
+		this.executorNamePrefix = namePrefix;
+		return this;
+	}
+
+	/**
+	 * Runs the servlet requests on virtual threads. All connectors share one
+	 * {@link VirtualThreadExecutor}. If the JVM does not support virtual threads (Java
+	 * 20 and older) the embedded Tomcat falls back to a shared
+	 * {@link StandardThreadExecutor} configured with the values from
+	 * {@link #useSharedExecutor(int, int)} or with a maximum of 200 threads if this
+	 * method was not called.
+	 *
+	 * @return The embedded Tomcat
+	 *
+	 * @see #isVirtualThreadsActive()
+	 */
+	public EmbeddedTomcat useVirtualThreads() {
+		this.useVirtualThreads = true;
+		return this;
+	}
+
+	/**
+	 * Returns the shared executor. If the executor is a {@link StandardThreadExecutor} it
+	 * provides access to the pool statistics like
+	 * {@link StandardThreadExecutor#getActiveCount()} and
+	 * {@link StandardThreadExecutor#getQueueSize()}.
+	 *
+	 * @return the shared executor or null if the server is not started or neither
+	 * {@link #useSharedExecutor(int, int)} nor {@link #useVirtualThreads()} was called
+	 */
+	public Executor getExecutor() {
+		return this.executor;
 	}
 
-	@SuppressWarnings("hiding")
-	public EmbeddedTomcat enableCompression(int compressionMinSize,
-			String compressableMimeType) {
-		this.compressionMinSize = compressionMinSize;
-		this.compressableMimeType = compressableMimeType;
-		return this;
+	/**
+	 * Returns true if the started server runs the requests on virtual threads
+	 *
+	 * @return true if the executor is a {@link VirtualThreadExecutor}
+	 */
+	public boolean isVirtualThreadsActive() {
+		return this.executor instanceof VirtualThreadExecutor;
 	}
 
 	/**
@@ -609,6 +1338,25 @@ public class EmbeddedTomcat {
 		return this;
 	}
 
+	/**
+	 * Registers a tomcat-jdbc connection pool in JNDI. The initial connections are
+	 * opened in parallel during the startup, the connectors accept requests after the
+	 * pool is warm.
+	 *
+	 * <pre>
+	 * embeddedTomcat.addDataSource(new DataSourceBuilder(&quot;jdbc/ds&quot;)
+	 * 		.setDriverClassName(&quot;org.h2.Driver&quot;).setUrl(&quot;jdbc:h2:&tilde;/mydb&quot;)
+	 * 		.setUsername(&quot;sa&quot;).setPassword(&quot;&quot;).setInitialSize(10));
+	 * </pre>
+	 *
+	 * @param dataSource configuration of the pool
+	 * @return The embedded Tomcat
+	 */
+	public EmbeddedTomcat addDataSource(DataSourceBuilder dataSource) {
+		this.dataSources.add(dataSource);
+		return this;
+	}
+
 	public EmbeddedTomcat addContextInitializationParameter(String name, String value) {
 		ApplicationParameter parameter = new ApplicationParameter();
 		parameter.setName(name);
@@ -767,14 +1515,8 @@ public class EmbeddedTomcat {
 		// try to shutdown a previous Tomcat
 		sendShutdownCommand();
 
-		try {
-			final ServerSocket srv = new ServerSocket(this.httpPort);
-			srv.close();
-		}
-		catch (IOException e) {
-			log.error("PORT " + this.httpPort + " ALREADY IN USE");
-			return;
-		}
+		long startTime = System.nanoTime();
+		this.startupReport = this.profileStartup ? new StartupReport() : null;
 
 		// Read a dummy value. This triggers loading of the catalina.properties
 		// file
@@ -787,59 +1529,53 @@ public class EmbeddedTomcat {
 		appendSkipJars("org.apache.catalina.startup.TldConfig.jarsToSkip",
 				this.skipJarsTldConfig);
 
-		this.tomcat = new Tomcat();
+		if (this.startupReport != null) {
+			this.startupReport.record(StartupReport.CATALINA_PROPERTIES, null, startTime);
+		}
 
 		if (this.tempDirectory == null) {
 			this.tempDirectory = new File(".", "/target/tomcat." + this.httpPort)
 					.getAbsolutePath();
 		}
 
+		JarScanCache jarScanCache = null;
+		if (this.useJarScanCache) {
+			jarScanCache = new JarScanCache(new File(this.tempDirectory, "jarscan.cache"));
+		}
+
+		if (this.learnSkipJars) {
+			appendLearnedSkipJars(jarScanCache);
+		}
+
+		ClassScanCache classScanCache = null;
+		if (this.classScanThreads > 0) {
+			classScanCache = new ClassScanCache(
+					new File(this.tempDirectory, "classscan.cache"));
+		}
+
+		this.tomcat = new Tomcat();
+
 		this.tomcat.setBaseDir(this.tempDirectory);
 
 		if (this.silent) {
 			this.tomcat.setSilent(true);
 		}
 
-		if (this.addDefaultListeners) {
+		if (this.addDefaultListeners || this.protocol == ConnectorProtocol.APR) {
 			this.tomcat.getServer().addLifecycleListener(new AprLifecycleListener());
 		}
 
-		if (this.useNio) {
-			Connector connector = new Connector(
-					"org.apache.coyote.http11.Http11NioProtocol");
-			connector.setPort(this.httpPort);
-			connector.setMaxPostSize(this.maxPostSize);
-			connector.setURIEncoding("UTF-8");
-			this.tomcat.setConnector(connector);
-			this.tomcat.getService().addConnector(connector);
-		}
-		else {
-			this.tomcat.setPort(this.httpPort);
-			this.tomcat.getConnector().setURIEncoding("UTF-8");
-			this.tomcat.getConnector().setMaxPostSize(this.maxPostSize);
-		}
+		String protocolHandlerClassName = resolveProtocolHandlerClassName();
 
-		if (this.compressionMinSize >= 0) {
-			this.tomcat.getConnector().setProperty("compression",
-					String.valueOf(this.compressionMinSize));
-			this.tomcat.getConnector().setProperty("compressableMimeType",
-					this.compressableMimeType);
-		}
+		Connector connector = createConnector(protocolHandlerClassName, this.httpPort);
+		this.tomcat.setConnector(connector);
+		this.tomcat.getService().addConnector(connector);
 
 		if (this.httpsPort != 0) {
-			final Connector httpsConnector;
-			if (this.useNio) {
-				httpsConnector = new Connector(
-						"org.apache.coyote.http11.Http11NioProtocol");
-			}
-			else {
-				httpsConnector = new Connector("HTTP/1.1");
-			}
+			final Connector httpsConnector = createConnector(protocolHandlerClassName,
+					this.httpsPort);
 			httpsConnector.setSecure(true);
-			httpsConnector.setPort(this.httpsPort);
-			httpsConnector.setMaxPostSize(this.maxPostSize);
 			httpsConnector.setScheme("https");
-			httpsConnector.setURIEncoding("UTF-8");
 
 			httpsConnector.setProperty("SSLEnabled", "true");
 			httpsConnector.setProperty("keyAlias", this.keyAlias);
@@ -847,19 +1583,21 @@ public class EmbeddedTomcat {
 			httpsConnector.setProperty("keystorePass", this.keyStorePass);
 			httpsConnector.setProperty("sslProtocol", this.sslProtocol);
 
-			if (this.compressionMinSize >= 0) {
-				httpsConnector.setProperty("compression",
-						String.valueOf(this.compressionMinSize));
-				httpsConnector.setProperty("compressableMimeType",
-						this.compressableMimeType);
-			}
-
 			this.tomcat.getEngine().setDefaultHost("localhost");
 			this.tomcat.getService().addConnector(httpsConnector);
 		}
 
+		if (this.useVirtualThreads) {
+			configureVirtualThreadExecutor();
+		}
+		else if (this.executorMaxThreads > 0) {
+			configureSharedExecutor(this.executorMaxThreads);
+		}
+
 		if (this.shutdownPort != null) {
-			this.tomcat.getServer().setPort(this.shutdownPort);
+			// the ShutdownListener handles the shutdown port, startAndWait() waits
+			// until it has sent the acknowledgement
+			this.tomcat.getServer().setPort(-1);
 		}
 
 		String contextDir = this.contextDirectory;
@@ -867,6 +1605,48 @@ public class EmbeddedTomcat {
 			contextDir = new File(".").getAbsolutePath() + "/src/main/webapp";
 		}
 
+		if (this.recordLatency) {
+			this.latencyValve = new LatencyValve();
+			this.tomcat.getEngine().getPipeline().addValve(this.latencyValve);
+		}
+		else {
+			this.latencyValve = null;
+		}
+
+		if (this.responseCacheMaxSize > 0) {
+			this.responseCacheValve = new ResponseCacheValve();
+			this.responseCacheValve.setMaxSize(this.responseCacheMaxSize);
+			this.responseCacheValve.setMaxEntrySize(this.responseCacheMaxEntrySize);
+			this.tomcat.getEngine().getPipeline().addValve(this.responseCacheValve);
+		}
+		else {
+			this.responseCacheValve = null;
+		}
+
+		if (this.accessLog) {
+			this.accessLogValve = new AsyncAccessLogValve();
+			this.accessLogValve.setDirectory(this.accessLogDirectory != null
+					? this.accessLogDirectory
+					: new File(this.tempDirectory, "logs").getAbsolutePath());
+			this.accessLogValve.setBufferSize(this.accessLogBufferSize);
+			this.accessLogValve.setOverflowPolicy(this.accessLogOverflowPolicy);
+			this.tomcat.getEngine().getPipeline().addValve(this.accessLogValve);
+		}
+		else {
+			this.accessLogValve = null;
+		}
+
+		if (this.recordJdbcStatistics) {
+			List<JdbcStatistics> statistics = new ArrayList<JdbcStatistics>();
+			for (DataSourceBuilder dataSource : this.dataSources) {
+				statistics.add(new JdbcStatistics(dataSource.getName()));
+			}
+			this.jdbcStatistics = Collections.unmodifiableList(statistics);
+		}
+		else {
+			this.jdbcStatistics = null;
+		}
+
 		final Context ctx;
 		try {
 
@@ -877,12 +1657,48 @@ public class EmbeddedTomcat {
 				}
 				Context rootCtx = this.tomcat.addWebapp("", rootCtxDir.getAbsolutePath());
 				rootCtx.setPrivileged(true);
+				if (jarScanCache != null || this.startupReport != null) {
+					installCachingContextConfig(rootCtx, jarScanCache, null);
+				}
 				Tomcat.addServlet(rootCtx, "listContexts",
 						new ListContextsServlet(rootCtx)).addMapping("/");
+				if (this.prometheusMetrics) {
+					Tomcat.addServlet(rootCtx, "prometheusMetrics",
+							new PrometheusMetricsServlet((Host) rootCtx.getParent()))
+							.addMapping("/metrics");
+				}
+				if (this.latencyValve != null) {
+					Tomcat.addServlet(rootCtx, "latencyMetrics",
+							new LatencyMetricsServlet(this.latencyValve))
+							.addMapping("/latency");
+				}
+				if (this.jdbcStatistics != null) {
+					Tomcat.addServlet(rootCtx, "jdbcStatistics",
+							new JdbcStatisticsServlet(this.jdbcStatistics))
+							.addMapping("/jdbc");
+				}
 			}
 
 			ctx = this.tomcat.addWebapp(this.contextPath, contextDir);
-			ctx.setResources(new TargetClassesContext());
+			TargetClassesContext resources = new TargetClassesContext();
+			resources.setWatchInterval(this.resourceWatchInterval);
+			if (!this.classesDirectories.isEmpty()) {
+				resources.setClassesDirectories(this.classesDirectories);
+			}
+			if (!this.classesDirectories.isEmpty() || this.reloadWatchInterval > 0) {
+				addClassesRepositories(ctx, this.reloadWatchInterval > 0);
+			}
+			for (String resourceDirectory : this.resourceDirectories) {
+				resources.addResourceDirectory(resourceDirectory);
+			}
+			ctx.setResources(resources);
+			if (this.resourceVersioning) {
+				installResourceVersioning(ctx, resources);
+			}
+			if (jarScanCache != null || classScanCache != null
+					|| this.startupReport != null) {
+				installCachingContextConfig(ctx, jarScanCache, classScanCache);
+			}
 		}
 		catch (ServletException e) {
 			throw new RuntimeException(e);
@@ -892,8 +1708,19 @@ public class EmbeddedTomcat {
 			ctx.setPrivileged(true);
 		}
 
+		if (this.reloadWatchInterval > 0) {
+			this.tomcat.getServer().addLifecycleListener(new ContextReloader(ctx,
+					getClassesDirectories(), this.reloadWatchInterval, this.reloadDebounce));
+		}
+
+		boolean webappNeedsNaming = false;
+		for (Webapp webapp : this.webapps) {
+			webappNeedsNaming |= webapp.needsNaming();
+		}
+
 		if (this.enableNaming || !this.contextEnvironments.isEmpty()
-				|| !this.contextResources.isEmpty() || this.contextFileURL != null) {
+				|| !this.contextResources.isEmpty() || !this.dataSources.isEmpty()
+				|| this.contextFileURL != null || webappNeedsNaming) {
 			this.tomcat.enableNaming();
 
 			if (this.addDefaultListeners) {
@@ -909,58 +1736,182 @@ public class EmbeddedTomcat {
 			server.addLifecycleListener(new ThreadLocalLeakPreventionListener());
 		}
 
-		for (ContextEnvironment env : this.contextEnvironments) {
-			ctx.getNamingResources().addEnvironment(env);
+		List<ContextResource> resources = new ArrayList<ContextResource>(
+				this.contextResources);
+		for (int i = 0; i < this.dataSources.size(); i++) {
+			resources.add(this.dataSources.get(i).toContextResource(
+					this.jdbcStatistics != null ? this.jdbcStatistics.get(i) : null));
+		}
+		configureContext(ctx, this.contextEnvironments, resources,
+				this.contextInitializationParameters, this.contextFileURL);
+
+		if (!this.dataSources.isEmpty()) {
+			ctx.addServletContainerInitializer(
+					new DataSourcePrewarmer(this.dataSources, this.silent), null);
+		}
+
+		List<Context> contexts = new ArrayList<Context>();
+		contexts.add(ctx);
+		for (Webapp webapp : this.webapps) {
+			contexts.add(addWebapp(webapp, jarScanCache));
 		}
 
-		for (ContextResource res : this.contextResources) {
-			ctx.getNamingResources().addResource(res);
+		if (this.precompression || this.sendfileSize > 0) {
+			for (Context context : contexts) {
+				configureDefaultServlet(context);
+			}
 		}
 
-		for (ApplicationParameter param : this.contextInitializationParameters) {
-			ctx.addApplicationParameter(param);
+		if (this.persistentSessions) {
+			if (this.maxActiveSessions != null) {
+				log.warn("Persistent sessions do not support the bounded session manager");
+			}
+			for (Context context : contexts) {
+				context.setManager(createPersistentManager());
+			}
+		}
+		else if (this.maxActiveSessions != null) {
+			for (Context context : contexts) {
+				BoundedSessionManager manager = new BoundedSessionManager();
+				manager.setMaxActiveSessions(this.maxActiveSessions);
+				manager.setMaxMemory(this.maxSessionMemory);
+				manager.setEvictionPolicy(this.sessionEvictionPolicy);
+				context.setManager(manager);
+			}
 		}
 
-		if (this.contextFileURL != null) {
-			ctx.setConfigFile(this.contextFileURL);
+		if (this.startStopThreads != null) {
+			this.tomcat.getHost().setStartStopThreads(this.startStopThreads);
 		}
+		else if (!this.webapps.isEmpty()) {
+			// starting a context mostly waits for I/O, one thread per context lets the
+			// total startup time approach the one of the slowest context. The host
+			// children include contexts not in the list above, like the root context
+			this.tomcat.getHost()
+					.setStartStopThreads(this.tomcat.getHost().findChildren().length);
+		}
+
+		final CountDownLatch latch = new CountDownLatch(1);
+		this.shutdownLatch = latch;
 
 		// Shutdown tomcat if a failure occurs during startup
-		ctx.addLifecycleListener(new LifecycleListener() {
+		LifecycleListener failureListener = new LifecycleListener() {
 			@Override
 			public void lifecycleEvent(LifecycleEvent event) {
 				if (event.getLifecycle().getState() == LifecycleState.FAILED) {
 					((StandardServer) EmbeddedTomcat.this.tomcat.getServer()).stopAwait();
+					latch.countDown();
 
 				}
 			}
-		});
+		};
+		for (Context context : contexts) {
+			context.addLifecycleListener(failureListener);
+		}
+
+		if (this.startupReport != null) {
+			StartupProfiler profiler = new StartupProfiler(this.startupReport);
+			for (Connector c : this.tomcat.getService().findConnectors()) {
+				profiler.profileConnector(c);
+			}
+			for (Container child : this.tomcat.getHost().findChildren()) {
+				profiler.profileContext((Context) child);
+			}
+		}
 
 		try {
+			// binds the connectors
+			this.tomcat.init();
+			for (Connector c : this.tomcat.getService().findConnectors()) {
+				if (c.getState() == LifecycleState.FAILED) {
+					log.error("PORT " + c.getPort() + " ALREADY IN USE");
+					this.tomcat.destroy();
+					return;
+				}
+			}
+
+			// the registry is JVM-wide, stop() removes the entries again
+			if (this.jdbcStatistics != null) {
+				for (JdbcStatistics statistics : this.jdbcStatistics) {
+					statistics.register();
+				}
+			}
 			this.tomcat.start();
 		}
 		catch (LifecycleException e) {
+			unregisterJdbcStatistics();
 			throw new RuntimeException(e);
 		}
 
-		((StandardManager) ctx.getManager()).setPathname(null);
+		if (this.shutdownPort != null) {
+			startShutdownListener();
+		}
+
+		for (Context context : contexts) {
+			if (context.getManager() instanceof StandardManager) {
+				((StandardManager) context.getManager()).setPathname(null);
+			}
+		}
+
+		if (this.startupReport != null) {
+			this.startupReport.record(StartupReport.TOTAL, null, startTime);
+			if (!this.silent) {
+				log.info(this.startupReport);
+			}
+		}
 
 		installSlf4jBridge();
 
 		if (await) {
-			this.tomcat.getServer().await();
+			if (this.shutdownListener != null) {
+				// StandardServer.stopInternal() ends await() before the ShutdownListener
+				// has sent the acknowledgement. Returning here would let the JVM exit
+				// without it.
+				try {
+					latch.await();
+				}
+				catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+			else {
+				this.tomcat.getServer().await();
+			}
 			stop();
 		}
 
 	}
 
 	/**
-	 * Stops the embedded tomcat. Does nothing if it's not started
+	 * Stops and destroys the embedded tomcat. The connectors are closed, so the ports
+	 * are available immediately afterwards and {@link #start()} is able to start a new
+	 * instance in the same JVM. Does nothing if it's not started
 	 */
 	public void stop() {
+		stopTomcat();
+		CountDownLatch latch = this.shutdownLatch;
+		if (latch != null) {
+			latch.countDown();
+		}
+	}
+
+	private synchronized void stopTomcat() {
+		if (this.shutdownListener != null) {
+			this.shutdownListener.stop();
+			this.shutdownListener = null;
+		}
+
+		unregisterJdbcStatistics();
+
 		if (this.tomcat != null) {
+			LifecycleState state = this.tomcat.getServer().getState();
+			if (state == LifecycleState.DESTROYING || state == LifecycleState.DESTROYED) {
+				return;
+			}
 			try {
 				this.tomcat.stop();
+				// Tomcat.stop() keeps the server sockets open
+				this.tomcat.destroy();
 			}
 			catch (LifecycleException e) {
 				throw new RuntimeException(e);
@@ -968,6 +1919,343 @@ public class EmbeddedTomcat {
 		}
 	}
 
+	private void unregisterJdbcStatistics() {
+		if (this.jdbcStatistics != null) {
+			for (JdbcStatistics statistics : this.jdbcStatistics) {
+				statistics.unregister();
+			}
+		}
+	}
+
+	private void startShutdownListener() {
+		this.shutdownListener = new ShutdownListener(this.shutdownPort,
+				new ShutdownListener.Callback() {
+					@Override
+					public void shutdown() {
+						// startAndWait() keeps waiting until the acknowledgement is sent
+						stopTomcat();
+					}
+
+					@Override
+					public void shutdownAcknowledged() {
+						EmbeddedTomcat.this.shutdownLatch.countDown();
+					}
+				});
+		try {
+			this.shutdownListener.start();
+		}
+		catch (IOException e) {
+			log.warn("Unable to listen on shutdown port " + this.shutdownPort, e);
+			this.shutdownListener = null;
+		}
+	}
+
+	private void appendLearnedSkipJars(JarScanCache jarScanCache) {
+		int pluggabilityFeatures = JarScanCache.WEB_FRAGMENT | JarScanCache.SCI
+				| JarScanCache.RESOURCES | JarScanCache.ANNOTATIONS;
+
+		String skipAll = jarScanCache
+				.getJarsWithout(pluggabilityFeatures | JarScanCache.TLD);
+		String skipContextConfig = jarScanCache.getJarsWithout(pluggabilityFeatures);
+		String skipTldConfig = jarScanCache.getJarsWithout(JarScanCache.TLD);
+
+		appendSkipJars("tomcat.util.scan.DefaultJarScanner.jarsToSkip", skipAll);
+		appendSkipJars("org.apache.catalina.startup.ContextConfig.jarsToSkip",
+				skipContextConfig);
+		appendSkipJars("org.apache.catalina.startup.TldConfig.jarsToSkip",
+				skipTldConfig);
+
+		if (!this.silent && skipAll.length() > 0) {
+			log.info("Learned jars to skip: " + skipAll);
+		}
+	}
+
+	private PersistentManager createPersistentManager() {
+		MappedFileStore store = new MappedFileStore();
+		store.setDirectory(new File(this.tempDirectory, "sessions").getAbsolutePath());
+
+		PersistentManager manager = new PersistentManager();
+		manager.setStore(store);
+		// write the changed sessions on every run of the background processor
+		manager.setMaxIdleBackup(0);
+		manager.setProcessExpiresFrequency(1);
+		return manager;
+	}
+
+	private static void installResourceVersioning(Context ctx,
+			CachingFileDirContext resources) {
+		resources.setContentVersioning(true);
+		final ResourceVersions resourceVersions = resources.getResourceVersions();
+		ctx.addServletContainerInitializer(new ServletContainerInitializer() {
+			@Override
+			public void onStartup(Set<Class<?>> classes, ServletContext servletContext) {
+				servletContext.setAttribute(ResourceVersions.ATTRIBUTE, resourceVersions);
+				servletContext
+						.addFilter("resourceVersion",
+								new ResourceVersionFilter(resourceVersions))
+						.addMappingForServletNames(null, true, "default");
+			}
+		}, null);
+	}
+
+	private void configureDefaultServlet(Context context) {
+		final File directory = new File(new File(this.tempDirectory, "precompressed"),
+				new ContextName(context.getPath(), null).getBaseName());
+
+		if (this.sendfileSize > 0) {
+			// only files that are not cached in the heap are sent with sendfile
+			StandardContext standardContext = (StandardContext) context;
+			int cacheObjectMaxSize = Math.min(this.sendfileSize,
+					standardContext.getCacheMaxSize() / 20);
+			standardContext.setCacheObjectMaxSize(cacheObjectMaxSize);
+			if (context.getResources() instanceof BaseDirContext) {
+				((BaseDirContext) context.getResources())
+						.setCacheObjectMaxSize(cacheObjectMaxSize);
+			}
+		}
+
+		// Tomcat adds the default servlet at before_start
+		context.addLifecycleListener(new LifecycleListener() {
+			@Override
+			public void lifecycleEvent(LifecycleEvent event) {
+				if (!Lifecycle.BEFORE_START_EVENT.equals(event.getType())) {
+					return;
+				}
+				Wrapper wrapper = (Wrapper) ((Context) event.getLifecycle())
+						.findChild("default");
+				if (wrapper == null || !DefaultServlet.class.getName()
+						.equals(wrapper.getServletClass())) {
+					return;
+				}
+				if (EmbeddedTomcat.this.sendfileSize > 0) {
+					wrapper.addInitParameter("sendfileSize",
+							String.valueOf(EmbeddedTomcat.this.sendfileSize));
+					// larger buffers for the responses that cannot use sendfile
+					wrapper.addInitParameter("output", "65536");
+					wrapper.addInitParameter("input", "65536");
+				}
+				if (EmbeddedTomcat.this.precompression) {
+					wrapper.setServletClass(PrecompressedDefaultServlet.class.getName());
+					wrapper.addInitParameter("precompressedDirectory",
+							directory.getAbsolutePath());
+					if (EmbeddedTomcat.this.compressionMinSize >= 0) {
+						wrapper.addInitParameter("compressionMinSize",
+								String.valueOf(EmbeddedTomcat.this.compressionMinSize));
+					}
+					if (EmbeddedTomcat.this.compressableMimeType != null) {
+						wrapper.addInitParameter("compressableMimeType",
+								EmbeddedTomcat.this.compressableMimeType);
+					}
+				}
+			}
+		});
+	}
+
+	private void installCachingContextConfig(Context ctx, JarScanCache jarScanCache,
+			ClassScanCache classScanCache) {
+		if (jarScanCache != null) {
+			ctx.setJarScanner(new CachingJarScanner(jarScanCache));
+		}
+
+		// replace the ContextConfig that Tomcat.addWebapp installed
+		for (LifecycleListener listener : ctx.findLifecycleListeners()) {
+			if (listener instanceof ContextConfig) {
+				CachingContextConfig contextConfig = new CachingContextConfig(jarScanCache,
+						classScanCache, this.classScanThreads);
+				contextConfig.setDefaultWebXml(((ContextConfig) listener).getDefaultWebXml());
+				contextConfig.setStartupReport(this.startupReport);
+				ctx.removeLifecycleListener(listener);
+				ctx.addLifecycleListener(contextConfig);
+			}
+		}
+	}
+
+	private Context addWebapp(Webapp webapp, JarScanCache jarScanCache) {
+		File dir = new File(webapp.getContextDirectory());
+		Context context;
+		try {
+			context = this.tomcat.addWebapp(webapp.getContextPath(),
+					dir.getAbsolutePath());
+		}
+		catch (ServletException e) {
+			throw new RuntimeException(e);
+		}
+
+		if (jarScanCache != null || this.startupReport != null) {
+			installCachingContextConfig(context, jarScanCache, null);
+		}
+		if (webapp.isPrivileged()) {
+			context.setPrivileged(true);
+		}
+
+		configureContext(context, webapp.getContextEnvironments(),
+				webapp.getContextResources(), webapp.getContextInitializationParameters(),
+				webapp.getContextFileURL());
+		return context;
+	}
+
+	private static void configureContext(Context context,
+			List<ContextEnvironment> environments, List<ContextResource> resources,
+			List<ApplicationParameter> parameters, URL contextFile) {
+		for (ContextEnvironment env : environments) {
+			context.getNamingResources().addEnvironment(env);
+		}
+
+		for (ContextResource res : resources) {
+			context.getNamingResources().addResource(res);
+		}
+
+		for (ApplicationParameter param : parameters) {
+			context.addApplicationParameter(param);
+		}
+
+		if (contextFile != null) {
+			context.setConfigFile(contextFile);
+		}
+	}
+
+	private List<File> getClassesDirectories() {
+		List<File> directories = new ArrayList<File>();
+		if (this.classesDirectories.isEmpty()) {
+			directories.add(canonicalFile(new File("./target/classes")));
+		}
+		else {
+			for (String classesDirectory : this.classesDirectories) {
+				directories.add(canonicalFile(new File(classesDirectory)));
+			}
+		}
+		return directories;
+	}
+
+	private void addClassesRepositories(Context ctx, boolean includeClasspath) {
+		Set<File> classpath = new HashSet<File>();
+		for (String entry : System.getProperty("java.class.path", "")
+				.split(File.pathSeparator)) {
+			if (entry.length() > 0) {
+				classpath.add(canonicalFile(new File(entry)));
+			}
+		}
+
+		WebappLoader loader = null;
+		for (File dir : getClassesDirectories()) {
+			if (dir.isDirectory() && (includeClasspath || !classpath.contains(dir))) {
+				if (loader == null) {
+					loader = new WebappLoader(ctx.getParentClassLoader());
+				}
+				try {
+					loader.addRepository(dir.toURI().toURL().toString());
+				}
+				catch (MalformedURLException e) {
+					throw new RuntimeException(e);
+				}
+			}
+		}
+
+		if (loader != null) {
+			ctx.setLoader(loader);
+		}
+	}
+
+	private static File canonicalFile(File file) {
+		try {
+			return file.getCanonicalFile();
+		}
+		catch (IOException e) {
+			return file.getAbsoluteFile();
+		}
+	}
+
+	private String resolveProtocolHandlerClassName() {
+		if (this.protocol == null) {
+			if (this.sendfileSize > 0) {
+				return ConnectorProtocol.NIO.getProtocolHandlerClassName();
+			}
+			return "HTTP/1.1";
+		}
+		if (this.protocol == ConnectorProtocol.BIO && this.sendfileSize > 0) {
+			log.warn("The BIO connector does not support sendfile");
+		}
+
+		ConnectorProtocol resolved = this.protocol;
+		if (resolved == ConnectorProtocol.NIO2 && !resolved.isClassAvailable()) {
+			log.warn("NIO2 connector is not available. Falling back to NIO");
+			resolved = ConnectorProtocol.NIO;
+		}
+		else if (resolved == ConnectorProtocol.APR
+				&& !AprLifecycleListener.isAprAvailable()) {
+			log.warn("Tomcat native library not found. Falling back to NIO");
+			resolved = ConnectorProtocol.NIO;
+		}
+		return resolved.getProtocolHandlerClassName();
+	}
+
+	private Connector createConnector(String protocolHandlerClassName, int port) {
+		Connector connector = new Connector(protocolHandlerClassName);
+		connector.setPort(port);
+		connector.setMaxPostSize(this.maxPostSize);
+		connector.setURIEncoding("UTF-8");
+
+		if (this.compressionMinSize >= 0) {
+			connector.setProperty("compression", String.valueOf(this.compressionMinSize));
+			connector.setProperty("compressableMimeType", this.compressableMimeType);
+		}
+
+		if (this.sendfileSize > 0) {
+			connector.setProperty("useSendfile", "true");
+		}
+
+		if (this.connectorProfile != null) {
+			this.connectorProfile.applyTo(connector);
+		}
+
+		return connector;
+	}
+
+	private void configureVirtualThreadExecutor() {
+		if (VirtualThreadExecutor.isSupported()) {
+			VirtualThreadExecutor virtualThreadExecutor = new VirtualThreadExecutor();
+			if (this.executorNamePrefix != null) {
+				virtualThreadExecutor.setNamePrefix(this.executorNamePrefix);
+			}
+			installExecutor(virtualThreadExecutor);
+			if (!this.silent) {
+				log.info("Requests are executed on virtual threads");
+			}
+		}
+		else {
+			configureSharedExecutor(
+					this.executorMaxThreads > 0 ? this.executorMaxThreads : 200);
+			if (!this.silent) {
+				log.info(
+						"Virtual threads are not supported by this JVM. Requests are executed on a platform thread pool");
+			}
+		}
+	}
+
+	private void configureSharedExecutor(int maxThreads) {
+		StandardThreadExecutor threadExecutor = new StandardThreadExecutor();
+		threadExecutor.setName("tomcatThreadPool");
+		threadExecutor.setNamePrefix(
+				this.executorNamePrefix != null ? this.executorNamePrefix : "tomcat-exec-");
+		threadExecutor.setMinSpareThreads(this.executorMinSpareThreads);
+		threadExecutor.setMaxThreads(maxThreads);
+		threadExecutor.setMaxIdleTime(this.executorMaxIdleTime);
+		threadExecutor.setMaxQueueSize(this.executorMaxQueueSize);
+		installExecutor(threadExecutor);
+	}
+
+	private void installExecutor(Executor sharedExecutor) {
+		this.executor = sharedExecutor;
+		Service service = this.tomcat.getService();
+		service.addExecutor(this.executor);
+		for (Connector connector : service.findConnectors()) {
+			ProtocolHandler protocolHandler = connector.getProtocolHandler();
+			if (protocolHandler instanceof AbstractProtocol) {
+				((AbstractProtocol<?>) protocolHandler).setExecutor(this.executor);
+			}
+		}
+	}
+
 	private static void appendSkipJars(String systemPropertyKey, String skipJars) {
 		if (skipJars != null && !skipJars.trim().isEmpty()) {
 			String oldValue = System.getProperty(systemPropertyKey);
@@ -984,23 +2272,12 @@ public class EmbeddedTomcat {
 
 	private void sendShutdownCommand() {
 		if (this.shutdownPort != null) {
+			int timeout = this.secondsToWaitBeforePortBecomesAvailable * 1000;
 			try {
-				final Socket socket = new Socket("localhost", this.shutdownPort);
-				final OutputStream stream = socket.getOutputStream();
-
-				for (int i = 0; i < "SHUTDOWN".length(); i++) {
-					stream.write("SHUTDOWN".charAt(i));
-				}
-
-				stream.flush();
-				stream.close();
-				socket.close();
-			}
-			catch (UnknownHostException e) {
-				if (!this.silent) {
-					log.debug(e);
+				if (ShutdownListener.sendShutdown(this.shutdownPort, timeout)) {
+					// the previous instance has closed its connectors
+					return;
 				}
-				return;
 			}
 			catch (IOException e) {
 				if (!this.silent) {
@@ -1009,7 +2286,8 @@ public class EmbeddedTomcat {
 				return;
 			}
 
-			// try to wait the specified amount of seconds until port becomes
+			// the previous instance does not acknowledge the shutdown (e.g. an older
+			// version). Wait the specified amount of seconds until the port becomes
 			// available
 			int count = 0;
 			while (count < this.secondsToWaitBeforePortBecomesAvailable * 2) {
@@ -0,0 +1,443 @@
+/**
+ * Copyright 2012-2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.rasc.embeddedtc;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+
+import org.apache.juli.logging.Log;
+import org.apache.juli.logging.LogFactory;
+
+/**
+ * Persistent cache that records per jar file which Servlet 3.0 pluggability features
+ * (web fragments, TLDs, ServletContainerInitializers, resources and annotations) the
+ * jar provides. Entries are keyed by the absolute path of the jar and are only valid as
+ * long as size and last modification time of the jar do not change.
+ * <p>
+ * The result of the annotation scan depends on the @HandlesTypes types of the
+ * ServletContainerInitializers of a context, it is recorded per signature of these
+ * types. Contexts with different types can share one cache.
+ *
+ * @author Ralph Schaer
+ */
+public class JarScanCache {
+
+	public static final int WEB_FRAGMENT = 1;
+
+	public static final int TLD = 2;
+
+	public static final int SCI = 4;
+
+	public static final int RESOURCES = 8;
+
+	/**
+	 * Feature for {@link #getJarsWithout(int)}: the annotation scan of the jar found
+	 * servlets, filters, listeners or classes matching a @HandlesTypes annotation
+	 */
+	public static final int ANNOTATIONS = 16;
+
+	private static final int FEATURES = WEB_FRAGMENT | TLD | SCI | RESOURCES;
+
+	private static final String HANDLES_TYPES_KEY_PREFIX = "@handlesTypes.";
+
+	private static final Log log = LogFactory.getLog(JarScanCache.class);
+
+	private final File cacheFile;
+
+	private final ConcurrentMap<String, Entry> entries;
+
+	/**
+	 * The @HandlesTypes signatures read from the cache file
+	 */
+	private final Set<String> loadedHandlesTypes;
+
+	/**
+	 * The @HandlesTypes signatures of the contexts that were configured since the cache
+	 * was loaded
+	 */
+	private final Set<String> usedHandlesTypes;
+
+	private volatile boolean modified;
+
+	public JarScanCache(File cacheFile) {
+		this.cacheFile = cacheFile;
+		this.entries = new ConcurrentHashMap<String, Entry>();
+		this.loadedHandlesTypes = new HashSet<String>();
+		this.usedHandlesTypes = Collections
+				.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+		this.modified = false;
+		load();
+	}
+
+	/**
+	 * Returns the cache entry of the jar. Indexes the jar if there is no entry or if
+	 * the jar changed since it was recorded.
+	 *
+	 * @param jar the jar file
+	 * @return the cache entry or null if the jar could not be read
+	 */
+	public Entry getEntry(File jar) {
+		String key = jar.getAbsolutePath();
+		Entry entry = this.entries.get(key);
+		if (entry != null && entry.matches(jar)) {
+			return entry;
+		}
+
+		try {
+			entry = index(jar);
+		}
+		catch (IOException e) {
+			log.debug("Indexing " + jar + " failed", e);
+			this.entries.remove(key);
+			return null;
+		}
+
+		this.entries.put(key, entry);
+		this.modified = true;
+		return entry;
+	}
+
+	/**
+	 * Returns the valid cache entry of the jar without indexing it
+	 *
+	 * @param jar the jar file
+	 * @return the cache entry or null if the cache does not contain a valid entry
+	 */
+	public Entry getCachedEntry(File jar) {
+		Entry entry = this.entries.get(jar.getAbsolutePath());
+		if (entry != null && entry.matches(jar)) {
+			return entry;
+		}
+		return null;
+	}
+
+	/**
+	 * Records the result of the annotation scan of a jar
+	 *
+	 * @param jar the jar file
+	 * @param handlesTypes signature of the @HandlesTypes types of the context
+	 * @param found true if the scan found annotations or @HandlesTypes matches
+	 */
+	public void recordAnnotations(File jar, String handlesTypes, boolean found) {
+		Entry entry = getEntry(jar);
+		if (entry != null) {
+			entry.setAnnotations(handlesTypes, found);
+			this.modified = true;
+		}
+	}
+
+	/**
+	 * Registers the @HandlesTypes types of a context that is configured. The cache file
+	 * only keeps the annotation results of the signatures that were registered since
+	 * the cache was loaded.
+	 *
+	 * @param handlesTypes signature of the @HandlesTypes types of the context
+	 */
+	public void addHandlesTypes(String handlesTypes) {
+		if (this.usedHandlesTypes.add(handlesTypes)) {
+			this.modified = true;
+		}
+	}
+
+	/**
+	 * Returns the file names of all recorded and unchanged jars that provide none of the
+	 * specified features. A jar only qualifies for {@link #ANNOTATIONS} if it was already
+	 * scanned for annotations with the @HandlesTypes types of every context recorded in
+	 * the cache file and nothing was found. If two jars share the same file name, the
+	 * name is only returned if both jars qualify.
+	 *
+	 * @param features bit mask of the features ({@link #WEB_FRAGMENT}, {@link #TLD},
+	 * {@link #SCI}, {@link #RESOURCES}, {@link #ANNOTATIONS})
+	 * @return comma separated list of jar file names
+	 */
+	public String getJarsWithout(int features) {
+		Set<String> handlesTypes = new HashSet<String>(this.loadedHandlesTypes);
+		handlesTypes.addAll(this.usedHandlesTypes);
+
+		Map<String, Boolean> skippable = new TreeMap<String, Boolean>();
+		for (Map.Entry<String, Entry> mapEntry : this.entries.entrySet()) {
+			File jar = new File(mapEntry.getKey());
+			Entry entry = mapEntry.getValue();
+			if (!jar.exists() || !entry.matches(jar)) {
+				continue;
+			}
+
+			boolean skip = !entry.has(features & FEATURES);
+			if ((features & ANNOTATIONS) != 0
+					&& !entry.isWithoutAnnotations(handlesTypes)) {
+				skip = false;
+			}
+
+			Boolean previous = skippable.get(jar.getName());
+			skippable.put(jar.getName(), previous == null ? skip : previous && skip);
+		}
+
+		StringBuilder sb = new StringBuilder();
+		for (Map.Entry<String, Boolean> mapEntry : skippable.entrySet()) {
+			if (mapEntry.getValue()) {
+				if (sb.length() > 0) {
+					sb.append(',');
+				}
+				sb.append(mapEntry.getKey());
+			}
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Writes the cache to disk if it was modified
+	 */
+	public synchronized void store() {
+		if (!this.modified) {
+			return;
+		}
+
+		// the signatures of contexts that did not run since the cache was loaded are
+		// dropped, their results would keep the jars from being learned
+		Set<String> handlesTypes = this.usedHandlesTypes.isEmpty()
+				? this.loadedHandlesTypes : this.usedHandlesTypes;
+		Properties props = new Properties();
+		Map<String, String> ids = new HashMap<String, String>();
+		for (String signature : handlesTypes) {
+			String id = String.valueOf(ids.size());
+			ids.put(signature, id);
+			props.setProperty(HANDLES_TYPES_KEY_PREFIX + id, signature);
+		}
+		for (Map.Entry<String, Entry> entry : this.entries.entrySet()) {
+			props.setProperty(entry.getKey(), entry.getValue().format(ids));
+		}
+
+		if (PropertiesFile.store(this.cacheFile, props, "jar scan cache")) {
+			this.modified = false;
+		}
+	}
+
+	private void load() {
+		Properties props = PropertiesFile.load(this.cacheFile, "jar scan cache");
+		if (props == null) {
+			return;
+		}
+
+		Map<String, String> signatures = new HashMap<String, String>();
+		for (String key : props.stringPropertyNames()) {
+			if (key.startsWith(HANDLES_TYPES_KEY_PREFIX)) {
+				signatures.put(key.substring(HANDLES_TYPES_KEY_PREFIX.length()),
+						props.getProperty(key));
+			}
+		}
+		this.loadedHandlesTypes.addAll(signatures.values());
+
+		for (String key : props.stringPropertyNames()) {
+			if (!key.startsWith("@")) {
+				Entry entry = Entry.parse(props.getProperty(key), signatures);
+				if (entry != null) {
+					this.entries.put(key, entry);
+				}
+			}
+		}
+	}
+
+	private static Entry index(File jar) throws IOException {
+		long size = jar.length();
+		long lastModified = jar.lastModified();
+
+		int flags = 0;
+		JarFile jarFile = new JarFile(jar);
+		try {
+			Enumeration<JarEntry> jarEntries = jarFile.entries();
+			while (jarEntries.hasMoreElements()) {
+				String name = jarEntries.nextElement().getName();
+				if (!name.startsWith("META-INF/")) {
+					continue;
+				}
+				if (name.equals("META-INF/web-fragment.xml")) {
+					flags |= WEB_FRAGMENT;
+				}
+				else if (name.endsWith(".tld")) {
+					flags |= TLD;
+				}
+				else if (name
+						.equals("META-INF/services/javax.servlet.ServletContainerInitializer")) {
+					flags |= SCI;
+				}
+				else if (name.startsWith("META-INF/resources/")) {
+					flags |= RESOURCES;
+				}
+			}
+		}
+		finally {
+			jarFile.close();
+		}
+
+		return new Entry(size, lastModified, flags);
+	}
+
+	/**
+	 * Converts a jar: or file: URL that points to a jar file into a File
+	 *
+	 * @param url the url of the jar
+	 * @return the jar file or null if the url does not point to a local jar file
+	 */
+	public static File toJarFile(URL url) {
+		String spec = url.toString();
+		if (spec.startsWith("jar:")) {
+			int separator = spec.indexOf("!/");
+			spec = spec.substring(4, separator == -1 ? spec.length() : separator);
+		}
+		if (!spec.startsWith("file:") || !spec.endsWith(".jar")) {
+			return null;
+		}
+		try {
+			return new File(new URL(spec).toURI());
+		}
+		catch (URISyntaxException e) {
+			return null;
+		}
+		catch (IOException e) {
+			return null;
+		}
+		catch (IllegalArgumentException e) {
+			return null;
+		}
+	}
+
+	public static class Entry {
+
+		private final long size;
+
+		private final long lastModified;
+
+		private final int flags;
+
+		/**
+		 * Results of the annotation scan per @HandlesTypes signature
+		 */
+		private final ConcurrentMap<String, Boolean> annotations = new ConcurrentHashMap<String, Boolean>();
+
+		Entry(long size, long lastModified, int flags) {
+			this.size = size;
+			this.lastModified = lastModified;
+			this.flags = flags & FEATURES;
+		}
+
+		/**
+		 * @param value size, last modification time, flags and the annotation results
+		 * as <code>id:found</code> pairs separated by ';'
+		 * @param signatures the @HandlesTypes signatures by id
+		 */
+		static Entry parse(String value, Map<String, String> signatures) {
+			String[] parts = value.split(",", -1);
+			if (parts.length != 3 && parts.length != 4) {
+				return null;
+			}
+			try {
+				Entry entry = new Entry(Long.parseLong(parts[0]), Long.parseLong(parts[1]),
+						Integer.parseInt(parts[2]));
+				if (parts.length == 4 && parts[3].length() > 0) {
+					for (String result : parts[3].split(";")) {
+						int colon = result.indexOf(':');
+						String signature = colon == -1 ? null
+								: signatures.get(result.substring(0, colon));
+						if (signature != null) {
+							entry.annotations.put(signature,
+									Boolean.valueOf(result.substring(colon + 1)));
+						}
+					}
+				}
+				return entry;
+			}
+			catch (NumberFormatException e) {
+				return null;
+			}
+		}
+
+		boolean matches(File jar) {
+			return this.size == jar.length() && this.lastModified == jar.lastModified();
+		}
+
+		public boolean has(int flag) {
+			return (this.flags & flag) != 0;
+		}
+
+		/**
+		 * Returns false if a previous annotation scan of this jar with the same types of
+		 * the @HandlesTypes annotations found nothing
+		 *
+		 * @param handlesTypes signature of the @HandlesTypes types of the context
+		 * @return true if the jar has to be scanned for annotations
+		 */
+		public boolean isAnnotationScanNeeded(String handlesTypes) {
+			return !Boolean.FALSE.equals(this.annotations.get(handlesTypes));
+		}
+
+		/**
+		 * @return true if the jar was scanned with all the signatures and nothing was
+		 * found
+		 */
+		boolean isWithoutAnnotations(Set<String> handlesTypes) {
+			if (handlesTypes.isEmpty()) {
+				return false;
+			}
+			for (String signature : handlesTypes) {
+				if (isAnnotationScanNeeded(signature)) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		void setAnnotations(String handlesTypes, boolean found) {
+			this.annotations.put(handlesTypes, Boolean.valueOf(found));
+		}
+
+		/**
+		 * @param ids ids of the @HandlesTypes signatures that are written, the results
+		 * of the other signatures are dropped
+		 */
+		String format(Map<String, String> ids) {
+			StringBuilder sb = new StringBuilder();
+			sb.append(this.size).append(',').append(this.lastModified).append(',')
+					.append(this.flags).append(',');
+			boolean first = true;
+			for (Map.Entry<String, Boolean> result : this.annotations.entrySet()) {
+				String id = ids.get(result.getKey());
+				if (id != null) {
+					if (!first) {
+						sb.append(';');
+					}
+					sb.append(id).append(':').append(result.getValue());
+					first = false;
+				}
+			}
+			return sb.toString();
+		}
+	}
+
+}
@@ -0,0 +1,294 @@
+/**
+ * Copyright 2012-2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.rasc.embeddedtc;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+/**
+ * Statement execution times, connection borrow times and the slowest statements of one
+ * connection pool. Recorded by the {@link JdbcStatisticsInterceptor} and the
+ * {@link JdbcStatisticsDataSourceFactory} if {@link EmbeddedTomcat#enableJdbcStatistics()}
+ * is called. All times are in microseconds.
+ *
+ * @author Ralph Schaer
+ */
+public class JdbcStatistics {
+
+	/**
+	 * Statements that do not fit anymore are only recorded in the histogram
+	 */
+	private static final int MAX_STATEMENTS = 1000;
+
+	private static final int MAX_SQL_LENGTH = 2048;
+
+	/**
+	 * SQL strings that do not fit anymore are normalized on every execution
+	 */
+	private static final int MAX_SHAPES = 4096;
+
+	private static final Pattern PARAMETER_LIST = Pattern
+			.compile("\\(\\s*\\?(\\s*,\\s*\\?)+\\s*\\)");
+
+	private static final ConcurrentMap<String, JdbcStatistics> registry = new ConcurrentHashMap<String, JdbcStatistics>();
+
+	private static final AtomicInteger nextKey = new AtomicInteger();
+
+	private final String name;
+
+	private final String key;
+
+	private final LatencyHistogram queryTimes = new LatencyHistogram();
+
+	private final LatencyHistogram borrowTimes = new LatencyHistogram();
+
+	private final AtomicLong failedQueries = new AtomicLong();
+
+	private final ConcurrentMap<String, QueryStatistics> statements = new ConcurrentHashMap<String, QueryStatistics>();
+
+	private final ConcurrentMap<String, String> shapes = new ConcurrentHashMap<String, String>();
+
+	/**
+	 * Execution times of one statement shape
+	 */
+	public static class QueryStatistics {
+		private final String sql;
+
+		private final AtomicLong count = new AtomicLong();
+
+		private final AtomicLong totalNanos = new AtomicLong();
+
+		private final AtomicLong maxNanos = new AtomicLong();
+
+		QueryStatistics(String sql) {
+			this.sql = sql;
+		}
+
+		void record(long nanos) {
+			this.count.incrementAndGet();
+			this.totalNanos.addAndGet(nanos);
+			long max = this.maxNanos.get();
+			while (nanos > max && !this.maxNanos.compareAndSet(max, nanos)) {
+				max = this.maxNanos.get();
+			}
+		}
+
+		/**
+		 * @return the statement with literals replaced by ?
+		 */
+		public String getSql() {
+			return this.sql;
+		}
+
+		public long getCount() {
+			return this.count.get();
+		}
+
+		public long getTotalMicros() {
+			return TimeUnit.NANOSECONDS.toMicros(this.totalNanos.get());
+		}
+
+		public long getMeanMicros() {
+			long c = this.count.get();
+			return c == 0 ? 0 : getTotalMicros() / c;
+		}
+
+		public long getMaxMicros() {
+			return TimeUnit.NANOSECONDS.toMicros(this.maxNanos.get());
+		}
+	}
+
+	/**
+	 * @param name the JNDI name of the pool
+	 */
+	public JdbcStatistics(String name) {
+		this.name = name;
+		this.key = "s" + nextKey.incrementAndGet();
+	}
+
+	static JdbcStatistics lookup(String key) {
+		return key != null ? registry.get(key) : null;
+	}
+
+	/**
+	 * Makes the statistics available to the interceptor and the data source factory,
+	 * that tomcat-jdbc and JNDI instantiate by class name
+	 */
+	void register() {
+		registry.put(this.key, this);
+	}
+
+	void unregister() {
+		registry.remove(this.key);
+	}
+
+	String getKey() {
+		return this.key;
+	}
+
+	public String getName() {
+		return this.name;
+	}
+
+	/**
+	 * @return execution times of all statements in microseconds
+	 */
+	public LatencyHistogram getQueryTimes() {
+		return this.queryTimes;
+	}
+
+	/**
+	 * @return the time DataSource.getConnection() waited for a connection in
+	 * microseconds
+	 */
+	public LatencyHistogram getBorrowTimes() {
+		return this.borrowTimes;
+	}
+
+	/**
+	 * @return number of statements that threw an exception
+	 */
+	public long getFailedQueries() {
+		return this.failedQueries.get();
+	}
+
+	void recordBorrow(long nanos) {
+		this.borrowTimes.record(TimeUnit.NANOSECONDS.toMicros(nanos));
+	}
+
+	/**
+	 * Returns the normalized statement, see {@link #normalize(String)}. The shapes of
+	 * the first {@value #MAX_SHAPES} SQL strings up to {@value #MAX_SQL_LENGTH}
+	 * characters are cached.
+	 */
+	String shape(String sql) {
+		if (sql == null) {
+			return normalize(null);
+		}
+		String shape = this.shapes.get(sql);
+		if (shape == null) {
+			shape = normalize(sql);
+			if (sql.length() <= MAX_SQL_LENGTH && this.shapes.size() < MAX_SHAPES) {
+				this.shapes.putIfAbsent(sql, shape);
+			}
+		}
+		return shape;
+	}
+
+	/**
+	 * @param shape the normalized statement, see {@link #shape(String)}
+	 */
+	void recordQuery(String shape, long nanos, boolean failed) {
+		this.queryTimes.record(TimeUnit.NANOSECONDS.toMicros(nanos));
+		if (failed) {
+			this.failedQueries.incrementAndGet();
+		}
+
+		QueryStatistics statistics = this.statements.get(shape);
+		if (statistics == null) {
+			if (this.statements.size() >= MAX_STATEMENTS) {
+				return;
+			}
+			statistics = new QueryStatistics(shape);
+			QueryStatistics existing = this.statements.putIfAbsent(shape, statistics);
+			if (existing != null) {
+				statistics = existing;
+			}
+		}
+		statistics.record(nanos);
+	}
+
+	/**
+	 * @param n maximum number of returned statements
+	 * @return the statements with the highest maximum execution time, slowest first
+	 */
+	public List<QueryStatistics> getSlowestQueries(int n) {
+		List<QueryStatistics> result = new ArrayList<QueryStatistics>(
+				this.statements.values());
+		Collections.sort(result, new Comparator<QueryStatistics>() {
+			@Override
+			public int compare(QueryStatistics q1, QueryStatistics q2) {
+				long m1 = q1.maxNanos.get();
+				long m2 = q2.maxNanos.get();
+				return m1 > m2 ? -1 : m1 == m2 ? 0 : 1;
+			}
+		});
+		return result.size() > n ? new ArrayList<QueryStatistics>(result.subList(0, n))
+				: result;
+	}
+
+	/**
+	 * Replaces string and number literals with ?, collapses whitespace and lists of
+	 * parameters, so statements that only differ in their parameters share one entry
+	 */
+	static String normalize(String sql) {
+		if (sql == null) {
+			return "[batch]";
+		}
+		StringBuilder sb = new StringBuilder(Math.min(sql.length(), MAX_SQL_LENGTH));
+		int length = sql.length();
+		int i = 0;
+		while (i < length && sb.length() < MAX_SQL_LENGTH) {
+			char c = sql.charAt(i);
+			if (c == '\'') {
+				i++;
+				while (i < length) {
+					if (sql.charAt(i) == '\'') {
+						if (i + 1 < length && sql.charAt(i + 1) == '\'') {
+							i += 2;
+							continue;
+						}
+						break;
+					}
+					i++;
+				}
+				i++;
+				sb.append('?');
+			}
+			else if (Character.isDigit(c) && (sb.length() == 0
+					|| !Character.isLetterOrDigit(sb.charAt(sb.length() - 1))
+							&& sb.charAt(sb.length() - 1) != '_')) {
+				while (i < length && (Character.isLetterOrDigit(sql.charAt(i))
+						|| sql.charAt(i) == '.')) {
+					i++;
+				}
+				sb.append('?');
+			}
+			else if (Character.isWhitespace(c)) {
+				while (i < length && Character.isWhitespace(sql.charAt(i))) {
+					i++;
+				}
+				if (sb.length() > 0 && i < length) {
+					sb.append(' ');
+				}
+			}
+			else {
+				sb.append(c);
+				i++;
+			}
+		}
+		return PARAMETER_LIST.matcher(sb).replaceAll("(?)");
+	}
+
+}
@@ -0,0 +1,118 @@
+/**
+ * Copyright 2012-2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.rasc.embeddedtc;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Hashtable;
+import java.util.Properties;
+
+import javax.naming.Context;
+import javax.naming.Name;
+import javax.naming.RefAddr;
+import javax.naming.Reference;
+import javax.sql.DataSource;
+
+import org.apache.tomcat.jdbc.pool.DataSourceFactory;
+import org.apache.tomcat.jdbc.pool.PoolConfiguration;
+
+/**
+ * JNDI object factory that creates a tomcat-jdbc DataSource which records how long
+ * getConnection() waits for a connection. The {@link JdbcStatistics} are selected with
+ * the resource property <code>statistics</code>.
+ *
+ * @author Ralph Schaer
+ */
+public class JdbcStatisticsDataSourceFactory extends DataSourceFactory {
+
+	/**
+	 * DataSourceFactory only passes the known pool properties to createDataSource
+	 */
+	private static final ThreadLocal<JdbcStatistics> currentStatistics = new ThreadLocal<JdbcStatistics>();
+
+	@Override
+	public Object getObjectInstance(Object obj, Name name, Context nameCtx,
+			Hashtable<?, ?> environment) throws Exception {
+		RefAddr statistics = obj instanceof Reference
+				? ((Reference) obj).get("statistics") : null;
+		if (statistics == null) {
+			return super.getObjectInstance(obj, name, nameCtx, environment);
+		}
+
+		currentStatistics.set(JdbcStatistics.lookup((String) statistics.getContent()));
+		try {
+			return super.getObjectInstance(obj, name, nameCtx, environment);
+		}
+		finally {
+			currentStatistics.remove();
+		}
+	}
+
+	@Override
+	public DataSource createDataSource(Properties properties, Context context,
+			boolean XA) throws Exception {
+		JdbcStatistics statistics = currentStatistics.get();
+		if (XA || statistics == null) {
+			return super.createDataSource(properties, context, XA);
+		}
+
+		PoolConfiguration poolProperties = parsePoolProperties(properties);
+		if (poolProperties.getDataSourceJNDI() != null
+				&& poolProperties.getDataSource() == null) {
+			performJNDILookup(context, poolProperties);
+		}
+		InstrumentedDataSource dataSource = new InstrumentedDataSource(poolProperties,
+				statistics);
+		dataSource.createPool();
+		return dataSource;
+	}
+
+	private static class InstrumentedDataSource
+			extends org.apache.tomcat.jdbc.pool.DataSource {
+
+		private final JdbcStatistics statistics;
+
+		InstrumentedDataSource(PoolConfiguration poolProperties,
+				JdbcStatistics statistics) {
+			super(poolProperties);
+			this.statistics = statistics;
+		}
+
+		@Override
+		public Connection getConnection() throws SQLException {
+			long start = System.nanoTime();
+			try {
+				return super.getConnection();
+			}
+			finally {
+				this.statistics.recordBorrow(System.nanoTime() - start);
+			}
+		}
+
+		@Override
+		public Connection getConnection(String username, String password)
+				throws SQLException {
+			long start = System.nanoTime();
+			try {
+				return super.getConnection(username, password);
+			}
+			finally {
+				this.statistics.recordBorrow(System.nanoTime() - start);
+			}
+		}
+	}
+
+}
@@ -0,0 +1,152 @@
+/**
+ * Copyright 2012-2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.rasc.embeddedtc;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.sql.SQLException;
+import java.util.Map;
+
+import org.apache.tomcat.jdbc.pool.ConnectionPool;
+import org.apache.tomcat.jdbc.pool.PoolProperties.InterceptorProperty;
+import org.apache.tomcat.jdbc.pool.PooledConnection;
+import org.apache.tomcat.jdbc.pool.interceptor.AbstractCreateStatementInterceptor;
+
+/**
+ * tomcat-jdbc interceptor that records the execution time of every statement in a
+ * {@link JdbcStatistics}. The statistics are selected with the property
+ * <code>statistics</code>, {@link DataSourceBuilder} configures the interceptor if
+ * {@link EmbeddedTomcat#enableJdbcStatistics()} is called.
+ *
+ * @author Ralph Schaer
+ */
+public class JdbcStatisticsInterceptor extends AbstractCreateStatementInterceptor {
+
+	private JdbcStatistics statistics;
+
+	@Override
+	public void setProperties(Map<String, InterceptorProperty> properties) {
+		super.setProperties(properties);
+		InterceptorProperty key = properties.get("statistics");
+		this.statistics = key != null ? JdbcStatistics.lookup(key.getValue()) : null;
+	}
+
+	@Override
+	public Object createStatement(Object proxy, Method method, Object[] args,
+			Object statement, long time) {
+		if (this.statistics == null) {
+			return statement;
+		}
+
+		String name = method.getName();
+		int index;
+		if (compare(CREATE_STATEMENT, name)) {
+			index = CREATE_STATEMENT_IDX;
+		}
+		else if (compare(PREPARE_STATEMENT, name)) {
+			index = PREPARE_STATEMENT_IDX;
+		}
+		else if (compare(PREPARE_CALL, name)) {
+			index = PREPARE_CALL_IDX;
+		}
+		else {
+			return statement;
+		}
+
+		// prepared statements are normalized once, not on every execution
+		String shape = index != CREATE_STATEMENT_IDX && args != null && args.length > 0
+				? this.statistics.shape((String) args[0]) : null;
+		try {
+			Constructor<?> constructor = getConstructor(index, method.getReturnType());
+			return constructor
+					.newInstance(new StatementHandler(proxy, statement, shape));
+		}
+		catch (Exception e) {
+			return statement;
+		}
+	}
+
+	@Override
+	public void closeInvoked() {
+		// nothing to clean up
+	}
+
+	@Override
+	public void reset(ConnectionPool parent, PooledConnection con) {
+		// the statistics do not depend on the connection
+	}
+
+	private class StatementHandler implements InvocationHandler {
+
+		private final Object connection;
+
+		private final Object delegate;
+
+		/**
+		 * The normalized statement of a prepared statement or call, null for a plain
+		 * statement
+		 */
+		private final String shape;
+
+		StatementHandler(Object connection, Object delegate, String shape) {
+			this.connection = connection;
+			this.delegate = delegate;
+			this.shape = shape;
+		}
+
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args)
+				throws Throwable {
+			if (compare(GETCONNECTION_VAL, method)) {
+				return this.connection;
+			}
+			if (!isExecute(method, false)) {
+				return invokeDelegate(method, args);
+			}
+
+			String query = this.shape;
+			if (query == null) {
+				query = JdbcStatisticsInterceptor.this.statistics
+						.shape(args != null && args.length > 0 && args[0] instanceof String
+								? (String) args[0] : null);
+			}
+			long start = System.nanoTime();
+			boolean failed = true;
+			try {
+				Object result = invokeDelegate(method, args);
+				failed = false;
+				return result;
+			}
+			finally {
+				JdbcStatisticsInterceptor.this.statistics.recordQuery(query,
+						System.nanoTime() - start, failed);
+			}
+		}
+
+		private Object invokeDelegate(Method method, Object[] args) throws Throwable {
+			try {
+				return method.invoke(this.delegate, args);
+			}
+			catch (InvocationTargetException e) {
+				Throwable cause = e.getCause();
+				throw cause != null ? cause : new SQLException(e);
+			}
+		}
+	}
+
+}
@@ -0,0 +1,115 @@
+/**
+ * Copyright 2012-2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.rasc.embeddedtc;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.List;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Returns the {@link JdbcStatistics} of the connection pools as JSON. Contains per pool
+ * the count, mean, p50, p99, p999 and maximum of the connection borrow and statement
+ * execution times in microseconds and the slowest statements. The parameter
+ * <code>top</code> sets the number of statements, default 10.
+ *
+ * @author Ralph Schaer
+ */
+public class JdbcStatisticsServlet extends HttpServlet {
+
+	private static final long serialVersionUID = 1L;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static final int DEFAULT_TOP = 10;
+
+	private final transient List<JdbcStatistics> statistics;
+
+	public JdbcStatisticsServlet(List<JdbcStatistics> statistics) {
+		this.statistics = statistics;
+	}
+
+	@Override
+	protected void doGet(HttpServletRequest req, HttpServletResponse resp)
+			throws ServletException, IOException {
+
+		int top = DEFAULT_TOP;
+		String topParameter = req.getParameter("top");
+		if (topParameter != null) {
+			try {
+				top = Math.max(0, Integer.parseInt(topParameter));
+			}
+			catch (NumberFormatException e) {
+				// use the default
+			}
+		}
+
+		StringBuilder sb = new StringBuilder(1000);
+		sb.append("{\"pools\":[");
+		boolean first = true;
+		for (JdbcStatistics pool : this.statistics) {
+			if (!first) {
+				sb.append(',');
+			}
+			first = false;
+
+			sb.append("{\"name\":");
+			JsonUtil.appendString(sb, pool.getName());
+			sb.append(",\"borrow\":");
+			appendHistogram(sb, pool.getBorrowTimes());
+			sb.append(",\"query\":");
+			appendHistogram(sb, pool.getQueryTimes());
+			sb.append(",\"failedQueries\":").append(pool.getFailedQueries());
+			sb.append(",\"slowest\":[");
+			boolean firstQuery = true;
+			for (JdbcStatistics.QueryStatistics query : pool.getSlowestQueries(top)) {
+				if (!firstQuery) {
+					sb.append(',');
+				}
+				firstQuery = false;
+				sb.append("{\"sql\":");
+				JsonUtil.appendString(sb, query.getSql());
+				sb.append(",\"count\":").append(query.getCount());
+				sb.append(",\"mean\":").append(query.getMeanMicros());
+				sb.append(",\"max\":").append(query.getMaxMicros());
+				sb.append('}');
+			}
+			sb.append("]}");
+		}
+		sb.append("]}");
+
+		byte[] body = sb.toString().getBytes(UTF8);
+		resp.setContentType("application/json;charset=UTF-8");
+		resp.setHeader("Cache-Control", "no-cache");
+		resp.setContentLength(body.length);
+		resp.getOutputStream().write(body);
+	}
+
+	private static void appendHistogram(StringBuilder sb, LatencyHistogram histogram) {
+		sb.append("{\"count\":").append(histogram.getTotalCount());
+		sb.append(",\"mean\":").append(Math.round(histogram.getMean()));
+		sb.append(",\"p50\":").append(histogram.getValueAtPercentile(50));
+		sb.append(",\"p99\":").append(histogram.getValueAtPercentile(99));
+		sb.append(",\"p999\":").append(histogram.getValueAtPercentile(99.9));
+		sb.append(",\"max\":").append(histogram.getMaxValue());
+		sb.append('}');
+	}
+
+}
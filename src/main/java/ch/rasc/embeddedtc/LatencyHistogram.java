@@ -0,0 +1,152 @@
+/**
+ * Copyright 2012-2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.rasc.embeddedtc;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free histogram with a fixed number of log-linear buckets, similar to the
+ * buckets of an HdrHistogram with two significant digits. Every power of two range is
+ * divided into 32 linear sub buckets, so the relative error of a reported value is
+ * less than 3.2%. Recording a value does not allocate.
+ *
+ * @author Ralph Schaer
+ */
+public class LatencyHistogram {
+
+	private static final int SUB_BUCKET_BITS = 6;
+
+	private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+
+	private static final int SUB_BUCKET_HALF = SUB_BUCKET_COUNT / 2;
+
+	/**
+	 * Values greater or equal 2^40 (about 12 days in microseconds) are recorded in the
+	 * last bucket
+	 */
+	private static final int MAX_VALUE_BITS = 40;
+
+	private static final int BUCKET_COUNT = (MAX_VALUE_BITS - SUB_BUCKET_BITS + 1)
+			* SUB_BUCKET_HALF + SUB_BUCKET_HALF;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+
+	private final AtomicLong totalCount = new AtomicLong();
+
+	private final AtomicLong totalValue = new AtomicLong();
+
+	private final AtomicLong maxValue = new AtomicLong();
+
+	private final long startTime = System.currentTimeMillis();
+
+	/**
+	 * Records a value
+	 *
+	 * @param value a non negative value, negative values are recorded as 0
+	 */
+	public void record(long value) {
+		long v = value < 0 ? 0 : value;
+		this.counts.incrementAndGet(indexOf(v));
+		this.totalCount.incrementAndGet();
+		this.totalValue.addAndGet(v);
+
+		long max = this.maxValue.get();
+		while (v > max && !this.maxValue.compareAndSet(max, v)) {
+			max = this.maxValue.get();
+		}
+	}
+
+	static int indexOf(long value) {
+		if (value < SUB_BUCKET_COUNT) {
+			return (int) value;
+		}
+		int shift = 64 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+		if (shift > MAX_VALUE_BITS - SUB_BUCKET_BITS) {
+			return BUCKET_COUNT - 1;
+		}
+		return shift * SUB_BUCKET_HALF + (int) (value >>> shift);
+	}
+
+	/**
+	 * Returns the highest value that is recorded in the same bucket as the values of the
+	 * specified index
+	 */
+	static long highestValueOf(int index) {
+		if (index < SUB_BUCKET_COUNT) {
+			return index;
+		}
+		int shift = index / SUB_BUCKET_HALF - 1;
+		long subBucket = index - shift * SUB_BUCKET_HALF;
+		return ((subBucket + 1) << shift) - 1;
+	}
+
+	public long getTotalCount() {
+		return this.totalCount.get();
+	}
+
+	public long getMaxValue() {
+		return this.maxValue.get();
+	}
+
+	public double getMean() {
+		long count = this.totalCount.get();
+		return count == 0 ? 0 : (double) this.totalValue.get() / count;
+	}
+
+	/**
+	 * @return recorded values per second since the histogram was created
+	 */
+	public double getThroughput() {
+		long elapsed = System.currentTimeMillis() - this.startTime;
+		return elapsed <= 0 ? 0 : this.totalCount.get() * 1000.0 / elapsed;
+	}
+
+	/**
+	 * Returns the value at the specified percentile. The returned value is the upper
+	 * bound of the bucket that contains the percentile, but never greater than the
+	 * maximum recorded value.
+	 *
+	 * @param percentile a value between 0 and 100
+	 * @return value at the percentile or 0 if no value was recorded
+	 */
+	public long getValueAtPercentile(double percentile) {
+		long[] snapshot = new long[BUCKET_COUNT];
+		long count = 0;
+		for (int i = 0; i < BUCKET_COUNT; i++) {
+			snapshot[i] = this.counts.get(i);
+			count += snapshot[i];
+		}
+		if (count == 0) {
+			return 0;
+		}
+
+		long target = (long) Math.ceil(Math.min(percentile, 100.0) / 100.0 * count);
+		if (target < 1) {
+			target = 1;
+		}
+
+		long seen = 0;
+		for (int i = 0; i < BUCKET_COUNT; i++) {
+			seen += snapshot[i];
+			if (seen >= target) {
+				return Math.min(highestValueOf(i), this.maxValue.get());
+			}
+		}
+		return this.maxValue.get();
+	}
+
+}
@@ -0,0 +1,94 @@
+/**
+ * Copyright 2012-2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.rasc.embeddedtc;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Map;
+import java.util.TreeMap;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Returns the request latencies recorded by a {@link LatencyValve} as JSON. Contains one
+ * entry per context and status class with the number of requests, the throughput in
+ * requests per second and the mean, p50, p99, p999 and maximum latency in
+ * microseconds.
+ *
+ * @author Ralph Schaer
+ */
+public class LatencyMetricsServlet extends HttpServlet {
+
+	private static final long serialVersionUID = 1L;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private final transient LatencyValve latencyValve;
+
+	public LatencyMetricsServlet(LatencyValve latencyValve) {
+		this.latencyValve = latencyValve;
+	}
+
+	@Override
+	protected void doGet(HttpServletRequest req, HttpServletResponse resp)
+			throws ServletException, IOException {
+
+		StringBuilder sb = new StringBuilder(500);
+		sb.append("{\"latencies\":[");
+
+		Map<String, LatencyHistogram[]> sorted = new TreeMap<String, LatencyHistogram[]>(
+				this.latencyValve.getHistograms());
+		boolean first = true;
+		for (Map.Entry<String, LatencyHistogram[]> entry : sorted.entrySet()) {
+			LatencyHistogram[] histograms = entry.getValue();
+			for (int i = 0; i < histograms.length; i++) {
+				LatencyHistogram histogram = histograms[i];
+				if (histogram.getTotalCount() == 0) {
+					continue;
+				}
+				if (!first) {
+					sb.append(',');
+				}
+				first = false;
+
+				sb.append("{\"context\":");
+				JsonUtil.appendString(sb, entry.getKey());
+				sb.append(",\"status\":");
+				JsonUtil.appendString(sb, LatencyValve.STATUS_CLASSES[i]);
+				sb.append(",\"count\":").append(histogram.getTotalCount());
+				sb.append(",\"throughput\":")
+						.append(Math.round(histogram.getThroughput() * 1000) / 1000.0);
+				sb.append(",\"mean\":").append(Math.round(histogram.getMean()));
+				sb.append(",\"p50\":").append(histogram.getValueAtPercentile(50));
+				sb.append(",\"p99\":").append(histogram.getValueAtPercentile(99));
+				sb.append(",\"p999\":").append(histogram.getValueAtPercentile(99.9));
+				sb.append(",\"max\":").append(histogram.getMaxValue());
+				sb.append('}');
+			}
+		}
+		sb.append("]}");
+
+		byte[] body = sb.toString().getBytes(UTF8);
+		resp.setContentType("application/json;charset=UTF-8");
+		resp.setHeader("Cache-Control", "no-cache");
+		resp.setContentLength(body.length);
+		resp.getOutputStream().write(body);
+	}
+
+}
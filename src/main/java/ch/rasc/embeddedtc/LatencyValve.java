@@ -0,0 +1,102 @@
+/**
+ * Copyright 2012-2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.rasc.embeddedtc;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.servlet.ServletException;
+
+import org.apache.catalina.Context;
+import org.apache.catalina.connector.Request;
+import org.apache.catalina.connector.Response;
+import org.apache.catalina.valves.ValveBase;
+
+/**
+ * Valve that records the latency of every request in {@link LatencyHistogram}s, one per
+ * context and status class (1xx to 5xx). The histograms are created with the first
+ * request of a context, afterwards recording a request does not allocate.
+ * <p>
+ * The latency is measured in microseconds until the request processing thread returns
+ * from the pipeline. For asynchronous requests this does not include the time until
+ * the asynchronous processing completes.
+ *
+ * @author Ralph Schaer
+ */
+public class LatencyValve extends ValveBase {
+
+	public static final String[] STATUS_CLASSES = { "1xx", "2xx", "3xx", "4xx", "5xx" };
+
+	private final ConcurrentMap<String, LatencyHistogram[]> histograms = new ConcurrentHashMap<String, LatencyHistogram[]>();
+
+	public LatencyValve() {
+		super(true);
+	}
+
+	@Override
+	public void invoke(Request request, Response response)
+			throws IOException, ServletException {
+		long start = System.nanoTime();
+		try {
+			getNext().invoke(request, response);
+		}
+		finally {
+			long micros = (System.nanoTime() - start) / 1000;
+			Context context = request.getContext();
+			String path = context != null ? context.getPath() : "";
+			getHistograms(path)[statusClassIndex(response.getStatus())].record(micros);
+		}
+	}
+
+	private static int statusClassIndex(int status) {
+		int index = status / 100 - 1;
+		if (index < 0) {
+			return 0;
+		}
+		if (index >= STATUS_CLASSES.length) {
+			return STATUS_CLASSES.length - 1;
+		}
+		return index;
+	}
+
+	private LatencyHistogram[] getHistograms(String path) {
+		LatencyHistogram[] contextHistograms = this.histograms.get(path);
+		if (contextHistograms == null) {
+			contextHistograms = new LatencyHistogram[STATUS_CLASSES.length];
+			for (int i = 0; i < contextHistograms.length; i++) {
+				contextHistograms[i] = new LatencyHistogram();
+			}
+			LatencyHistogram[] existing = this.histograms.putIfAbsent(path,
+					contextHistograms);
+			if (existing != null) {
+				contextHistograms = existing;
+			}
+		}
+		return contextHistograms;
+	}
+
+	/**
+	 * Returns the histograms per context path. The array contains one histogram per
+	 * status class in the order of {@link #STATUS_CLASSES}.
+	 */
+	public Map<String, LatencyHistogram[]> getHistograms() {
+		return Collections.unmodifiableMap(this.histograms);
+	}
+
+}
@@ -16,6 +16,8 @@
 package ch.rasc.embeddedtc;
 
 import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
@@ -23,23 +25,96 @@ import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
 import org.apache.catalina.Container;
+import org.apache.catalina.ContainerEvent;
+import org.apache.catalina.ContainerListener;
 import org.apache.catalina.Context;
 import org.apache.catalina.Host;
+import org.apache.catalina.Lifecycle;
+import org.apache.catalina.LifecycleEvent;
+import org.apache.catalina.LifecycleListener;
+import org.apache.catalina.core.StandardWrapper;
 
+/**
+ * Answers requests that no other context handled with a 404 page that lists the
+ * available contexts. The HTML page is rendered once and cached until a context is
+ * added, removed, started or stopped. Clients that accept application/json receive the
+ * list with the state and the request counters of every context.
+ */
 public class ListContextsServlet extends HttpServlet {
 
 	private static final long serialVersionUID = 1L;
 
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
 	private final Context parentContext;
 
+	private final AtomicInteger version = new AtomicInteger();
+
+	private transient volatile CachedPage cachedPage;
+
+	private transient Listener listener;
+
 	public ListContextsServlet(Context parentContext) {
 		this.parentContext = parentContext;
 	}
 
+	@Override
+	public void init() throws ServletException {
+		Host host = (Host) this.parentContext.getParent();
+		this.listener = new Listener();
+		host.addContainerListener(this.listener);
+		for (Container child : host.findChildren()) {
+			child.addLifecycleListener(this.listener);
+		}
+	}
+
+	@Override
+	public void destroy() {
+		if (this.listener != null) {
+			Host host = (Host) this.parentContext.getParent();
+			host.removeContainerListener(this.listener);
+			for (Container child : host.findChildren()) {
+				child.removeLifecycleListener(this.listener);
+			}
+			this.listener = null;
+		}
+	}
+
 	@Override
 	protected void service(HttpServletRequest req, HttpServletResponse resp)
 			throws ServletException, IOException {
 
+		byte[] body;
+		String accept = req.getHeader("Accept");
+		if (accept != null && accept.contains("application/json")) {
+			// the request counters change with every request, nothing to cache
+			body = renderJson().getBytes(UTF8);
+			resp.setContentType("application/json;charset=UTF-8");
+		}
+		else {
+			body = getHtml();
+			resp.setContentType("text/html;charset=UTF-8");
+		}
+
+		resp.setStatus(404);
+		resp.setContentLength(body.length);
+		resp.getOutputStream().write(body);
+		resp.flushBuffer();
+	}
+
+	private byte[] getHtml() {
+		CachedPage page = this.cachedPage;
+		int currentVersion = this.version.get();
+		if (page == null || page.version != currentVersion) {
+			// an event during rendering increments the version, the next request renders
+			// the page again
+			page = new CachedPage(currentVersion, renderHtml().getBytes(UTF8));
+			this.cachedPage = page;
+		}
+		return page.body;
+	}
+
+	private String renderHtml() {
 		StringBuilder sb = new StringBuilder(300);
 		sb.append("<!DOCTYPE html>");
 		sb.append("<html>");
@@ -78,9 +153,92 @@ public class ListContextsServlet extends HttpServlet {
 		sb.append("</ul>");
 		sb.append("</body>");
 		sb.append("</html>");
+		return sb.toString();
+	}
 
-		resp.setStatus(404);
-		resp.getOutputStream().write(sb.toString().getBytes());
-		resp.flushBuffer();
+	private String renderJson() {
+		StringBuilder sb = new StringBuilder(300);
+		sb.append("{\"contexts\":[");
+
+		Host host = (Host) this.parentContext.getParent();
+		boolean first = true;
+		for (Container child : host.findChildren()) {
+			Context context = (Context) child;
+			if (context == null || context.getPath().equals("")) {
+				continue;
+			}
+
+			int requestCount = 0;
+			int errorCount = 0;
+			long processingTime = 0;
+			for (Container wrapper : context.findChildren()) {
+				if (wrapper instanceof StandardWrapper) {
+					StandardWrapper standardWrapper = (StandardWrapper) wrapper;
+					requestCount += standardWrapper.getRequestCount();
+					errorCount += standardWrapper.getErrorCount();
+					processingTime += standardWrapper.getProcessingTime();
+				}
+			}
+
+			if (!first) {
+				sb.append(',');
+			}
+			first = false;
+			sb.append("{\"path\":");
+			JsonUtil.appendString(sb, context.getPath());
+			sb.append(",\"docBase\":");
+			JsonUtil.appendString(sb, context.getDocBase());
+			sb.append(",\"state\":");
+			JsonUtil.appendString(sb, context.getState().name());
+			sb.append(",\"available\":").append(context.getState().isAvailable());
+			sb.append(",\"requestCount\":").append(requestCount);
+			sb.append(",\"errorCount\":").append(errorCount);
+			sb.append(",\"processingTime\":").append(processingTime);
+			sb.append('}');
+		}
+
+		sb.append("]}");
+		return sb.toString();
+	}
+
+	void invalidate() {
+		this.version.incrementAndGet();
+	}
+
+	private static final class CachedPage {
+		final int version;
+
+		final byte[] body;
+
+		CachedPage(int version, byte[] body) {
+			this.version = version;
+			this.body = body;
+		}
+	}
+
+	private final class Listener implements ContainerListener, LifecycleListener {
+
+		@Override
+		public void containerEvent(ContainerEvent event) {
+			if (Container.ADD_CHILD_EVENT.equals(event.getType())) {
+				((Container) event.getData()).addLifecycleListener(this);
+				invalidate();
+			}
+			else if (Container.REMOVE_CHILD_EVENT.equals(event.getType())) {
+				((Container) event.getData()).removeLifecycleListener(this);
+				invalidate();
+			}
+		}
+
+		@Override
+		public void lifecycleEvent(LifecycleEvent event) {
+			// ignores the periodic event of the background processor
+			String type = event.getType();
+			if (Lifecycle.AFTER_START_EVENT.equals(type)
+					|| Lifecycle.AFTER_STOP_EVENT.equals(type)
+					|| Lifecycle.AFTER_DESTROY_EVENT.equals(type)) {
+				invalidate();
+			}
+		}
 	}
 }
@@ -0,0 +1,439 @@
+/**
+ * Copyright 2012-2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.rasc.embeddedtc;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.servlet.ServletContext;
+
+import org.apache.catalina.Container;
+import org.apache.catalina.Context;
+import org.apache.catalina.LifecycleException;
+import org.apache.catalina.LifecycleState;
+import org.apache.catalina.Session;
+import org.apache.catalina.session.StandardSession;
+import org.apache.catalina.session.StoreBase;
+import org.apache.catalina.util.ContextName;
+import org.apache.juli.logging.Log;
+import org.apache.juli.logging.LogFactory;
+
+/**
+ * Session store that keeps the serialized sessions in one memory-mapped file. Every
+ * session is a record in the file, saving a session only rewrites its own record and
+ * saving an unchanged session (same last accessed time) does nothing.
+ * <p>
+ * On start only the record headers are read. The sessions are deserialized when a
+ * request asks for them or when they expire.
+ * <p>
+ * File layout: a header (magic, version, end of the last record) followed by the
+ * records. A record consists of its capacity, the length of the serialized session
+ * (-1 if the record is free), the last accessed time, the max inactive interval, the
+ * session id and the serialized session.
+ *
+ * @author Ralph Schaer
+ */
+public class MappedFileStore extends StoreBase {
+
+	private static final Log log = LogFactory.getLog(MappedFileStore.class);
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static final int MAGIC = 0x45544353;
+
+	private static final int VERSION = 1;
+
+	private static final int HEADER_SIZE = 16;
+
+	private static final int END_POSITION = 8;
+
+	private static final int RECORD_HEADER_SIZE = 22;
+
+	private static final int INITIAL_SIZE = 1024 * 1024;
+
+	private static final String storeName = "mappedFileStore";
+
+	private String directory = ".";
+
+	private RandomAccessFile file;
+
+	private FileChannel channel;
+
+	private MappedByteBuffer buffer;
+
+	private final Map<String, Record> records = new HashMap<String, Record>();
+
+	private int end;
+
+	private long freeBytes;
+
+	private static class Record {
+		final int position;
+
+		final int capacity;
+
+		final long lastAccessedTime;
+
+		final int maxInactiveInterval;
+
+		Record(int position, int capacity, long lastAccessedTime,
+				int maxInactiveInterval) {
+			this.position = position;
+			this.capacity = capacity;
+			this.lastAccessedTime = lastAccessedTime;
+			this.maxInactiveInterval = maxInactiveInterval;
+		}
+
+		boolean isExpired(long now) {
+			return this.maxInactiveInterval > 0
+					&& now - this.lastAccessedTime >= this.maxInactiveInterval * 1000L;
+		}
+	}
+
+	/**
+	 * @return the directory of the session file
+	 */
+	public String getDirectory() {
+		return this.directory;
+	}
+
+	/**
+	 * Sets the directory of the session file. The file name is derived from the context
+	 * name.
+	 *
+	 * @param directory relative paths are resolved against the work directory of the
+	 * context
+	 */
+	public void setDirectory(String directory) {
+		this.directory = directory;
+	}
+
+	@Override
+	public String getStoreName() {
+		return storeName;
+	}
+
+	@Override
+	protected synchronized void startInternal() throws LifecycleException {
+		try {
+			open(sessionFile());
+		}
+		catch (IOException e) {
+			throw new LifecycleException("Opening the session file failed", e);
+		}
+		setState(LifecycleState.STARTING);
+	}
+
+	@Override
+	protected synchronized void stopInternal() throws LifecycleException {
+		setState(LifecycleState.STOPPING);
+		if (this.buffer != null) {
+			this.buffer.force();
+			this.buffer = null;
+		}
+		this.records.clear();
+		try {
+			if (this.file != null) {
+				this.file.close();
+			}
+		}
+		catch (IOException e) {
+			log.warn("Closing the session file failed", e);
+		}
+		this.file = null;
+		this.channel = null;
+	}
+
+	private File sessionFile() {
+		Container container = this.manager.getContainer();
+		File dir = new File(this.directory);
+		if (!dir.isAbsolute() && container instanceof Context) {
+			File work = (File) ((Context) container).getServletContext()
+					.getAttribute(ServletContext.TEMPDIR);
+			if (work != null) {
+				dir = new File(work, this.directory);
+			}
+		}
+		dir.mkdirs();
+
+		String name = container != null ? container.getName() : "";
+		return new File(dir, new ContextName(name, null).getBaseName() + ".sessions");
+	}
+
+	private void open(File sessionFile) throws IOException {
+		this.file = new RandomAccessFile(sessionFile, "rw");
+		this.channel = this.file.getChannel();
+		long size = this.channel.size();
+		map(Math.max(size, INITIAL_SIZE));
+
+		if (size < HEADER_SIZE || this.buffer.getInt(0) != MAGIC
+				|| this.buffer.getInt(4) != VERSION) {
+			reset();
+			return;
+		}
+
+		long storedEnd = this.buffer.getLong(END_POSITION);
+		this.end = (int) Math.min(storedEnd, size);
+		readRecords();
+
+		if (this.freeBytes > (this.end - HEADER_SIZE) / 2) {
+			compact();
+		}
+	}
+
+	private void readRecords() {
+		int position = HEADER_SIZE;
+		while (position + RECORD_HEADER_SIZE <= this.end) {
+			int capacity = this.buffer.getInt(position);
+			if (capacity < RECORD_HEADER_SIZE || position + capacity > this.end) {
+				// incomplete record, written while the process died
+				break;
+			}
+			int dataLength = this.buffer.getInt(position + 4);
+			if (dataLength >= 0) {
+				long lastAccessedTime = this.buffer.getLong(position + 8);
+				int maxInactiveInterval = this.buffer.getInt(position + 16);
+				String id = readId(position);
+				this.records.put(id, new Record(position, capacity, lastAccessedTime,
+						maxInactiveInterval));
+			}
+			else {
+				this.freeBytes += capacity;
+			}
+			position += capacity;
+		}
+		setEnd(position);
+	}
+
+	/**
+	 * Moves all used records to the front of the file
+	 */
+	private void compact() {
+		List<Record> used = new ArrayList<Record>(this.records.values());
+		Collections.sort(used, new Comparator<Record>() {
+			@Override
+			public int compare(Record r1, Record r2) {
+				return r1.position < r2.position ? -1 : r1.position == r2.position ? 0 : 1;
+			}
+		});
+
+		int position = HEADER_SIZE;
+		for (Record record : used) {
+			int length = RECORD_HEADER_SIZE + this.buffer.getShort(record.position + 20)
+					+ this.buffer.getInt(record.position + 4);
+			if (record.position != position) {
+				byte[] bytes = new byte[length];
+				this.buffer.position(record.position);
+				this.buffer.get(bytes);
+				this.buffer.position(position);
+				this.buffer.put(bytes);
+			}
+			this.buffer.putInt(position, length);
+			this.records.put(readId(position), new Record(position, length,
+					record.lastAccessedTime, record.maxInactiveInterval));
+			position += length;
+		}
+		this.freeBytes = 0;
+		setEnd(position);
+	}
+
+	private void reset() {
+		this.records.clear();
+		this.freeBytes = 0;
+		this.buffer.putInt(0, MAGIC);
+		this.buffer.putInt(4, VERSION);
+		setEnd(HEADER_SIZE);
+	}
+
+	private void setEnd(int end) {
+		this.end = end;
+		this.buffer.putLong(END_POSITION, end);
+	}
+
+	private void map(long size) throws IOException {
+		if (size > Integer.MAX_VALUE) {
+			throw new IOException("Session file is larger than 2 GB");
+		}
+		this.buffer = this.channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+	}
+
+	private String readId(int position) {
+		byte[] id = new byte[this.buffer.getShort(position + 20)];
+		this.buffer.position(position + RECORD_HEADER_SIZE);
+		this.buffer.get(id);
+		return new String(id, UTF8);
+	}
+
+	@Override
+	public synchronized int getSize() throws IOException {
+		return this.records.size();
+	}
+
+	@Override
+	public synchronized String[] keys() throws IOException {
+		return this.records.keySet().toArray(new String[this.records.size()]);
+	}
+
+	/**
+	 * Checks the expiration with the last accessed time and max inactive interval in
+	 * the record headers. Only the returned sessions are deserialized by
+	 * {@link #processExpires()}.
+	 */
+	@Override
+	public synchronized String[] expiredKeys() throws IOException {
+		long now = System.currentTimeMillis();
+		List<String> expired = new ArrayList<String>();
+		for (Map.Entry<String, Record> entry : this.records.entrySet()) {
+			if (entry.getValue().isExpired(now)) {
+				expired.add(entry.getKey());
+			}
+		}
+		return expired.toArray(new String[expired.size()]);
+	}
+
+	@Override
+	public Session load(String id) throws ClassNotFoundException, IOException {
+		byte[] data;
+		synchronized (this) {
+			Record record = this.records.get(id);
+			if (record == null || this.buffer == null) {
+				return null;
+			}
+			int idLength = this.buffer.getShort(record.position + 20);
+			data = new byte[this.buffer.getInt(record.position + 4)];
+			this.buffer.position(record.position + RECORD_HEADER_SIZE + idLength);
+			this.buffer.get(data);
+		}
+
+		ObjectInputStream ois = getObjectInputStream(
+				new BufferedInputStream(new ByteArrayInputStream(data)));
+		try {
+			StandardSession session = (StandardSession) this.manager.createEmptySession();
+			session.readObjectData(ois);
+			session.setManager(this.manager);
+			return session;
+		}
+		finally {
+			ois.close();
+		}
+	}
+
+	@Override
+	public void save(Session session) throws IOException {
+		StandardSession standardSession = (StandardSession) session;
+		String id = session.getIdInternal();
+		long lastAccessedTime = standardSession.getLastAccessedTimeInternal();
+		int maxInactiveInterval = session.getMaxInactiveInterval();
+
+		synchronized (this) {
+			Record record = this.records.get(id);
+			if (record != null && record.lastAccessedTime == lastAccessedTime
+					&& record.maxInactiveInterval == maxInactiveInterval) {
+				return;
+			}
+		}
+
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		ObjectOutputStream oos = new ObjectOutputStream(bos);
+		try {
+			standardSession.writeObjectData(oos);
+		}
+		finally {
+			oos.close();
+		}
+		byte[] data = bos.toByteArray();
+		byte[] idBytes = id.getBytes(UTF8);
+		int length = RECORD_HEADER_SIZE + idBytes.length + data.length;
+
+		synchronized (this) {
+			if (this.buffer == null) {
+				return;
+			}
+			Record record = this.records.get(id);
+			int position;
+			int capacity;
+			if (record != null && record.capacity >= length) {
+				position = record.position;
+				capacity = record.capacity;
+			}
+			else {
+				if (record != null) {
+					free(record);
+				}
+				// leave room for a growing session
+				capacity = length + length / 4;
+				position = this.end;
+				if ((long) position + capacity > this.buffer.capacity()) {
+					map(Math.max((long) position + capacity,
+							2L * this.buffer.capacity()));
+				}
+			}
+
+			this.buffer.putInt(position, capacity);
+			this.buffer.putInt(position + 4, data.length);
+			this.buffer.putLong(position + 8, lastAccessedTime);
+			this.buffer.putInt(position + 16, maxInactiveInterval);
+			this.buffer.putShort(position + 20, (short) idBytes.length);
+			this.buffer.position(position + RECORD_HEADER_SIZE);
+			this.buffer.put(idBytes);
+			this.buffer.put(data);
+
+			if (position == this.end) {
+				// the end is written after the record, an interrupted write leaves
+				// the file readable
+				setEnd(position + capacity);
+			}
+			this.records.put(id,
+					new Record(position, capacity, lastAccessedTime, maxInactiveInterval));
+		}
+	}
+
+	private void free(Record record) {
+		this.buffer.putInt(record.position + 4, -1);
+		this.freeBytes += record.capacity;
+	}
+
+	@Override
+	public synchronized void remove(String id) throws IOException {
+		Record record = this.records.remove(id);
+		if (record != null && this.buffer != null) {
+			free(record);
+		}
+	}
+
+	@Override
+	public synchronized void clear() throws IOException {
+		if (this.buffer != null) {
+			reset();
+		}
+	}
+
+}
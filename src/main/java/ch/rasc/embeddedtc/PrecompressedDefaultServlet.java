@@ -0,0 +1,455 @@
+/**
+ * Copyright 2012-2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.rasc.embeddedtc;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+import javax.naming.NameClassPair;
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import javax.servlet.RequestDispatcher;
+import javax.servlet.ServletException;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.catalina.connector.RequestFacade;
+import org.apache.catalina.connector.ResponseFacade;
+import org.apache.catalina.servlets.DefaultServlet;
+import org.apache.juli.logging.Log;
+import org.apache.juli.logging.LogFactory;
+import org.apache.naming.resources.CacheEntry;
+import org.apache.naming.resources.Resource;
+import org.apache.naming.resources.ResourceAttributes;
+
+/**
+ * DefaultServlet that serves gzip compressed variants of the static resources. At
+ * startup a background thread compresses every resource with a compressible mime type
+ * into the precompressed directory. A request that accepts gzip gets the compressed
+ * file, the other requests, range requests and includes are served by the
+ * DefaultServlet.
+ * <p>
+ * The name of a compressed file contains the modification time of its resource. When
+ * a resource changes it is served uncompressed until the background thread has
+ * compressed it again. The compressed response has its own ETag, the ETag of the
+ * resource with the suffix <code>-gzip</code>.
+ * <p>
+ * Init parameters:
+ * <ul>
+ * <li><code>precompressedDirectory</code>: directory of the compressed files
+ * (required)</li>
+ * <li><code>compressionMinSize</code>: resources smaller than this are not compressed,
+ * default 1024</li>
+ * <li><code>compressableMimeType</code>: comma separated list of the compressible mime
+ * types</li>
+ * </ul>
+ *
+ * @author Ralph Schaer
+ */
+public class PrecompressedDefaultServlet extends DefaultServlet {
+
+	private static final long serialVersionUID = 1L;
+
+	public static final String DEFAULT_COMPRESSABLE_MIME_TYPE = "text/html,text/xml,text/plain,text/css,"
+			+ "text/javascript,application/javascript,application/json,image/svg+xml";
+
+	private static final String SENDFILE_SUPPORT = "org.apache.tomcat.sendfile.support";
+
+	private static final Log log = LogFactory.getLog(PrecompressedDefaultServlet.class);
+
+	private File directory;
+
+	private int minSize = 1024;
+
+	private final Set<String> mimeTypes = new HashSet<String>();
+
+	private final ConcurrentMap<String, Boolean> pending = new ConcurrentHashMap<String, Boolean>();
+
+	private transient ExecutorService compressor;
+
+	@Override
+	public void init() throws ServletException {
+		super.init();
+
+		String dir = getServletConfig().getInitParameter("precompressedDirectory");
+		if (dir == null) {
+			throw new ServletException("Init parameter precompressedDirectory is missing");
+		}
+		this.directory = new File(dir);
+
+		String value = getServletConfig().getInitParameter("compressionMinSize");
+		if (value != null) {
+			this.minSize = Integer.parseInt(value.trim());
+		}
+
+		value = getServletConfig().getInitParameter("compressableMimeType");
+		if (value == null) {
+			value = DEFAULT_COMPRESSABLE_MIME_TYPE;
+		}
+		for (String mimeType : value.split(",")) {
+			if (mimeType.trim().length() > 0) {
+				this.mimeTypes.add(mimeType.trim());
+			}
+		}
+
+		this.compressor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "precompressor-" + getServletContext()
+						.getContextPath().replace('/', '-'));
+				thread.setDaemon(true);
+				thread.setPriority(Thread.MIN_PRIORITY);
+				return thread;
+			}
+		});
+		this.compressor.execute(new Runnable() {
+			@Override
+			public void run() {
+				long start = System.currentTimeMillis();
+				int compressed = compressAll("/");
+				if (compressed > 0 && log.isDebugEnabled()) {
+					log.debug("Compressed " + compressed + " resources in "
+							+ (System.currentTimeMillis() - start) + " ms");
+				}
+			}
+		});
+	}
+
+	@Override
+	public void destroy() {
+		if (this.compressor != null) {
+			this.compressor.shutdownNow();
+			this.compressor = null;
+		}
+		super.destroy();
+	}
+
+	@Override
+	protected void serveResource(HttpServletRequest request,
+			HttpServletResponse response, boolean content)
+			throws IOException, ServletException {
+
+		if (request.getAttribute(RequestDispatcher.INCLUDE_REQUEST_URI) != null) {
+			super.serveResource(request, response, content);
+			return;
+		}
+
+		String path = getRelativePath(request, true);
+		CacheEntry cacheEntry = this.resources.lookupCache(path);
+		if (!cacheEntry.exists || cacheEntry.context != null
+				|| !isCompressible(path, cacheEntry.attributes)) {
+			super.serveResource(request, response, content);
+			return;
+		}
+
+		// the response depends on Accept-Encoding even when it is not compressed
+		response.addHeader("Vary", "Accept-Encoding");
+
+		File compressed = null;
+		if (request.getHeader("Range") == null && acceptsGzip(request)) {
+			compressed = getCompressed(path, cacheEntry.attributes);
+		}
+		if (compressed == null) {
+			super.serveResource(request, response, content);
+			return;
+		}
+
+		// the conditional headers are evaluated against the compressed representation
+		ResourceAttributes gzipAttributes = new ResourceAttributes();
+		gzipAttributes.setLastModified(cacheEntry.attributes.getLastModified());
+		gzipAttributes.setContentLength(compressed.length());
+		gzipAttributes.setETag(gzipETag(cacheEntry.attributes.getETag()));
+		if (!checkIfHeaders(request, response, gzipAttributes)) {
+			return;
+		}
+
+		String contentType = cacheEntry.attributes.getMimeType();
+		if (contentType == null) {
+			contentType = getServletContext().getMimeType(cacheEntry.name);
+			cacheEntry.attributes.setMimeType(contentType);
+		}
+		if (contentType != null) {
+			response.setContentType(contentType);
+		}
+		response.setHeader("ETag", gzipAttributes.getETag());
+		response.setHeader("Last-Modified", cacheEntry.attributes.getLastModifiedHttp());
+		response.setHeader("Content-Encoding", "gzip");
+		response.setHeader("Content-Length", String.valueOf(compressed.length()));
+
+		if (content && !sendfile(request, response, compressed)) {
+			InputStream in = new FileInputStream(compressed);
+			try {
+				ServletOutputStream out = response.getOutputStream();
+				byte[] buffer = new byte[8192];
+				int len;
+				while ((len = in.read(buffer)) != -1) {
+					out.write(buffer, 0, len);
+				}
+			}
+			finally {
+				in.close();
+			}
+		}
+	}
+
+	/**
+	 * Appends <code>-gzip</code> to the opaque part of the ETag, so the compressed and
+	 * the uncompressed representation do not share a validator
+	 */
+	static String gzipETag(String etag) {
+		if (etag == null || !etag.endsWith("\"")) {
+			return etag;
+		}
+		return etag.substring(0, etag.length() - 1) + "-gzip\"";
+	}
+
+	/**
+	 * Hands a compressed file larger than the sendfile size over to the connector, with
+	 * the same conditions as {@link #checkSendfile}.
+	 */
+	private boolean sendfile(HttpServletRequest request, HttpServletResponse response,
+			File compressed) {
+		if (this.sendfileSize <= 0 || compressed.length() <= this.sendfileSize
+				|| !Boolean.TRUE.equals(request.getAttribute(SENDFILE_SUPPORT))
+				|| !(request instanceof RequestFacade)
+				|| !(response instanceof ResponseFacade)) {
+			return false;
+		}
+		request.setAttribute("org.apache.tomcat.sendfile.filename",
+				compressed.getAbsolutePath());
+		request.setAttribute("org.apache.tomcat.sendfile.start", Long.valueOf(0));
+		request.setAttribute("org.apache.tomcat.sendfile.end",
+				Long.valueOf(compressed.length()));
+		return true;
+	}
+
+	/**
+	 * Returns the compressed file of the resource if it is up to date and smaller than
+	 * the resource. Otherwise the compression is scheduled and null returned.
+	 */
+	private File getCompressed(final String path, ResourceAttributes attributes) {
+		File file = compressedFile(path, attributes.getLastModified());
+		if (file.isFile()) {
+			return file.length() < attributes.getContentLength() ? file : null;
+		}
+
+		if (this.pending.putIfAbsent(path, Boolean.TRUE) == null) {
+			try {
+				this.compressor.execute(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							compress(path);
+						}
+						finally {
+							PrecompressedDefaultServlet.this.pending.remove(path);
+						}
+					}
+				});
+			}
+			catch (RejectedExecutionException e) {
+				this.pending.remove(path);
+			}
+		}
+		return null;
+	}
+
+	private boolean isCompressible(String path, ResourceAttributes attributes) {
+		if (attributes.getContentLength() < this.minSize) {
+			return false;
+		}
+		String mimeType = getServletContext().getMimeType(path);
+		if (mimeType == null) {
+			return false;
+		}
+		int semicolon = mimeType.indexOf(';');
+		if (semicolon != -1) {
+			mimeType = mimeType.substring(0, semicolon).trim();
+		}
+		return this.mimeTypes.contains(mimeType);
+	}
+
+	private static boolean acceptsGzip(HttpServletRequest request) {
+		String acceptEncoding = request.getHeader("Accept-Encoding");
+		if (acceptEncoding == null) {
+			return false;
+		}
+		for (String coding : acceptEncoding.split(",")) {
+			String name = coding;
+			String q = null;
+			int semicolon = coding.indexOf(';');
+			if (semicolon != -1) {
+				name = coding.substring(0, semicolon);
+				q = coding.substring(semicolon + 1).trim();
+			}
+			if (name.trim().equalsIgnoreCase("gzip")) {
+				return q == null || !q.matches("q\\s*=\\s*0(\\.0*)?");
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * The modification time is part of the name and not compared with the modification
+	 * time of the compressed file, that file systems with a coarse resolution round
+	 */
+	private File compressedFile(String path, long lastModified) {
+		return new File(this.directory, path + "." + lastModified + ".gz");
+	}
+
+	private int compressAll(String path) {
+		int compressed = 0;
+		try {
+			NamingEnumeration<NameClassPair> children = this.resources.list(path);
+			while (children.hasMoreElements()) {
+				if (Thread.currentThread().isInterrupted()) {
+					return compressed;
+				}
+				String childPath = path + children.nextElement().getName();
+				if (childPath.equalsIgnoreCase("/WEB-INF")
+						|| childPath.equalsIgnoreCase("/META-INF")) {
+					continue;
+				}
+				CacheEntry cacheEntry = this.resources.lookupCache(childPath);
+				if (!cacheEntry.exists) {
+					continue;
+				}
+				if (cacheEntry.context != null) {
+					compressed += compressAll(childPath + "/");
+				}
+				else if (isCompressible(childPath, cacheEntry.attributes)
+						&& !compressedFile(childPath,
+								cacheEntry.attributes.getLastModified()).isFile()) {
+					if (compress(childPath)) {
+						compressed++;
+					}
+				}
+			}
+		}
+		catch (NamingException e) {
+			log.warn("Listing " + path + " failed", e);
+		}
+		return compressed;
+	}
+
+	/**
+	 * Writes the compressed file to a temporary file and renames it, a concurrent
+	 * request either sees no or the complete file. Deletes the compressed files of
+	 * older versions of the resource.
+	 */
+	boolean compress(String path) {
+		CacheEntry cacheEntry = this.resources.lookupCache(path);
+		if (!cacheEntry.exists || cacheEntry.context != null) {
+			return false;
+		}
+		long lastModified = cacheEntry.attributes.getLastModified();
+		File file = compressedFile(path, lastModified);
+		File tmp = new File(file.getPath() + ".tmp");
+		try {
+			Object resource = this.resources.lookup(path);
+			if (!(resource instanceof Resource)) {
+				return false;
+			}
+			file.getParentFile().mkdirs();
+			InputStream in = ((Resource) resource).streamContent();
+			try {
+				OutputStream out = new GZIPOutputStream(new FileOutputStream(tmp), 8192) {
+					{
+						this.def.setLevel(Deflater.BEST_COMPRESSION);
+					}
+				};
+				try {
+					byte[] buffer = new byte[8192];
+					int len;
+					while ((len = in.read(buffer)) != -1) {
+						out.write(buffer, 0, len);
+					}
+				}
+				finally {
+					out.close();
+				}
+			}
+			finally {
+				in.close();
+			}
+			if (!tmp.renameTo(file)) {
+				file.delete();
+				if (!tmp.renameTo(file)) {
+					tmp.delete();
+					return false;
+				}
+			}
+			deleteOutdated(file, path.substring(path.lastIndexOf('/') + 1));
+			return true;
+		}
+		catch (NamingException e) {
+			return false;
+		}
+		catch (IOException e) {
+			tmp.delete();
+			log.warn("Compressing " + path + " failed", e);
+			return false;
+		}
+	}
+
+	/**
+	 * Deletes the files <code>name.&lt;modification time&gt;.gz</code> next to the
+	 * current compressed file
+	 */
+	private static void deleteOutdated(File current, String name) {
+		File[] files = current.getParentFile().listFiles();
+		if (files == null) {
+			return;
+		}
+		String prefix = name + ".";
+		for (File file : files) {
+			String fileName = file.getName();
+			if (fileName.startsWith(prefix) && fileName.endsWith(".gz")
+					&& !file.equals(current) && isDigits(fileName, prefix.length(),
+							fileName.length() - ".gz".length())) {
+				file.delete();
+			}
+		}
+	}
+
+	private static boolean isDigits(String s, int start, int end) {
+		if (start >= end) {
+			return false;
+		}
+		for (int i = start; i < end; i++) {
+			if (!Character.isDigit(s.charAt(i))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+}
@@ -0,0 +1,452 @@
+/**
+ * Copyright 2012-2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.rasc.embeddedtc;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadPoolExecutor;
+
+import javax.naming.NamingException;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.catalina.Container;
+import org.apache.catalina.Context;
+import org.apache.catalina.Engine;
+import org.apache.catalina.Host;
+import org.apache.catalina.Manager;
+import org.apache.catalina.Service;
+import org.apache.catalina.connector.Connector;
+import org.apache.catalina.core.NamingContextListener;
+import org.apache.catalina.core.StandardContext;
+import org.apache.catalina.core.StandardThreadExecutor;
+import org.apache.catalina.deploy.ContextResource;
+import org.apache.coyote.AbstractProtocol;
+import org.apache.coyote.ProtocolHandler;
+import org.apache.coyote.RequestGroupInfo;
+import org.apache.juli.logging.Log;
+import org.apache.juli.logging.LogFactory;
+import org.apache.naming.NamingContext;
+import org.apache.naming.NamingEntry;
+import org.apache.tomcat.jdbc.pool.ConnectionPool;
+import org.apache.tomcat.jdbc.pool.DataSourceProxy;
+
+/**
+ * Exports the statistics of the connectors (GlobalRequestProcessor), the thread pools,
+ * the session managers and the tomcat-jdbc connection pools in the Prometheus text
+ * format.
+ * <p>
+ * The values are read directly from the Tomcat objects instead of querying the MBean
+ * server. The output is built in a buffer that is reused for every scrape. A
+ * connection pool is only exported after the application has looked up its
+ * DataSource, the servlet never creates a pool.
+ *
+ * @author Ralph Schaer
+ */
+public class PrometheusMetricsServlet extends HttpServlet {
+
+	private static final long serialVersionUID = 1L;
+
+	private static final Log log = LogFactory.getLog(PrometheusMetricsServlet.class);
+
+	private static final Method GET_HANDLER_METHOD;
+
+	private static final Method GET_GLOBAL_METHOD;
+
+	private static final Field BINDINGS_FIELD;
+
+	static {
+		Method getHandler = null;
+		Method getGlobal = null;
+		Field bindings = null;
+		try {
+			getHandler = AbstractProtocol.class.getDeclaredMethod("getHandler");
+			getHandler.setAccessible(true);
+			getGlobal = Class
+					.forName("org.apache.coyote.AbstractProtocol$AbstractConnectionHandler")
+					.getDeclaredMethod("getGlobal");
+			getGlobal.setAccessible(true);
+			bindings = NamingContext.class.getDeclaredField("bindings");
+			bindings.setAccessible(true);
+		}
+		catch (Exception e) {
+			log.warn("Unable to access the Tomcat internals, some metrics are missing", e);
+		}
+		GET_HANDLER_METHOD = getHandler;
+		GET_GLOBAL_METHOD = getGlobal;
+		BINDINGS_FIELD = bindings;
+	}
+
+	private final Host host;
+
+	private final transient Map<ProtocolHandler, RequestGroupInfo> requestGroupInfos = new ConcurrentHashMap<ProtocolHandler, RequestGroupInfo>();
+
+	private final StringBuilder buffer = new StringBuilder(4096);
+
+	public PrometheusMetricsServlet(Host host) {
+		this.host = host;
+	}
+
+	@Override
+	protected void doGet(HttpServletRequest req, HttpServletResponse resp)
+			throws ServletException, IOException {
+
+		resp.setContentType("text/plain;version=0.0.4;charset=UTF-8");
+		resp.setHeader("Cache-Control", "no-cache");
+
+		// scrapes are rare, one buffer for all of them is enough. The response is
+		// written after the lock is released, a slow scraper does not block the others.
+		String metrics;
+		synchronized (this.buffer) {
+			StringBuilder sb = this.buffer;
+			sb.setLength(0);
+
+			Service service = ((Engine) this.host.getParent()).getService();
+			appendConnectorMetrics(sb, service.findConnectors());
+			appendSessionMetrics(sb, this.host.findChildren());
+			appendJdbcMetrics(sb, this.host.findChildren());
+
+			metrics = sb.toString();
+		}
+		resp.getWriter().write(metrics);
+	}
+
+	private void appendConnectorMetrics(StringBuilder sb, Connector[] connectors) {
+		header(sb, "tomcat_requests_total", "counter", "Number of processed requests");
+		for (Connector connector : connectors) {
+			RequestGroupInfo info = getRequestGroupInfo(connector);
+			if (info != null) {
+				sample(sb, "tomcat_requests_total", "connector", connectorName(connector),
+						info.getRequestCount());
+			}
+		}
+
+		header(sb, "tomcat_request_errors_total", "counter",
+				"Number of requests that resulted in an error");
+		for (Connector connector : connectors) {
+			RequestGroupInfo info = getRequestGroupInfo(connector);
+			if (info != null) {
+				sample(sb, "tomcat_request_errors_total", "connector",
+						connectorName(connector), info.getErrorCount());
+			}
+		}
+
+		header(sb, "tomcat_request_processing_seconds_total", "counter",
+				"Total time spent processing requests");
+		for (Connector connector : connectors) {
+			RequestGroupInfo info = getRequestGroupInfo(connector);
+			if (info != null) {
+				sample(sb, "tomcat_request_processing_seconds_total", "connector",
+						connectorName(connector), info.getProcessingTime() / 1000.0);
+			}
+		}
+
+		header(sb, "tomcat_request_max_seconds", "gauge",
+				"Longest time spent processing a request");
+		for (Connector connector : connectors) {
+			RequestGroupInfo info = getRequestGroupInfo(connector);
+			if (info != null) {
+				sample(sb, "tomcat_request_max_seconds", "connector",
+						connectorName(connector), info.getMaxTime() / 1000.0);
+			}
+		}
+
+		header(sb, "tomcat_received_bytes_total", "counter", "Number of bytes received");
+		for (Connector connector : connectors) {
+			RequestGroupInfo info = getRequestGroupInfo(connector);
+			if (info != null) {
+				sample(sb, "tomcat_received_bytes_total", "connector",
+						connectorName(connector), info.getBytesReceived());
+			}
+		}
+
+		header(sb, "tomcat_sent_bytes_total", "counter", "Number of bytes sent");
+		for (Connector connector : connectors) {
+			RequestGroupInfo info = getRequestGroupInfo(connector);
+			if (info != null) {
+				sample(sb, "tomcat_sent_bytes_total", "connector", connectorName(connector),
+						info.getBytesSent());
+			}
+		}
+
+		header(sb, "tomcat_connections", "gauge", "Number of open connections");
+		for (Connector connector : connectors) {
+			ProtocolHandler handler = connector.getProtocolHandler();
+			if (handler instanceof AbstractProtocol) {
+				sample(sb, "tomcat_connections", "connector", connectorName(connector),
+						((AbstractProtocol<?>) handler).getConnectionCount());
+			}
+		}
+
+		String[][] threadMetrics = {
+				{ "tomcat_threads", "Number of threads in the pool" },
+				{ "tomcat_threads_busy", "Number of threads processing requests" },
+				{ "tomcat_threads_max", "Maximum number of threads in the pool" },
+				{ "tomcat_threads_queued", "Number of tasks waiting for a thread" } };
+		for (int i = 0; i < threadMetrics.length; i++) {
+			header(sb, threadMetrics[i][0], "gauge", threadMetrics[i][1]);
+			for (Connector connector : connectors) {
+				int[] stats = threadPoolStats(connector.getProtocolHandler().getExecutor());
+				if (stats != null) {
+					sample(sb, threadMetrics[i][0], "connector", connectorName(connector),
+							stats[i]);
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return pool size, active threads, maximum threads and queue size or null if the
+	 * executor has no thread pool
+	 */
+	private static int[] threadPoolStats(java.util.concurrent.Executor executor) {
+		if (executor instanceof ThreadPoolExecutor) {
+			ThreadPoolExecutor pool = (ThreadPoolExecutor) executor;
+			return new int[] { pool.getPoolSize(), pool.getActiveCount(),
+					pool.getMaximumPoolSize(), pool.getQueue().size() };
+		}
+		if (executor instanceof StandardThreadExecutor) {
+			StandardThreadExecutor pool = (StandardThreadExecutor) executor;
+			return new int[] { pool.getPoolSize(), pool.getActiveCount(),
+					pool.getMaxThreads(), pool.getQueueSize() };
+		}
+		return null;
+	}
+
+	private static void appendSessionMetrics(StringBuilder sb, Container[] contexts) {
+		header(sb, "tomcat_sessions_active", "gauge", "Number of active sessions");
+		for (Container container : contexts) {
+			Manager manager = ((Context) container).getManager();
+			if (manager != null) {
+				sample(sb, "tomcat_sessions_active", "context", contextName(container),
+						manager.getActiveSessions());
+			}
+		}
+
+		header(sb, "tomcat_sessions_active_max", "gauge",
+				"Maximum number of active sessions so far");
+		for (Container container : contexts) {
+			Manager manager = ((Context) container).getManager();
+			if (manager != null) {
+				sample(sb, "tomcat_sessions_active_max", "context", contextName(container),
+						manager.getMaxActive());
+			}
+		}
+
+		header(sb, "tomcat_sessions_created_total", "counter",
+				"Number of created sessions");
+		for (Container container : contexts) {
+			Manager manager = ((Context) container).getManager();
+			if (manager != null) {
+				sample(sb, "tomcat_sessions_created_total", "context",
+						contextName(container), manager.getSessionCounter());
+			}
+		}
+
+		header(sb, "tomcat_sessions_expired_total", "counter",
+				"Number of expired sessions");
+		for (Container container : contexts) {
+			Manager manager = ((Context) container).getManager();
+			if (manager != null) {
+				sample(sb, "tomcat_sessions_expired_total", "context",
+						contextName(container), manager.getExpiredSessions());
+			}
+		}
+
+		header(sb, "tomcat_sessions_rejected_total", "counter",
+				"Number of sessions that were not created because of the session limit");
+		for (Container container : contexts) {
+			Manager manager = ((Context) container).getManager();
+			if (manager != null) {
+				sample(sb, "tomcat_sessions_rejected_total", "context",
+						contextName(container), manager.getRejectedSessions());
+			}
+		}
+	}
+
+	private static void appendJdbcMetrics(StringBuilder sb, Container[] contexts) {
+		boolean headerWritten = false;
+		for (Container container : contexts) {
+			if (!(container instanceof StandardContext)) {
+				continue;
+			}
+			StandardContext context = (StandardContext) container;
+			NamingContextListener namingListener = context.getNamingContextListener();
+			if (namingListener == null || namingListener.getEnvContext() == null
+					|| !context.getState().isAvailable()) {
+				continue;
+			}
+
+			for (ContextResource resource : context.getNamingResources()
+					.findResources()) {
+				ConnectionPool pool = findPool(namingListener.getEnvContext(),
+						resource.getName());
+				if (pool == null) {
+					continue;
+				}
+
+				if (!headerWritten) {
+					header(sb, "tomcat_jdbc_connections_active", "gauge",
+							"Number of connections in use");
+					header(sb, "tomcat_jdbc_connections_idle", "gauge",
+							"Number of idle connections");
+					header(sb, "tomcat_jdbc_connections_max", "gauge",
+							"Maximum number of connections");
+					header(sb, "tomcat_jdbc_waiting_threads", "gauge",
+							"Number of threads waiting for a connection");
+					headerWritten = true;
+				}
+
+				String contextName = contextName(container);
+				jdbcSample(sb, "tomcat_jdbc_connections_active", contextName,
+						resource.getName(), pool.getActive());
+				jdbcSample(sb, "tomcat_jdbc_connections_idle", contextName,
+						resource.getName(), pool.getIdle());
+				jdbcSample(sb, "tomcat_jdbc_connections_max", contextName,
+						resource.getName(), pool.getPoolProperties().getMaxActive());
+				jdbcSample(sb, "tomcat_jdbc_waiting_threads", contextName,
+						resource.getName(), pool.getWaitCount());
+			}
+		}
+	}
+
+	/**
+	 * Returns the pool of a tomcat-jdbc DataSource if the JNDI entry has already been
+	 * resolved. Looking up an unresolved entry would create the pool.
+	 */
+	private static ConnectionPool findPool(javax.naming.Context envContext, String name) {
+		if (BINDINGS_FIELD == null) {
+			return null;
+		}
+
+		try {
+			Object namingContext = envContext;
+			String entryName = name;
+			int pos = name.lastIndexOf('/');
+			if (pos != -1) {
+				// sub contexts are plain entries, the lookup has no side effects
+				namingContext = envContext.lookup(name.substring(0, pos));
+				entryName = name.substring(pos + 1);
+			}
+			if (!(namingContext instanceof NamingContext)) {
+				return null;
+			}
+
+			@SuppressWarnings("unchecked")
+			Map<String, NamingEntry> bindings = (Map<String, NamingEntry>) BINDINGS_FIELD
+					.get(namingContext);
+			NamingEntry entry = bindings.get(entryName);
+			if (entry != null && entry.type == NamingEntry.ENTRY
+					&& entry.value instanceof DataSourceProxy) {
+				return ((DataSourceProxy) entry.value).getPool();
+			}
+		}
+		catch (NamingException e) {
+			// not bound
+		}
+		catch (IllegalAccessException e) {
+			// checked in the static initializer
+		}
+		return null;
+	}
+
+	private RequestGroupInfo getRequestGroupInfo(Connector connector) {
+		ProtocolHandler protocolHandler = connector.getProtocolHandler();
+		if (!(protocolHandler instanceof AbstractProtocol) || GET_GLOBAL_METHOD == null) {
+			return null;
+		}
+
+		RequestGroupInfo info = this.requestGroupInfos.get(protocolHandler);
+		if (info == null) {
+			try {
+				Object handler = GET_HANDLER_METHOD.invoke(protocolHandler);
+				info = (RequestGroupInfo) GET_GLOBAL_METHOD.invoke(handler);
+				this.requestGroupInfos.put(protocolHandler, info);
+			}
+			catch (Exception e) {
+				return null;
+			}
+		}
+		return info;
+	}
+
+	private static String connectorName(Connector connector) {
+		ProtocolHandler handler = connector.getProtocolHandler();
+		if (handler instanceof AbstractProtocol) {
+			String name = ((AbstractProtocol<?>) handler).getName();
+			// the name is quoted for the ObjectName
+			if (name.length() > 1 && name.charAt(0) == '"') {
+				return name.substring(1, name.length() - 1);
+			}
+			return name;
+		}
+		return connector.getScheme() + "-" + connector.getPort();
+	}
+
+	private static String contextName(Container container) {
+		String path = ((Context) container).getPath();
+		return path.length() == 0 ? "/" : path;
+	}
+
+	private static void header(StringBuilder sb, String name, String type, String help) {
+		sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+		sb.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+	}
+
+	private static void sample(StringBuilder sb, String name, String label,
+			String labelValue, long value) {
+		sb.append(name).append('{').append(label).append("=\"");
+		appendLabelValue(sb, labelValue);
+		sb.append("\"} ").append(value).append('\n');
+	}
+
+	private static void sample(StringBuilder sb, String name, String label,
+			String labelValue, double value) {
+		sb.append(name).append('{').append(label).append("=\"");
+		appendLabelValue(sb, labelValue);
+		sb.append("\"} ").append(value).append('\n');
+	}
+
+	private static void jdbcSample(StringBuilder sb, String name, String context,
+			String resource, long value) {
+		sb.append(name).append("{context=\"");
+		appendLabelValue(sb, context);
+		sb.append("\",name=\"");
+		appendLabelValue(sb, resource);
+		sb.append("\"} ").append(value).append('\n');
+	}
+
+	private static void appendLabelValue(StringBuilder sb, String value) {
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if (c == '\\' || c == '"') {
+				sb.append('\\').append(c);
+			}
+			else if (c == '\n') {
+				sb.append("\\n");
+			}
+			else {
+				sb.append(c);
+			}
+		}
+	}
+
+}
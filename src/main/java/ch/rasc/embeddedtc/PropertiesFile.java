@@ -0,0 +1,113 @@
+/**
+ * Copyright 2012-2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.rasc.embeddedtc;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Properties;
+
+import org.apache.juli.logging.Log;
+import org.apache.juli.logging.LogFactory;
+
+/**
+ * Helper for the caches that are persisted as properties files
+ *
+ * @author Ralph Schaer
+ */
+final class PropertiesFile {
+
+	private static final Log log = LogFactory.getLog(PropertiesFile.class);
+
+	private PropertiesFile() {
+		// utility class
+	}
+
+	/**
+	 * Reads the properties file
+	 *
+	 * @param file the properties file
+	 * @param description description of the file for the log message
+	 * @return the properties or null if the file does not exist or cannot be read
+	 */
+	static Properties load(File file, String description) {
+		if (!file.exists()) {
+			return null;
+		}
+
+		Properties props = new Properties();
+		InputStream is = null;
+		try {
+			is = new FileInputStream(file);
+			props.load(is);
+			return props;
+		}
+		catch (IOException e) {
+			log.warn("Reading " + description + " " + file + " failed", e);
+			return null;
+		}
+		finally {
+			if (is != null) {
+				try {
+					is.close();
+				}
+				catch (IOException e) {
+					// ignore
+				}
+			}
+		}
+	}
+
+	/**
+	 * Writes the properties file and creates the parent directory if necessary
+	 *
+	 * @param file the properties file
+	 * @param props the properties
+	 * @param description description of the file for the comment and the log message
+	 * @return true if the file was written
+	 */
+	static boolean store(File file, Properties props, String description) {
+		File parent = file.getParentFile();
+		if (parent != null && !parent.exists()) {
+			parent.mkdirs();
+		}
+
+		OutputStream os = null;
+		try {
+			os = new FileOutputStream(file);
+			props.store(os, "embeddedtc " + description);
+			return true;
+		}
+		catch (IOException e) {
+			log.warn("Writing " + description + " " + file + " failed", e);
+			return false;
+		}
+		finally {
+			if (os != null) {
+				try {
+					os.close();
+				}
+				catch (IOException e) {
+					// ignore
+				}
+			}
+		}
+	}
+
+}
@@ -0,0 +1,71 @@
+/**
+ * Copyright 2012-2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.rasc.embeddedtc;
+
+import java.io.IOException;
+
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Filter in front of the default servlet that marks the responses of fingerprinted
+ * paths as cacheable forever. The content of a fingerprinted path never changes, a
+ * changed resource gets a new path. Does not wrap the request or the response, the
+ * default servlet is still able to use sendfile.
+ *
+ * @author Ralph Schaer
+ */
+public class ResourceVersionFilter implements Filter {
+
+	public static final String IMMUTABLE = "public, max-age=31536000, immutable";
+
+	private final ResourceVersions resourceVersions;
+
+	public ResourceVersionFilter(ResourceVersions resourceVersions) {
+		this.resourceVersions = resourceVersions;
+	}
+
+	@Override
+	public void init(FilterConfig filterConfig) throws ServletException {
+		// nothing to do
+	}
+
+	@Override
+	public void doFilter(ServletRequest request, ServletResponse response,
+			FilterChain chain) throws IOException, ServletException {
+		HttpServletRequest httpRequest = (HttpServletRequest) request;
+		String path = httpRequest.getServletPath();
+		if (httpRequest.getPathInfo() != null) {
+			path = path + httpRequest.getPathInfo();
+		}
+		if (this.resourceVersions.isVersionedPath(path)) {
+			((HttpServletResponse) response).setHeader("Cache-Control", IMMUTABLE);
+		}
+		chain.doFilter(request, response);
+	}
+
+	@Override
+	public void destroy() {
+		// nothing to do
+	}
+
+}
@@ -0,0 +1,234 @@
+/**
+ * Copyright 2012-2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.rasc.embeddedtc;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Content hashes of the static resources of a {@link CachingFileDirContext}. A hash is
+ * computed once per file and recomputed when the size or the last modification time
+ * of the file differs on a lookup. The {@link DirectoryWatcher} of the
+ * CachingFileDirContext discards the hashes after a change. The hash is the strong
+ * ETag of the resource and the version in fingerprinted paths like
+ * <code>/css/app.3f2a9c0e5b7d1a46.css</code>.
+ * <p>
+ * The instance of the web application is available as servlet context attribute
+ * {@link #ATTRIBUTE}.
+ *
+ * @author Ralph Schaer
+ */
+public class ResourceVersions {
+
+	public static final String ATTRIBUTE = ResourceVersions.class.getName();
+
+	/**
+	 * Files larger than this keep the weak ETag of Tomcat and are not fingerprinted
+	 */
+	public static final long MAX_HASHED_SIZE = 16 * 1024 * 1024;
+
+	private static final int MAX_CACHE_SIZE = 10000;
+
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	private static final Pattern VERSIONED_PATH = Pattern
+			.compile("^(.*[^/])\\.([0-9a-f]{16})(\\.[^./]+)?$");
+
+	private final CachingFileDirContext resources;
+
+	private final ConcurrentMap<String, Version> versions = new ConcurrentHashMap<String, Version>();
+
+	/**
+	 * Incremented by {@link #clear()}, a hash computed before is not cached
+	 */
+	private final AtomicInteger generation = new AtomicInteger();
+
+	ResourceVersions(CachingFileDirContext resources) {
+		this.resources = resources;
+	}
+
+	/**
+	 * Returns the fingerprinted path of a resource, e.g.
+	 * <code>/css/app.3f2a9c0e5b7d1a46.css</code> for <code>/css/app.css</code>. The
+	 * fingerprinted path is served with a Cache-Control header that allows browsers to
+	 * cache the response forever.
+	 *
+	 * @param path path of the resource, relative to the web application
+	 * @return the fingerprinted path or the path unchanged if the resource does not
+	 * exist or is too large
+	 */
+	public String getVersionedPath(String path) {
+		String hash = getHash(this.resources.file(path, true));
+		if (hash == null) {
+			return path;
+		}
+		int slash = path.lastIndexOf('/');
+		int dot = path.lastIndexOf('.');
+		if (dot <= slash + 1) {
+			return path + "." + hash;
+		}
+		return path.substring(0, dot) + "." + hash + path.substring(dot);
+	}
+
+	/**
+	 * Checks if the path is a fingerprinted path that matches the current content of
+	 * the resource
+	 *
+	 * @param path path relative to the web application
+	 * @return true if the path contains the current hash of the resource
+	 */
+	public boolean isVersionedPath(String path) {
+		return resolve(path) != null;
+	}
+
+	/**
+	 * @return true if the path has the form of a fingerprinted path, regardless of the
+	 * hash
+	 */
+	static boolean isVersionedPathSyntax(String path) {
+		return VERSIONED_PATH.matcher(path).matches();
+	}
+
+	/**
+	 * Discards all hashes, called by the watcher after a change
+	 */
+	void clear() {
+		this.generation.incrementAndGet();
+		this.versions.clear();
+	}
+
+	/**
+	 * Resolves a fingerprinted path to the file of the resource. Returns null if the
+	 * path is not fingerprinted or the hash does not match the current content.
+	 */
+	File resolve(String path) {
+		Matcher matcher = VERSIONED_PATH.matcher(path);
+		if (!matcher.matches()) {
+			return null;
+		}
+		String extension = matcher.group(3);
+		String resourcePath = extension != null ? matcher.group(1) + extension
+				: matcher.group(1);
+		File file = this.resources.file(resourcePath, true);
+		if (file != null && matcher.group(2).equals(getHash(file))) {
+			return file;
+		}
+		return null;
+	}
+
+	/**
+	 * Returns the strong ETag of the file or null if the file is a directory or too
+	 * large
+	 */
+	String getETag(File file) {
+		String hash = getHash(file);
+		return hash != null ? "\"" + hash + "\"" : null;
+	}
+
+	private String getHash(File file) {
+		if (file == null) {
+			return null;
+		}
+
+		// the watcher polls, a file may have changed since its last run
+		Version version = this.versions.get(file.getPath());
+		if (version != null && version.length == file.length()
+				&& version.lastModified == file.lastModified()) {
+			return version.hash;
+		}
+
+		int currentGeneration = this.generation.get();
+		long length = file.length();
+		long lastModified = file.lastModified();
+		String hash = null;
+		if (length <= MAX_HASHED_SIZE && file.isFile()) {
+			try {
+				hash = hash(file);
+			}
+			catch (IOException e) {
+				return null;
+			}
+		}
+		if (this.versions.size() >= MAX_CACHE_SIZE) {
+			this.versions.clear();
+		}
+		// directories and large files are cached with a null hash
+		version = new Version(length, lastModified, hash);
+		this.versions.put(file.getPath(), version);
+		if (this.generation.get() != currentGeneration) {
+			// the file changed while it was hashed
+			this.versions.remove(file.getPath(), version);
+		}
+		return hash;
+	}
+
+	/**
+	 * First 8 bytes of the SHA-1 digest as hex string
+	 */
+	private static String hash(File file) throws IOException {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-1");
+		}
+		catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+
+		InputStream in = new FileInputStream(file);
+		try {
+			byte[] buffer = new byte[8192];
+			int len;
+			while ((len = in.read(buffer)) != -1) {
+				digest.update(buffer, 0, len);
+			}
+		}
+		finally {
+			in.close();
+		}
+
+		byte[] bytes = digest.digest();
+		char[] hex = new char[16];
+		for (int i = 0; i < 8; i++) {
+			hex[i * 2] = HEX[(bytes[i] >> 4) & 0xf];
+			hex[i * 2 + 1] = HEX[bytes[i] & 0xf];
+		}
+		return new String(hex);
+	}
+
+	private static final class Version {
+		final long length;
+
+		final long lastModified;
+
+		final String hash;
+
+		Version(long length, long lastModified, String hash) {
+			this.length = length;
+			this.lastModified = lastModified;
+			this.hash = hash;
+		}
+	}
+
+}
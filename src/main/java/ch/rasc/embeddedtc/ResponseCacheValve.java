@@ -0,0 +1,618 @@
+/**
+ * Copyright 2012-2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.rasc.embeddedtc;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.servlet.ServletException;
+
+import org.apache.catalina.connector.Request;
+import org.apache.catalina.connector.Response;
+import org.apache.catalina.valves.ValveBase;
+import org.apache.coyote.ActionCode;
+import org.apache.coyote.ActionHook;
+import org.apache.coyote.OutputBuffer;
+import org.apache.tomcat.util.buf.ByteChunk;
+import org.apache.tomcat.util.http.MimeHeaders;
+
+/**
+ * Valve that caches complete GET responses (status, headers and body) in memory. Only
+ * responses that allow shared caching with <code>Cache-Control: max-age</code> or
+ * <code>s-maxage</code> are stored, for the number of seconds of the directive. Responses
+ * that are <code>private</code>, <code>no-cache</code> or <code>no-store</code>, set a
+ * cookie or vary on <code>*</code> are not stored. The request headers listed in
+ * <code>Vary</code> are part of the cache key.
+ * <p>
+ * The cache is bounded by the total size of the bodies plus a fixed estimate per entry
+ * and evicts the least recently used entries. The <code>Vary</code> header names and
+ * the keys whose last response could not be cached are kept as entries of the same
+ * cache, they are evicted together with the responses.
+ * <p>
+ * Concurrent requests for a key that is not cached wait for the first request and get
+ * its response from the cache instead of running the servlet as well. Requests for keys
+ * whose last response could not be cached are not coalesced, they run the servlet
+ * concurrently.
+ * <p>
+ * The body is copied while it is written to the connector, the response is not
+ * buffered or delayed. The cached body is not compressed, the connector compresses it
+ * for every response if compression is enabled.
+ *
+ * @author Ralph Schaer
+ */
+public class ResponseCacheValve extends ValveBase {
+
+	private static final String SENDFILE_FILENAME = "org.apache.tomcat.sendfile.filename";
+
+	/**
+	 * Estimated memory of an entry without the body, added to the size of every entry
+	 */
+	private static final int ENTRY_OVERHEAD = 256;
+
+	private final Map<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f,
+			true);
+
+	private final ConcurrentMap<String, CountDownLatch> inFlight = new ConcurrentHashMap<String, CountDownLatch>();
+
+	private long maxSize = 64 * 1024 * 1024;
+
+	private int maxEntrySize = 1024 * 1024;
+
+	private long coalesceTimeout = 10000;
+
+	private long size;
+
+	private final AtomicLong hits = new AtomicLong();
+
+	private final AtomicLong misses = new AtomicLong();
+
+	private final AtomicLong coalesced = new AtomicLong();
+
+	public ResponseCacheValve() {
+		super(true);
+	}
+
+	/**
+	 * @param maxSize maximum total size of the cache in bytes, the size of the bodies
+	 * plus an estimate for the key and the headers of every entry
+	 */
+	public void setMaxSize(long maxSize) {
+		this.maxSize = maxSize;
+	}
+
+	public long getMaxSize() {
+		return this.maxSize;
+	}
+
+	/**
+	 * @param maxEntrySize responses with a larger body are not cached
+	 */
+	public void setMaxEntrySize(int maxEntrySize) {
+		this.maxEntrySize = maxEntrySize;
+	}
+
+	public int getMaxEntrySize() {
+		return this.maxEntrySize;
+	}
+
+	/**
+	 * @param coalesceTimeout maximum number of milliseconds a request waits for a
+	 * concurrent request with the same key before it runs the servlet itself
+	 */
+	public void setCoalesceTimeout(long coalesceTimeout) {
+		this.coalesceTimeout = coalesceTimeout;
+	}
+
+	public long getCoalesceTimeout() {
+		return this.coalesceTimeout;
+	}
+
+	public long getHitCount() {
+		return this.hits.get();
+	}
+
+	public long getMissCount() {
+		return this.misses.get();
+	}
+
+	/**
+	 * Number of requests that waited for a concurrent request with the same key
+	 */
+	public long getCoalescedCount() {
+		return this.coalesced.get();
+	}
+
+	/**
+	 * Number of cached responses
+	 */
+	public synchronized int getEntryCount() {
+		int count = 0;
+		for (Entry entry : this.entries.values()) {
+			if (entry.body != null) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Total size of the cache in bytes, the size of the bodies plus an estimate for the
+	 * key and the headers of every entry
+	 */
+	public synchronized long getSize() {
+		return this.size;
+	}
+
+	public synchronized void clear() {
+		this.entries.clear();
+		this.size = 0;
+	}
+
+	@Override
+	public void invoke(Request request, Response response)
+			throws IOException, ServletException {
+		if (!"GET".equals(request.getMethod()) || request.getHost() == null
+				|| request.getHeader("Authorization") != null) {
+			getNext().invoke(request, response);
+			return;
+		}
+
+		Map<String, String> requestCacheControl = parseCacheControl(
+				request.getHeaders("Cache-Control"));
+		if (requestCacheControl.containsKey("no-store")) {
+			getNext().invoke(request, response);
+			return;
+		}
+		boolean revalidate = requestCacheControl.containsKey("no-cache")
+				|| "0".equals(requestCacheControl.get("max-age"))
+				|| "no-cache".equalsIgnoreCase(request.getHeader("Pragma"));
+
+		String primaryKey = request.getHost().getName() + request.getRequestURI();
+		if (request.getQueryString() != null) {
+			primaryKey = primaryKey + "?" + request.getQueryString();
+		}
+
+		if (!revalidate) {
+			if (serve(request, response, primaryKey)) {
+				this.hits.incrementAndGet();
+				return;
+			}
+
+			String key = coalesceKey(primaryKey, request);
+			CountDownLatch latch = null;
+			if (key != null) {
+				latch = new CountDownLatch(1);
+				CountDownLatch running = this.inFlight.putIfAbsent(key, latch);
+				if (running != null) {
+					this.coalesced.incrementAndGet();
+					try {
+						running.await(this.coalesceTimeout, TimeUnit.MILLISECONDS);
+					}
+					catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+					if (serve(request, response, primaryKey)) {
+						this.hits.incrementAndGet();
+						return;
+					}
+					latch = null;
+				}
+			}
+
+			this.misses.incrementAndGet();
+			try {
+				invokeAndStore(request, response, primaryKey);
+			}
+			finally {
+				if (latch != null) {
+					this.inFlight.remove(key, latch);
+					latch.countDown();
+				}
+			}
+			return;
+		}
+
+		this.misses.incrementAndGet();
+		invokeAndStore(request, response, primaryKey);
+	}
+
+	private void invokeAndStore(Request request, Response response, String primaryKey)
+			throws IOException, ServletException {
+		org.apache.coyote.Response coyoteResponse = response.getCoyoteResponse();
+		OutputBuffer outputBuffer = coyoteResponse.getOutputBuffer();
+		ActionHook hook = coyoteResponse.getHook();
+		Capture capture = new Capture(coyoteResponse, outputBuffer, hook,
+				this.maxEntrySize);
+		coyoteResponse.setOutputBuffer(capture);
+		coyoteResponse.setHook(capture);
+		try {
+			getNext().invoke(request, response);
+			if (request.isAsync()) {
+				return;
+			}
+			// writes the buffered part of the body through the capture, the
+			// CoyoteAdapter does the same after the pipeline
+			response.finishResponse();
+		}
+		finally {
+			coyoteResponse.setOutputBuffer(outputBuffer);
+			coyoteResponse.setHook(hook);
+		}
+
+		if (capture.headers != null && capture.status == 304) {
+			// answer to a conditional request, says nothing about the resource
+			return;
+		}
+		if (capture.headers == null || capture.overflow
+				|| request.getAttribute(SENDFILE_FILENAME) != null || response.isError()
+				|| !store(request, primaryKey, capture)) {
+			put(primaryKey, Entry.uncacheable());
+		}
+	}
+
+	private boolean store(Request request, String primaryKey, Capture capture) {
+		int status = capture.status;
+		if (status != 200 && status != 203 && status != 301 && status != 404
+				&& status != 410) {
+			return false;
+		}
+
+		List<String> cacheControlValues = new ArrayList<String>();
+		List<String> vary = new ArrayList<String>();
+		for (String[] header : capture.headers) {
+			String name = header[0];
+			if (name.equalsIgnoreCase("Set-Cookie") || name.equalsIgnoreCase("Set-Cookie2")) {
+				return false;
+			}
+			if (name.equalsIgnoreCase("Cache-Control")) {
+				cacheControlValues.add(header[1]);
+			}
+			else if (name.equalsIgnoreCase("Vary")) {
+				for (String value : header[1].split(",")) {
+					value = value.trim();
+					if (value.equals("*")) {
+						return false;
+					}
+					if (value.length() > 0) {
+						vary.add(value);
+					}
+				}
+			}
+		}
+
+		Map<String, String> cacheControl = parseCacheControl(cacheControlValues);
+		if (cacheControl.containsKey("private") || cacheControl.containsKey("no-cache")
+				|| cacheControl.containsKey("no-store")) {
+			return false;
+		}
+		long maxAge = parseSeconds(cacheControl.get("s-maxage"));
+		if (maxAge < 0) {
+			maxAge = parseSeconds(cacheControl.get("max-age"));
+		}
+		if (maxAge <= 0) {
+			return false;
+		}
+
+		long now = System.currentTimeMillis();
+		long expires = now + maxAge * 1000;
+		Entry entry = new Entry(status, capture.contentType, capture.headers,
+				capture.body.toByteArray(), now, expires);
+		if (vary.isEmpty()) {
+			put(primaryKey, entry);
+		}
+		else {
+			String[] varyNames = vary.toArray(new String[vary.size()]);
+			synchronized (this) {
+				// the Vary entry lives as long as the longest living variant
+				Entry old = this.entries.get(primaryKey);
+				if (old != null && old.varyNames != null
+						&& Arrays.equals(old.varyNames, varyNames)) {
+					expires = Math.max(expires, old.expires);
+				}
+				put(primaryKey, Entry.vary(varyNames, expires));
+				put(key(primaryKey, varyNames, request), entry);
+			}
+		}
+		return true;
+	}
+
+	private synchronized void put(String key, Entry entry) {
+		entry.weight = entry.weight + key.length() * 2;
+		Entry old = this.entries.put(key, entry);
+		if (old != null) {
+			this.size -= old.weight;
+		}
+		this.size += entry.weight;
+		Iterator<Entry> it = this.entries.values().iterator();
+		while (this.size > this.maxSize && it.hasNext()) {
+			this.size -= it.next().weight;
+			it.remove();
+		}
+	}
+
+	/**
+	 * Returns the entry of the key, null if there is none or it is expired
+	 */
+	private Entry get(String key, long now) {
+		Entry entry = this.entries.get(key);
+		if (entry != null && entry.expires <= now) {
+			this.entries.remove(key);
+			this.size -= entry.weight;
+			return null;
+		}
+		return entry;
+	}
+
+	/**
+	 * Returns the key concurrent requests wait on, null if the last response of the
+	 * primary key could not be cached
+	 */
+	private String coalesceKey(String primaryKey, Request request) {
+		Entry entry;
+		synchronized (this) {
+			entry = get(primaryKey, System.currentTimeMillis());
+		}
+		if (entry == null) {
+			return primaryKey;
+		}
+		if (entry.varyNames != null) {
+			return key(primaryKey, entry.varyNames, request);
+		}
+		if (entry.body == null) {
+			return null;
+		}
+		return primaryKey;
+	}
+
+	private boolean serve(Request request, Response response, String primaryKey)
+			throws IOException {
+		long now = System.currentTimeMillis();
+		Entry entry;
+		synchronized (this) {
+			entry = get(primaryKey, now);
+			if (entry != null && entry.varyNames != null) {
+				entry = get(key(primaryKey, entry.varyNames, request), now);
+			}
+		}
+		if (entry == null || entry.body == null) {
+			return false;
+		}
+
+		for (String[] header : entry.headers) {
+			response.addHeader(header[0], header[1]);
+		}
+		response.setHeader("Age", String.valueOf((now - entry.created) / 1000));
+		if (entry.contentType != null) {
+			response.setContentType(entry.contentType);
+		}
+
+		String etag = response.getHeader("ETag");
+		String ifNoneMatch = request.getHeader("If-None-Match");
+		if (entry.status == 200 && etag != null && ifNoneMatch != null
+				&& (ifNoneMatch.equals("*") || ifNoneMatch.contains(etag))) {
+			response.setStatus(304);
+			return true;
+		}
+
+		response.setStatus(entry.status);
+		response.setContentLength(entry.body.length);
+		response.getOutputStream().write(entry.body);
+		return true;
+	}
+
+	private static String key(String primaryKey, String[] varyNames, Request request) {
+		StringBuilder sb = new StringBuilder(primaryKey);
+		for (String name : varyNames) {
+			sb.append('\n').append(name.toLowerCase(Locale.ENGLISH)).append(':');
+			Enumeration<String> values = request.getHeaders(name);
+			while (values.hasMoreElements()) {
+				sb.append(values.nextElement()).append(',');
+			}
+		}
+		return sb.toString();
+	}
+
+	private static Map<String, String> parseCacheControl(Enumeration<String> values) {
+		List<String> list = new ArrayList<String>();
+		while (values.hasMoreElements()) {
+			list.add(values.nextElement());
+		}
+		return parseCacheControl(list);
+	}
+
+	private static Map<String, String> parseCacheControl(List<String> values) {
+		Map<String, String> directives = new HashMap<String, String>();
+		for (String value : values) {
+			for (String directive : value.split(",")) {
+				int eq = directive.indexOf('=');
+				if (eq == -1) {
+					directives.put(directive.trim().toLowerCase(Locale.ENGLISH), "");
+				}
+				else {
+					String argument = directive.substring(eq + 1).trim();
+					if (argument.startsWith("\"") && argument.endsWith("\"")
+							&& argument.length() > 1) {
+						argument = argument.substring(1, argument.length() - 1);
+					}
+					directives.put(
+							directive.substring(0, eq).trim().toLowerCase(Locale.ENGLISH),
+							argument);
+				}
+			}
+		}
+		return directives;
+	}
+
+	private static long parseSeconds(String value) {
+		if (value == null) {
+			return -1;
+		}
+		try {
+			return Long.parseLong(value);
+		}
+		catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * A cached response, or with a null body a marker under the primary key: either the
+	 * <code>Vary</code> header names of the responses or that the last response could
+	 * not be cached.
+	 */
+	private static final class Entry {
+		final int status;
+
+		final String contentType;
+
+		final List<String[]> headers;
+
+		final byte[] body;
+
+		final String[] varyNames;
+
+		final long created;
+
+		final long expires;
+
+		int weight;
+
+		Entry(int status, String contentType, List<String[]> headers, byte[] body,
+				long created, long expires) {
+			this(status, contentType, headers, body, null, created, expires);
+		}
+
+		private Entry(int status, String contentType, List<String[]> headers, byte[] body,
+				String[] varyNames, long created, long expires) {
+			this.status = status;
+			this.contentType = contentType;
+			this.headers = headers;
+			this.body = body;
+			this.varyNames = varyNames;
+			this.created = created;
+			this.expires = expires;
+			this.weight = ENTRY_OVERHEAD + (body != null ? body.length : 0);
+		}
+
+		static Entry vary(String[] varyNames, long expires) {
+			return new Entry(0, null, null, null, varyNames, 0, expires);
+		}
+
+		static Entry uncacheable() {
+			return new Entry(0, null, null, null, null, 0, Long.MAX_VALUE);
+		}
+	}
+
+	/**
+	 * Sits between the coyote response and the connector. Records the headers when the
+	 * response is committed, before the connector adds its own headers (e.g.
+	 * Content-Encoding of the compression), and copies the body.
+	 */
+	private static final class Capture implements OutputBuffer, ActionHook {
+
+		private static final String[] SKIPPED_HEADERS = { "Age", "Connection", "Date",
+				"Keep-Alive", "Transfer-Encoding" };
+
+		private final org.apache.coyote.Response coyoteResponse;
+
+		private final OutputBuffer outputBuffer;
+
+		private final ActionHook hook;
+
+		private final int maxSize;
+
+		final ByteArrayOutputStream body = new ByteArrayOutputStream();
+
+		boolean overflow;
+
+		List<String[]> headers;
+
+		String contentType;
+
+		int status;
+
+		Capture(org.apache.coyote.Response coyoteResponse, OutputBuffer outputBuffer,
+				ActionHook hook, int maxSize) {
+			this.coyoteResponse = coyoteResponse;
+			this.outputBuffer = outputBuffer;
+			this.hook = hook;
+			this.maxSize = maxSize;
+		}
+
+		@Override
+		public void action(ActionCode actionCode, Object param) {
+			if (actionCode == ActionCode.COMMIT && this.headers == null) {
+				this.status = this.coyoteResponse.getStatus();
+				this.contentType = this.coyoteResponse.getContentType();
+				this.headers = new ArrayList<String[]>();
+				MimeHeaders mimeHeaders = this.coyoteResponse.getMimeHeaders();
+				for (int i = 0; i < mimeHeaders.size(); i++) {
+					String name = mimeHeaders.getName(i).toString();
+					if (!isSkipped(name)) {
+						this.headers.add(
+								new String[] { name, mimeHeaders.getValue(i).toString() });
+					}
+				}
+			}
+			if (this.hook != null) {
+				this.hook.action(actionCode, param);
+			}
+		}
+
+		private static boolean isSkipped(String name) {
+			for (String skipped : SKIPPED_HEADERS) {
+				if (skipped.equalsIgnoreCase(name)) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		@Override
+		public int doWrite(ByteChunk chunk, org.apache.coyote.Response response)
+				throws IOException {
+			if (!this.overflow) {
+				if (this.body.size() + chunk.getLength() > this.maxSize) {
+					this.overflow = true;
+				}
+				else {
+					this.body.write(chunk.getBuffer(), chunk.getStart(), chunk.getLength());
+				}
+			}
+			return this.outputBuffer.doWrite(chunk, response);
+		}
+
+		@Override
+		public long getBytesWritten() {
+			return this.outputBuffer.getBytesWritten();
+		}
+	}
+
+}
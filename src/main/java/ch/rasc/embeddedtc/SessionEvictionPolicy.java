@@ -0,0 +1,39 @@
+/**
+ * Copyright 2012-2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.rasc.embeddedtc;
+
+/**
+ * Selects the session that a {@link BoundedSessionManager} expires when the maximum
+ * number of sessions or the memory budget is reached.
+ *
+ * @author Ralph Schaer
+ * @see EmbeddedTomcat#useBoundedSessionManager(int, long, SessionEvictionPolicy)
+ */
+public enum SessionEvictionPolicy {
+
+	/**
+	 * Evicts the least recently used session
+	 */
+	LRU,
+
+	/**
+	 * Evicts the least frequently used session among the least recently used sessions.
+	 * Protects sessions of returning users against a burst of single request sessions,
+	 * e.g. from bots.
+	 */
+	LFU
+
+}
@@ -0,0 +1,194 @@
+/**
+ * Copyright 2012-2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.rasc.embeddedtc;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.Charset;
+
+import org.apache.juli.logging.Log;
+import org.apache.juli.logging.LogFactory;
+
+/**
+ * Listens on the shutdown port for the shutdown command. Unlike the shutdown port of
+ * {@link org.apache.catalina.core.StandardServer} the connection stays open until the
+ * server has stopped and closed its connectors. The listener then answers with
+ * {@link #ACKNOWLEDGE}, so a new instance can bind the ports immediately.
+ *
+ * @author Ralph Schaer
+ */
+public class ShutdownListener implements Runnable {
+
+	private static final Log log = LogFactory.getLog(ShutdownListener.class);
+
+	public static final String COMMAND = "SHUTDOWN";
+
+	public static final String ACKNOWLEDGE = "STOPPED";
+
+	private static final Charset ASCII = Charset.forName("US-ASCII");
+
+	public interface Callback {
+		/**
+		 * Called when the shutdown command has been received. Has to return after the
+		 * connectors are closed.
+		 */
+		void shutdown();
+
+		/**
+		 * Called after the acknowledgement has been sent
+		 */
+		void shutdownAcknowledged();
+	}
+
+	private final int port;
+
+	private final Callback callback;
+
+	private ServerSocket serverSocket;
+
+	private Thread thread;
+
+	public ShutdownListener(int port, Callback callback) {
+		this.port = port;
+		this.callback = callback;
+	}
+
+	public synchronized void start() throws IOException {
+		if (this.thread == null) {
+			this.serverSocket = new ServerSocket(this.port, 1,
+					InetAddress.getByName("localhost"));
+			this.thread = new Thread(this, "ShutdownListener[" + this.port + "]");
+			this.thread.setDaemon(true);
+			this.thread.start();
+		}
+	}
+
+	public synchronized void stop() {
+		if (this.thread != null) {
+			// accept() fails as soon as the socket is closed
+			this.thread = null;
+			closeQuietly(this.serverSocket);
+			this.serverSocket = null;
+		}
+	}
+
+	@Override
+	public void run() {
+		ServerSocket server;
+		synchronized (this) {
+			server = this.serverSocket;
+		}
+		while (server != null && !server.isClosed()) {
+			Socket socket;
+			try {
+				socket = server.accept();
+			}
+			catch (IOException e) {
+				// closed by stop()
+				return;
+			}
+
+			try {
+				socket.setSoTimeout(10000);
+				if (COMMAND.equals(readCommand(socket.getInputStream()))) {
+					stop();
+					this.callback.shutdown();
+					OutputStream out = socket.getOutputStream();
+					out.write(ACKNOWLEDGE.getBytes(ASCII));
+					out.flush();
+					closeQuietly(socket);
+					this.callback.shutdownAcknowledged();
+					return;
+				}
+				log.warn("Invalid shutdown command received");
+			}
+			catch (IOException e) {
+				log.debug("Reading the shutdown command failed", e);
+			}
+			finally {
+				closeQuietly(socket);
+			}
+		}
+	}
+
+	/**
+	 * Sends the shutdown command to a running server and waits for the acknowledgement
+	 *
+	 * @param port the shutdown port
+	 * @param timeoutMillis maximum number of milliseconds to wait for the acknowledgement
+	 * @return true if the server acknowledged that it has closed its connectors, false
+	 * if the server closed the connection without an acknowledgement (for example a
+	 * plain Tomcat shutdown port) or did not answer in time
+	 * @throws IOException if no server is listening on the port
+	 */
+	public static boolean sendShutdown(int port, int timeoutMillis) throws IOException {
+		Socket socket = new Socket("localhost", port);
+		try {
+			OutputStream out = socket.getOutputStream();
+			out.write(COMMAND.getBytes(ASCII));
+			out.flush();
+			// end of stream terminates the command
+			socket.shutdownOutput();
+
+			socket.setSoTimeout(Math.max(timeoutMillis, 1));
+			try {
+				return ACKNOWLEDGE.equals(readCommand(socket.getInputStream()));
+			}
+			catch (SocketTimeoutException e) {
+				return false;
+			}
+		}
+		finally {
+			closeQuietly(socket);
+		}
+	}
+
+	private static String readCommand(InputStream in) throws IOException {
+		StringBuilder sb = new StringBuilder();
+		while (sb.length() < 64) {
+			int ch = in.read();
+			if (ch < 32 || ch == 127) {
+				break;
+			}
+			sb.append((char) ch);
+		}
+		return sb.toString();
+	}
+
+	private static void closeQuietly(Socket socket) {
+		try {
+			socket.close();
+		}
+		catch (IOException e) {
+			// ignore
+		}
+	}
+
+	private static void closeQuietly(ServerSocket socket) {
+		try {
+			socket.close();
+		}
+		catch (IOException e) {
+			// ignore
+		}
+	}
+
+}
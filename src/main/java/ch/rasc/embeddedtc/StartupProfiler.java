@@ -0,0 +1,229 @@
+/**
+ * Copyright 2012-2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.rasc.embeddedtc;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.catalina.Container;
+import org.apache.catalina.ContainerEvent;
+import org.apache.catalina.ContainerListener;
+import org.apache.catalina.Context;
+import org.apache.catalina.InstanceEvent;
+import org.apache.catalina.InstanceListener;
+import org.apache.catalina.Lifecycle;
+import org.apache.catalina.LifecycleEvent;
+import org.apache.catalina.LifecycleListener;
+import org.apache.catalina.Wrapper;
+import org.apache.catalina.connector.Connector;
+import org.apache.catalina.core.NamingContextListener;
+import org.apache.catalina.core.StandardContext;
+
+/**
+ * Installs the listeners that record the phases of a startup in a
+ * {@link StartupReport}. The configuration phases of a context are recorded by the
+ * {@link CachingContextConfig}.
+ *
+ * @author Ralph Schaer
+ */
+class StartupProfiler {
+
+	private final StartupReport report;
+
+	StartupProfiler(StartupReport report) {
+		this.report = report;
+	}
+
+	void profileConnector(final Connector connector) {
+		connector.addLifecycleListener(new LifecycleListener() {
+			private long start;
+
+			@Override
+			public void lifecycleEvent(LifecycleEvent event) {
+				if (Lifecycle.BEFORE_INIT_EVENT.equals(event.getType())) {
+					this.start = System.nanoTime();
+				}
+				else if (Lifecycle.AFTER_INIT_EVENT.equals(event.getType())) {
+					StartupProfiler.this.report.record(StartupReport.CONNECTOR_BIND,
+							connector.getScheme() + ":" + connector.getPort(), this.start);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Has to be called after all other lifecycle listeners are added to the context.
+	 * Only the first start is recorded, a reload of the context does not add phases.
+	 */
+	void profileContext(Context context) {
+		ContextListener listener = new ContextListener(context);
+		context.addLifecycleListener(listener);
+		context.addContainerListener(listener);
+		for (Container child : context.findChildren()) {
+			if (child instanceof Wrapper) {
+				((Wrapper) child).addInstanceListener(listener);
+			}
+		}
+
+		// Same condition and name as StandardContext.startInternal(), that only creates
+		// a NamingContextListener if none is set
+		if (context instanceof StandardContext) {
+			StandardContext standardContext = (StandardContext) context;
+			if (standardContext.isUseNaming()
+					&& standardContext.getNamingContextListener() == null
+					&& !"false".equals(System.getProperty("catalina.useNaming"))) {
+				NamingContextListener namingContextListener = new TimedNamingContextListener(
+						context);
+				namingContextListener.setName(namingContextName(context));
+				namingContextListener.setExceptionOnFailedWrite(
+						standardContext.getJndiExceptionOnFailedWrite());
+				standardContext.addLifecycleListener(namingContextListener);
+				standardContext.setNamingContextListener(namingContextListener);
+			}
+		}
+	}
+
+	private static String namingContextName(Context context) {
+		StringBuilder sb = new StringBuilder();
+		for (Container parent = context.getParent(); parent != null; parent = parent
+				.getParent()) {
+			sb.insert(0, "/" + parent.getName());
+		}
+		return sb.append(context.getName()).toString();
+	}
+
+	private class ContextListener
+			implements LifecycleListener, ContainerListener, InstanceListener {
+
+		private final String contextName;
+
+		private volatile boolean starting;
+
+		private long contextStart;
+
+		private long listenerStart;
+
+		private long servletStart;
+
+		ContextListener(Context context) {
+			this.contextName = StartupReport.contextName(context.getPath());
+		}
+
+		@Override
+		public void lifecycleEvent(LifecycleEvent event) {
+			if (Lifecycle.BEFORE_START_EVENT.equals(event.getType())) {
+				this.starting = true;
+				this.contextStart = System.nanoTime();
+			}
+			else if (Lifecycle.AFTER_START_EVENT.equals(event.getType())) {
+				this.starting = false;
+				StartupProfiler.this.report.record(StartupReport.CONTEXT_START,
+						this.contextName, this.contextStart);
+
+				Context context = (Context) event.getLifecycle();
+				if (context instanceof StandardContext) {
+					long tldScanTime = ((StandardContext) context).getTldScanTime();
+					StartupProfiler.this.report.add(StartupReport.TLD_SCANNING,
+							this.contextName, TimeUnit.MILLISECONDS.toNanos(tldScanTime));
+				}
+				stopRecording(context);
+			}
+		}
+
+		private void stopRecording(Context context) {
+			context.removeLifecycleListener(this);
+			context.removeContainerListener(this);
+			for (Container child : context.findChildren()) {
+				if (child instanceof Wrapper) {
+					((Wrapper) child).removeInstanceListener(this);
+				}
+			}
+			for (LifecycleListener listener : context.findLifecycleListeners()) {
+				if (listener instanceof CachingContextConfig) {
+					((CachingContextConfig) listener).setStartupReport(null);
+				}
+			}
+			if (context instanceof StandardContext) {
+				NamingContextListener namingContextListener = ((StandardContext) context)
+						.getNamingContextListener();
+				if (namingContextListener instanceof TimedNamingContextListener) {
+					((TimedNamingContextListener) namingContextListener).recording = false;
+				}
+			}
+		}
+
+		@Override
+		public void containerEvent(ContainerEvent event) {
+			String type = event.getType();
+			if (Container.ADD_CHILD_EVENT.equals(type)
+					&& event.getData() instanceof Wrapper) {
+				// the default servlets are added before this listener sees the
+				// before start event
+				((Wrapper) event.getData()).addInstanceListener(this);
+			}
+			else if (!this.starting) {
+				return;
+			}
+			else if ("beforeContextInitialized".equals(type)) {
+				this.listenerStart = System.nanoTime();
+			}
+			else if ("afterContextInitialized".equals(type)) {
+				StartupProfiler.this.report.record(StartupReport.CONTEXT_LISTENER,
+						this.contextName + " " + event.getData().getClass().getName(),
+						this.listenerStart);
+			}
+		}
+
+		@Override
+		public void instanceEvent(InstanceEvent event) {
+			if (!this.starting) {
+				return;
+			}
+			if (InstanceEvent.BEFORE_INIT_EVENT.equals(event.getType())) {
+				this.servletStart = System.nanoTime();
+			}
+			else if (InstanceEvent.AFTER_INIT_EVENT.equals(event.getType())) {
+				StartupProfiler.this.report.record(StartupReport.LOAD_ON_STARTUP,
+						this.contextName + " " + event.getWrapper().getName(),
+						this.servletStart);
+			}
+		}
+	}
+
+	private class TimedNamingContextListener extends NamingContextListener {
+
+		private final String contextName;
+
+		volatile boolean recording = true;
+
+		TimedNamingContextListener(Context context) {
+			this.contextName = StartupReport.contextName(context.getPath());
+		}
+
+		@Override
+		public void lifecycleEvent(LifecycleEvent event) {
+			if (!this.recording
+					|| !Lifecycle.CONFIGURE_START_EVENT.equals(event.getType())) {
+				super.lifecycleEvent(event);
+				return;
+			}
+			long start = System.nanoTime();
+			super.lifecycleEvent(event);
+			StartupProfiler.this.report.record(StartupReport.NAMING, this.contextName,
+					start);
+		}
+	}
+
+}
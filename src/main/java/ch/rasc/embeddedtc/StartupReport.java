@@ -0,0 +1,164 @@
+/**
+ * Copyright 2012-2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.rasc.embeddedtc;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Durations of the phases of one {@link EmbeddedTomcat#start()}. Collected by
+ * lifecycle, container and instance listeners if
+ * {@link EmbeddedTomcat#enableStartupReport()} is called.
+ * <p>
+ * Contexts start in parallel if more than one web application is added, the durations
+ * of phases of different contexts may therefore overlap.
+ *
+ * @author Ralph Schaer
+ */
+public class StartupReport {
+
+	public static final String CATALINA_PROPERTIES = "catalina.properties";
+
+	public static final String CONNECTOR_BIND = "connector bind";
+
+	public static final String CONTEXT_START = "context start";
+
+	public static final String CONTEXT_CONFIGURATION = "context configuration";
+
+	public static final String JAR_SCANNING = "jar scanning";
+
+	public static final String ANNOTATION_PROCESSING = "annotation processing";
+
+	public static final String NAMING = "naming";
+
+	public static final String TLD_SCANNING = "TLD scanning";
+
+	public static final String CONTEXT_LISTENER = "ServletContextListener";
+
+	public static final String LOAD_ON_STARTUP = "load-on-startup servlet";
+
+	public static final String TOTAL = "total";
+
+	private final List<Phase> phases = new ArrayList<Phase>();
+
+	/**
+	 * Duration of one phase
+	 */
+	public static class Phase {
+		private final String name;
+
+		private final String target;
+
+		private final long nanos;
+
+		Phase(String name, String target, long nanos) {
+			this.name = name;
+			this.target = target;
+			this.nanos = nanos;
+		}
+
+		/**
+		 * @return one of the constants of {@link StartupReport}
+		 */
+		public String getName() {
+			return this.name;
+		}
+
+		/**
+		 * @return the context path, connector, listener class or servlet name the phase
+		 * belongs to. Empty string for phases of the whole server.
+		 */
+		public String getTarget() {
+			return this.target;
+		}
+
+		public long getNanos() {
+			return this.nanos;
+		}
+
+		public long getMillis() {
+			return TimeUnit.NANOSECONDS.toMillis(this.nanos);
+		}
+
+		@Override
+		public String toString() {
+			return this.name + (this.target.length() > 0 ? " " + this.target : "") + ": "
+					+ getMillis() + " ms";
+		}
+	}
+
+	void record(String name, String target, long startNanos) {
+		add(name, target, System.nanoTime() - startNanos);
+	}
+
+	void add(String name, String target, long nanos) {
+		Phase phase = new Phase(name, target != null ? target : "", nanos);
+		synchronized (this.phases) {
+			this.phases.add(phase);
+		}
+	}
+
+	/**
+	 * @return all phases in the order they finished
+	 */
+	public List<Phase> getPhases() {
+		synchronized (this.phases) {
+			return Collections.unmodifiableList(new ArrayList<Phase>(this.phases));
+		}
+	}
+
+	/**
+	 * @param name one of the phase constants
+	 * @return all phases with this name in the order they finished
+	 */
+	public List<Phase> getPhases(String name) {
+		List<Phase> result = new ArrayList<Phase>();
+		for (Phase phase : getPhases()) {
+			if (phase.getName().equals(name)) {
+				result.add(phase);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * @param name one of the phase constants
+	 * @return sum of the durations of all phases with this name in milliseconds
+	 */
+	public long getMillis(String name) {
+		long nanos = 0;
+		for (Phase phase : getPhases(name)) {
+			nanos += phase.getNanos();
+		}
+		return TimeUnit.NANOSECONDS.toMillis(nanos);
+	}
+
+	static String contextName(String path) {
+		return path == null || path.length() == 0 ? "/" : path;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder("Startup report");
+		for (Phase phase : getPhases()) {
+			sb.append("\n  ").append(phase);
+		}
+		return sb.toString();
+	}
+
+}
@@ -15,8 +15,13 @@
  */
 package ch.rasc.embeddedtc;
 
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 import javax.naming.NamingException;
 
@@ -24,25 +29,155 @@ import org.apache.naming.NamingEntry;
 import org.apache.naming.resources.FileDirContext;
 
 /**
- * Special FileDirContext that mapps /WEB-INF/classes to ./target/classes
+ * Special FileDirContext that mapps /WEB-INF/classes to ./target/classes or to an
+ * ordered list of class directories (e.g. the target/classes directories of several
+ * modules of a multi-module build). Additional resource directories are overlaid
+ * behind the document base: a resource that does not exist in the document base is
+ * looked up in these directories in the order they were added and directory listings
+ * contain the merged content of all directories.
  *
  * @author Ralph Schaer
  */
-public class TargetClassesContext extends FileDirContext {
+public class TargetClassesContext extends CachingFileDirContext {
+
+	private List<String> classesDirectories = Collections.singletonList("./target/classes");
+
+	private final List<CachingFileDirContext> resourceContexts = new ArrayList<CachingFileDirContext>();
+
+	private List<CachingFileDirContext> classesContexts;
+
+	private List<NamingEntry> classesBinding;
+
+	/**
+	 * Sets the directories that are mapped to /WEB-INF/classes. The directories are
+	 * scanned for annotations in the specified order. Directories that do not exist are
+	 * ignored. Default is ./target/classes
+	 */
+	public void setClassesDirectories(List<String> classesDirectories) {
+		this.classesDirectories = new ArrayList<String>(classesDirectories);
+	}
+
+	public List<String> getClassesDirectories() {
+		return Collections.unmodifiableList(this.classesDirectories);
+	}
+
+	/**
+	 * Adds a directory that is overlaid behind the document base and all previously
+	 * added resource directories
+	 *
+	 * @param resourceDirectory path name of an existing directory
+	 */
+	public void addResourceDirectory(String resourceDirectory) {
+		CachingFileDirContext resourceContext = new CachingFileDirContext();
+		resourceContext.setDocBase(resourceDirectory);
+		this.resourceContexts.add(resourceContext);
+	}
 
 	@Override
 	protected List<NamingEntry> doListBindings(String name) throws NamingException {
 
 		if ("/WEB-INF/classes".equals(name)) {
-			FileDirContext fileDirContext = new FileDirContext();
-			fileDirContext.setDocBase("./target/classes");
-			NamingEntry namingEntry = new NamingEntry("/WEB-INF/classes", fileDirContext,
-					-1);
-			return Collections.singletonList(namingEntry);
+			return getClassesBinding();
+		}
+
+		List<NamingEntry> entries = super.doListBindings(name);
+		if (this.resourceContexts.isEmpty() || entries == null) {
+			return entries;
+		}
+
+		// file() may have resolved the directory in any of the roots. Merge the content
+		// of all roots, the first root that contains an entry wins.
+		Map<String, NamingEntry> merged = new LinkedHashMap<String, NamingEntry>();
+		addEntries(merged, super.resolveFile(name));
+		for (CachingFileDirContext resourceContext : this.resourceContexts) {
+			addEntries(merged, resourceContext.file(name, true));
+		}
+		return new ArrayList<NamingEntry>(merged.values());
+	}
+
+	private void addEntries(Map<String, NamingEntry> merged, File directory) {
+		if (directory == null || !directory.isDirectory()) {
+			return;
+		}
+		String[] names = directory.list();
+		if (names == null) {
+			return;
+		}
+		Arrays.sort(names);
+		for (String entryName : names) {
+			if (!merged.containsKey(entryName)) {
+				File file = new File(directory, entryName);
+				Object object;
+				if (file.isDirectory()) {
+					FileDirContext context = new FileDirContext(this.env);
+					context.setDocBase(file.getPath());
+					context.setAllowLinking(getAllowLinking());
+					object = context;
+				}
+				else {
+					object = new FileResource(file);
+				}
+				merged.put(entryName, new NamingEntry(entryName, object, NamingEntry.ENTRY));
+			}
+		}
+	}
+
+	@Override
+	protected File resolveFile(String name) {
+		File file = super.resolveFile(name);
+		if (file == null) {
+			for (CachingFileDirContext resourceContext : this.resourceContexts) {
+				file = resourceContext.file(name, true);
+				if (file != null) {
+					break;
+				}
+			}
+		}
+		return file;
+	}
+
+	@Override
+	protected List<File> getWatchedDirectories() {
+		List<File> directories = new ArrayList<File>(super.getWatchedDirectories());
+		for (CachingFileDirContext resourceContext : this.resourceContexts) {
+			directories.add(new File(resourceContext.getDocBase()));
 		}
+		return directories;
+	}
 
-		return super.doListBindings(name);
+	private synchronized List<NamingEntry> getClassesBinding() {
+		if (this.classesBinding == null) {
+			List<CachingFileDirContext> contexts = new ArrayList<CachingFileDirContext>();
+			List<NamingEntry> binding = new ArrayList<NamingEntry>();
+			for (String classesDirectory : this.classesDirectories) {
+				if (!new File(classesDirectory).isDirectory()) {
+					continue;
+				}
+				CachingFileDirContext classesContext = new CachingFileDirContext();
+				classesContext.setDocBase(classesDirectory);
+				classesContext.setWatchInterval(getWatchInterval());
+				classesContext.allocate();
+				contexts.add(classesContext);
+				binding.add(new NamingEntry("/WEB-INF/classes", classesContext, -1));
+			}
+			this.classesContexts = contexts;
+			this.classesBinding = binding;
+		}
+		return this.classesBinding;
+	}
 
+	@Override
+	public void release() {
+		synchronized (this) {
+			if (this.classesContexts != null) {
+				for (CachingFileDirContext classesContext : this.classesContexts) {
+					classesContext.release();
+				}
+				this.classesContexts = null;
+				this.classesBinding = null;
+			}
+		}
+		super.release();
 	}
 
 }
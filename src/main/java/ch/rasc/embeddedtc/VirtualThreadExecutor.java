@@ -0,0 +1,137 @@
+/**
+ * Copyright 2012-2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.rasc.embeddedtc;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.catalina.Executor;
+import org.apache.catalina.LifecycleException;
+import org.apache.catalina.LifecycleState;
+import org.apache.catalina.util.LifecycleMBeanBase;
+
+/**
+ * Executor that runs every task on a new virtual thread. Virtual threads are only
+ * available on Java 21 and later, the JDK classes are therefore accessed with
+ * reflection. Call {@link #isSupported()} before adding an instance to a service.
+ *
+ * @author Ralph Schaer
+ */
+public class VirtualThreadExecutor extends LifecycleMBeanBase implements Executor {
+
+	private String name = "tomcatVirtualThreadExecutor";
+
+	private String namePrefix = "tomcat-virt-";
+
+	private volatile ExecutorService executorService;
+
+	/**
+	 * Checks if the running JVM is able to create virtual threads
+	 *
+	 * @return true if virtual threads are supported
+	 */
+	public static boolean isSupported() {
+		try {
+			createThreadFactory("probe-");
+			return true;
+		}
+		catch (Exception e) {
+			return false;
+		}
+	}
+
+	private static ThreadFactory createThreadFactory(String prefix) throws Exception {
+		Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+		Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+		builder = builderClass.getMethod("name", String.class, long.class).invoke(builder,
+				prefix, 0L);
+		return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+	}
+
+	@Override
+	protected void startInternal() throws LifecycleException {
+		try {
+			ThreadFactory threadFactory = createThreadFactory(this.namePrefix);
+			this.executorService = (ExecutorService) Executors.class
+					.getMethod("newThreadPerTaskExecutor", ThreadFactory.class)
+					.invoke(null, threadFactory);
+		}
+		catch (Exception e) {
+			throw new LifecycleException("Virtual threads are not supported by this JVM",
+					e);
+		}
+		setState(LifecycleState.STARTING);
+	}
+
+	@Override
+	protected void stopInternal() throws LifecycleException {
+		setState(LifecycleState.STOPPING);
+		if (this.executorService != null) {
+			this.executorService.shutdown();
+			this.executorService = null;
+		}
+	}
+
+	@Override
+	public void execute(Runnable command) {
+		ExecutorService service = this.executorService;
+		if (service == null) {
+			throw new RejectedExecutionException("Executor not running");
+		}
+		service.execute(command);
+	}
+
+	/**
+	 * A virtual thread is created for every task, there is no queue. The timeout is
+	 * therefore ignored.
+	 */
+	@Override
+	public void execute(Runnable command, long timeout, TimeUnit unit) {
+		execute(command);
+	}
+
+	@Override
+	public String getName() {
+		return this.name;
+	}
+
+	public void setName(String name) {
+		this.name = name;
+	}
+
+	public String getNamePrefix() {
+		return this.namePrefix;
+	}
+
+	public void setNamePrefix(String namePrefix) {
+		this.namePrefix = namePrefix;
+	}
+
+	@Override
+	protected String getDomainInternal() {
+		// The service sets the domain before it initializes the executor
+		return null;
+	}
+
+	@Override
+	protected String getObjectNameKeyProperties() {
+		return "type=Executor,name=" + getName();
+	}
+
+}
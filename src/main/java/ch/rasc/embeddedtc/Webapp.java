@@ -0,0 +1,223 @@
+/**
+ * Copyright 2012-2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.rasc.embeddedtc;
+
+import java.io.File;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.catalina.deploy.ApplicationParameter;
+import org.apache.catalina.deploy.ContextEnvironment;
+import org.apache.catalina.deploy.ContextResource;
+
+/**
+ * Configuration of an additional web application that runs in the same
+ * {@link EmbeddedTomcat} next to the main application.
+ *
+ * <pre>
+ * embeddedTomcat.addWebapp(new Webapp(&quot;/admin&quot;, &quot;../admin/src/main/webapp&quot;)
+ * 		.addContextEnvironmentString(&quot;aparam&quot;, &quot;test&quot;));
+ * </pre>
+ *
+ * Unlike the main application the directory /WEB-INF/classes is not mapped to
+ * ./target/classes. The web application loads the classes from the WEB-INF/classes
+ * and WEB-INF/lib directories of the context directory.
+ *
+ * @author Ralph Schaer
+ */
+public class Webapp {
+
+	private final String contextPath;
+
+	private final String contextDirectory;
+
+	private final List<ContextEnvironment> contextEnvironments = new ArrayList<ContextEnvironment>();
+
+	private final List<ContextResource> contextResources = new ArrayList<ContextResource>();
+
+	private final List<ApplicationParameter> contextInitializationParameters = new ArrayList<ApplicationParameter>();
+
+	private URL contextFileURL;
+
+	private boolean privileged;
+
+	/**
+	 * @param contextPath has to start with /
+	 * @param contextDirectory path name to the directory that contains the web
+	 * application
+	 */
+	public Webapp(String contextPath, String contextDirectory) {
+		if (contextPath == null || !contextPath.startsWith("/")) {
+			throw new IllegalArgumentException("contextPath must start with /");
+		}
+		if (contextDirectory == null) {
+			throw new IllegalArgumentException("contextDirectory must not be null");
+		}
+		this.contextPath = contextPath;
+		this.contextDirectory = contextDirectory;
+	}
+
+	/**
+	 * Adds a context environment to this web application.
+	 *
+	 * @param env context environment variable
+	 * @return this webapp
+	 *
+	 * @see ContextEnvironment
+	 * @see EmbeddedTomcat#addContextEnvironment(ContextEnvironment)
+	 */
+	public Webapp addContextEnvironment(ContextEnvironment env) {
+		this.contextEnvironments.add(env);
+		return this;
+	}
+
+	/**
+	 * Convenient method for adding a context environment to this web application.
+	 *
+	 * @param name name of the context environment
+	 * @param value value of the context environment
+	 * @param type type of the context environment
+	 * @return this webapp
+	 *
+	 * @see EmbeddedTomcat#addContextEnvironment(String, String, String)
+	 */
+	public Webapp addContextEnvironment(String name, String value, String type) {
+		final ContextEnvironment env = new ContextEnvironment();
+		env.setType(type);
+		env.setName(name);
+		env.setValue(value);
+		return addContextEnvironment(env);
+	}
+
+	/**
+	 * Convenient method for adding a context environment with type java.lang.String to
+	 * this web application.
+	 *
+	 * @param name name of the context environment
+	 * @param value value of the context environment
+	 * @return this webapp
+	 *
+	 * @see EmbeddedTomcat#addContextEnvironmentString(String, String)
+	 */
+	public Webapp addContextEnvironmentString(String name, String value) {
+		return addContextEnvironment(name, value, "java.lang.String");
+	}
+
+	/**
+	 * Adds a context resource to this web application.
+	 *
+	 * @param res resource object
+	 * @return this webapp
+	 *
+	 * @see ContextResource
+	 * @see EmbeddedTomcat#addContextResource(ContextResource)
+	 */
+	public Webapp addContextResource(ContextResource res) {
+		this.contextResources.add(res);
+		return this;
+	}
+
+	/**
+	 * Adds a context initialization parameter to this web application. The application
+	 * reads the value with ServletContext.getInitParameter(name).
+	 *
+	 * @param name name of the parameter
+	 * @param value value of the parameter
+	 * @return this webapp
+	 */
+	public Webapp addContextInitializationParameter(String name, String value) {
+		ApplicationParameter parameter = new ApplicationParameter();
+		parameter.setName(name);
+		parameter.setValue(value);
+		this.contextInitializationParameters.add(parameter);
+		return this;
+	}
+
+	/**
+	 * Sets the location of the context file that configures this web application
+	 *
+	 * @param contextFileURL Location of the context file
+	 * @return this webapp
+	 */
+	public Webapp setContextFile(URL contextFileURL) {
+		this.contextFileURL = contextFileURL;
+		return this;
+	}
+
+	/**
+	 * Sets the location of the context file that configures this web application
+	 *
+	 * @param contextFile Location of the context file
+	 * @return this webapp
+	 */
+	public Webapp setContextFile(String contextFile) {
+		try {
+			this.contextFileURL = new File(contextFile).toURI().toURL();
+		}
+		catch (MalformedURLException e) {
+			throw new RuntimeException(e);
+		}
+		return this;
+	}
+
+	/**
+	 * Set the privileged flag for this web application.
+	 *
+	 * @param privileged The new privileged flag
+	 * @return this webapp
+	 */
+	public Webapp setPrivileged(boolean privileged) {
+		this.privileged = privileged;
+		return this;
+	}
+
+	public String getContextPath() {
+		return this.contextPath;
+	}
+
+	public String getContextDirectory() {
+		return this.contextDirectory;
+	}
+
+	public List<ContextEnvironment> getContextEnvironments() {
+		return Collections.unmodifiableList(this.contextEnvironments);
+	}
+
+	public List<ContextResource> getContextResources() {
+		return Collections.unmodifiableList(this.contextResources);
+	}
+
+	public List<ApplicationParameter> getContextInitializationParameters() {
+		return Collections.unmodifiableList(this.contextInitializationParameters);
+	}
+
+	public URL getContextFileURL() {
+		return this.contextFileURL;
+	}
+
+	public boolean isPrivileged() {
+		return this.privileged;
+	}
+
+	boolean needsNaming() {
+		return !this.contextEnvironments.isEmpty() || !this.contextResources.isEmpty()
+				|| this.contextFileURL != null;
+	}
+
+}
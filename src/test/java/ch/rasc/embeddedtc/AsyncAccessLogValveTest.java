@@ -0,0 +1,283 @@
+/**
+ * Copyright 2012-2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.rasc.embeddedtc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.catalina.connector.Request;
+import org.apache.catalina.connector.Response;
+import org.apache.catalina.startup.Tomcat;
+import org.junit.After;
+import org.junit.Test;
+
+public class AsyncAccessLogValveTest {
+
+	private Tomcat tomcat;
+
+	private AsyncAccessLogValve valve;
+
+	private File logDir;
+
+	private void start(AccessLogOverflowPolicy overflowPolicy, int bufferSize)
+			throws Exception {
+		File baseDir = new File("target/tomcat.accesslog");
+		this.logDir = new File(baseDir, "logs");
+		this.logDir.mkdirs();
+		File[] files = this.logDir.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				file.delete();
+			}
+		}
+
+		this.tomcat = new Tomcat();
+		this.tomcat.setBaseDir(baseDir.getAbsolutePath());
+		this.tomcat.setPort(0);
+		this.tomcat.setSilent(true);
+		this.tomcat.addContext("", baseDir.getAbsolutePath());
+
+		this.valve = new AsyncAccessLogValve();
+		this.valve.setDirectory(this.logDir.getAbsolutePath());
+		this.valve.setOverflowPolicy(overflowPolicy);
+		this.valve.setBufferSize(bufferSize);
+		this.tomcat.getEngine().getPipeline().addValve(this.valve);
+		this.tomcat.start();
+	}
+
+	@After
+	public void stop() throws Exception {
+		this.tomcat.stop();
+		this.tomcat.destroy();
+	}
+
+	@Test
+	public void writesCombinedFormat() throws Exception {
+		start(AccessLogOverflowPolicy.DROP, 16);
+		TestRequest request = new TestRequest("/index.html");
+		request.query = "a=1";
+		request.userAgent = "agent \"x\"";
+		this.valve.log(request, new TestResponse(), 5);
+		this.valve.log(new TestRequest("/a\nb"), new TestResponse(), 7);
+		awaitWritten(2);
+
+		List<String> lines = readLines();
+		assertEquals(2, lines.size());
+		assertTrue(lines.get(0), lines.get(0).matches("127\\.0\\.0\\.1 - - \\[[^\\]]+\\] "
+				+ "\"GET /index.html\\?a=1 HTTP/1\\.1\" 200 123 \"-\" \"agent \\\\\"x\\\\\"\" 5"));
+		// a request cannot forge log lines
+		assertTrue(lines.get(1), lines.get(1).contains("\"GET /a\\x0ab HTTP/1.1\""));
+	}
+
+	@Test
+	public void ringWraps() throws Exception {
+		start(AccessLogOverflowPolicy.BLOCK, 4);
+		for (int i = 0; i < 100; i++) {
+			this.valve.log(new TestRequest("/" + i), new TestResponse(), i);
+		}
+		awaitWritten(100);
+
+		List<String> lines = readLines();
+		assertEquals(100, lines.size());
+		for (int i = 0; i < 100; i++) {
+			assertTrue(lines.get(i), lines.get(i).contains("\"GET /" + i + " HTTP/1.1\""));
+		}
+		assertEquals(0, this.valve.getDroppedCount());
+	}
+
+	@Test
+	public void dropsWhenFull() throws Exception {
+		start(AccessLogOverflowPolicy.DROP, 4);
+		TestRequest blocking = logBlocking();
+
+		// the writer waits for the unpublished first record, three slots are left
+		for (int i = 1; i < 6; i++) {
+			this.valve.log(new TestRequest("/" + i), new TestResponse(), i);
+		}
+		assertEquals(2, this.valve.getDroppedCount());
+		assertEquals(0, this.valve.getWrittenCount());
+
+		blocking.release.countDown();
+		awaitWritten(4);
+
+		List<String> lines = readLines();
+		assertEquals(4, lines.size());
+		assertTrue(lines.get(0).contains("\"GET /0 HTTP/1.1\""));
+		assertTrue(lines.get(3).contains("\"GET /3 HTTP/1.1\""));
+		assertEquals(2, this.valve.getDroppedCount());
+	}
+
+	@Test
+	public void blocksWhenFull() throws Exception {
+		start(AccessLogOverflowPolicy.BLOCK, 4);
+		TestRequest blocking = logBlocking();
+
+		for (int i = 1; i < 4; i++) {
+			this.valve.log(new TestRequest("/" + i), new TestResponse(), i);
+		}
+		Thread waiting = log(new TestRequest("/4"));
+		waiting.join(200);
+		assertTrue(waiting.isAlive());
+
+		blocking.release.countDown();
+		waiting.join(5000);
+		assertFalse(waiting.isAlive());
+		awaitWritten(5);
+
+		List<String> lines = readLines();
+		assertEquals(5, lines.size());
+		assertTrue(lines.get(4).contains("\"GET /4 HTTP/1.1\""));
+		assertEquals(0, this.valve.getDroppedCount());
+	}
+
+	/**
+	 * Logs a request that claims the first slot of the ring buffer and does not publish
+	 * it until the release latch is counted down
+	 */
+	private TestRequest logBlocking() throws InterruptedException {
+		TestRequest blocking = new TestRequest("/0");
+		blocking.entered = new CountDownLatch(1);
+		blocking.release = new CountDownLatch(1);
+		log(blocking);
+		assertTrue(blocking.entered.await(5, TimeUnit.SECONDS));
+		return blocking;
+	}
+
+	private Thread log(final TestRequest request) {
+		Thread thread = new Thread() {
+			@Override
+			public void run() {
+				AsyncAccessLogValveTest.this.valve.log(request, new TestResponse(), 0);
+			}
+		};
+		thread.start();
+		return thread;
+	}
+
+	private void awaitWritten(long count) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 5000;
+		while (this.valve.getWrittenCount() < count
+				&& System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		assertEquals(count, this.valve.getWrittenCount());
+	}
+
+	private List<String> readLines() throws IOException {
+		List<String> lines = new ArrayList<String>();
+		File[] files = this.logDir.listFiles();
+		assertEquals(1, files.length);
+		BufferedReader reader = new BufferedReader(
+				new InputStreamReader(new FileInputStream(files[0]), "UTF-8"));
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				lines.add(line);
+			}
+		}
+		finally {
+			reader.close();
+		}
+		return lines;
+	}
+
+	private static class TestRequest extends Request {
+
+		private final String uri;
+
+		String query;
+
+		String userAgent;
+
+		CountDownLatch entered;
+
+		CountDownLatch release;
+
+		TestRequest(String uri) {
+			this.uri = uri;
+			setCoyoteRequest(new org.apache.coyote.Request());
+		}
+
+		@Override
+		public String getRemoteAddr() {
+			if (this.release != null) {
+				this.entered.countDown();
+				try {
+					this.release.await(5, TimeUnit.SECONDS);
+				}
+				catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+			return "127.0.0.1";
+		}
+
+		@Override
+		public String getProtocol() {
+			return "HTTP/1.1";
+		}
+
+		@Override
+		public String getMethod() {
+			return "GET";
+		}
+
+		@Override
+		public String getRequestURI() {
+			return this.uri;
+		}
+
+		@Override
+		public String getQueryString() {
+			return this.query;
+		}
+
+		@Override
+		public String getRemoteUser() {
+			return null;
+		}
+
+		@Override
+		public String getHeader(String name) {
+			return "User-Agent".equals(name) ? this.userAgent : null;
+		}
+	}
+
+	private static class TestResponse extends Response {
+
+		@Override
+		public int getStatus() {
+			return 200;
+		}
+
+		@Override
+		public long getBytesWritten(boolean flush) {
+			return 123;
+		}
+	}
+
+}
@@ -0,0 +1,166 @@
+/**
+ * Copyright 2012-2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.rasc.embeddedtc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.apache.catalina.Context;
+import org.apache.catalina.Session;
+import org.apache.catalina.startup.Tomcat;
+import org.junit.After;
+import org.junit.Test;
+
+public class BoundedSessionManagerTest {
+
+	private Tomcat tomcat;
+
+	private BoundedSessionManager manager;
+
+	private void start(SessionEvictionPolicy evictionPolicy, int maxActiveSessions,
+			long maxMemory) throws Exception {
+		File baseDir = new File("target/tomcat.boundedsessions");
+		baseDir.mkdirs();
+		this.tomcat = new Tomcat();
+		this.tomcat.setBaseDir(baseDir.getAbsolutePath());
+		this.tomcat.setPort(0);
+		this.tomcat.setSilent(true);
+
+		Context ctx = this.tomcat.addContext("", baseDir.getAbsolutePath());
+		// one stripe makes the access order of all sessions deterministic
+		this.manager = new BoundedSessionManager(1);
+		this.manager.setEvictionPolicy(evictionPolicy);
+		this.manager.setMaxActiveSessions(maxActiveSessions);
+		this.manager.setMaxMemory(maxMemory);
+		ctx.setManager(this.manager);
+		this.tomcat.start();
+	}
+
+	@After
+	public void stop() throws Exception {
+		this.tomcat.stop();
+		this.tomcat.destroy();
+	}
+
+	private Session find(Session session) throws IOException {
+		return this.manager.findSession(session.getIdInternal());
+	}
+
+	@Test
+	public void evictsLeastRecentlyUsed() throws Exception {
+		start(SessionEvictionPolicy.LRU, 2, -1);
+		Session s1 = this.manager.createSession(null);
+		Thread.sleep(10);
+		Session s2 = this.manager.createSession(null);
+		Thread.sleep(10);
+		s1.access();
+		s1.endAccess();
+		find(s1);
+
+		Session s3 = this.manager.createSession(null);
+		assertEquals(2, this.manager.getActiveSessions());
+		assertEquals(1, this.manager.getEvictedSessions());
+		assertNotNull(find(s1));
+		assertNull(find(s2));
+		assertNotNull(find(s3));
+	}
+
+	@Test
+	public void evictsLeastFrequentlyUsed() throws Exception {
+		start(SessionEvictionPolicy.LFU, 2, -1);
+		Session s1 = this.manager.createSession(null);
+		Session s2 = this.manager.createSession(null);
+		for (int i = 0; i < 3; i++) {
+			find(s1);
+		}
+		// s2 is the most recently used session but has fewer hits
+		find(s2);
+
+		this.manager.createSession(null);
+		assertEquals(2, this.manager.getActiveSessions());
+		assertEquals(1, this.manager.getEvictedSessions());
+		assertNotNull(find(s1));
+		assertNull(find(s2));
+	}
+
+	@Test
+	public void evictsWhenTheMemoryLimitIsReached() throws Exception {
+		start(SessionEvictionPolicy.LRU, -1, 2000);
+		char[] chars = new char[300];
+		Arrays.fill(chars, 'x');
+		String value = new String(chars);
+		// 512 bytes for the session, 48 + 2 for the name, 40 + 600 for the value
+		long sessionSize = 512 + 48 + 2 + 40 + 600;
+
+		Session s1 = this.manager.createSession(null);
+		s1.getSession().setAttribute("a", value);
+		assertEquals(sessionSize, this.manager.getMemoryUsage());
+
+		Session s2 = this.manager.createSession(null);
+		assertEquals(sessionSize + 512, this.manager.getMemoryUsage());
+		s2.getSession().setAttribute("a", value);
+
+		// the session that grows is not evicted
+		assertEquals(sessionSize, this.manager.getMemoryUsage());
+		assertEquals(1, this.manager.getEvictedSessions());
+		assertNull(find(s1));
+		assertNotNull(find(s2));
+
+		s2.getSession().removeAttribute("a");
+		assertEquals(512, this.manager.getMemoryUsage());
+		s2.expire();
+		assertEquals(0, this.manager.getMemoryUsage());
+	}
+
+	@Test
+	public void estimateSize() throws Exception {
+		start(SessionEvictionPolicy.LRU, -1, -1);
+		assertEquals(0, this.manager.estimateSize("a", null));
+		assertEquals(48 + 2 + 40 + 6, this.manager.estimateSize("a", "abc"));
+		assertEquals(48 + 2 + 16, this.manager.estimateSize("a", Long.valueOf(1)));
+		assertEquals(48 + 2 + 16 + 100, this.manager.estimateSize("a", new byte[100]));
+		assertEquals(48 + 2 + 16 + 800, this.manager.estimateSize("a", new long[100]));
+		assertEquals(48 + 2 + 48 + 64,
+				this.manager.estimateSize("a", Arrays.asList("x", "y")));
+		assertEquals(48 + 2 + 256, this.manager.estimateSize("a", new Object()));
+	}
+
+	@Test
+	public void expirationSkipsSessionsWithoutTheDefaultTimeout() throws Exception {
+		start(SessionEvictionPolicy.LRU, -1, -1);
+		Session eternal = this.manager.createSession(null);
+		eternal.setMaxInactiveInterval(-1);
+		Session custom = this.manager.createSession(null);
+		custom.setMaxInactiveInterval(3600);
+		Session expiring = this.manager.createSession(null);
+		expiring.setMaxInactiveInterval(1);
+
+		Thread.sleep(1100);
+		this.manager.processExpires();
+
+		assertEquals(2, this.manager.getActiveSessions());
+		assertNull(find(expiring));
+		assertNotNull(find(eternal));
+		assertNotNull(find(custom));
+		assertEquals(0, this.manager.getEvictedSessions());
+	}
+
+}
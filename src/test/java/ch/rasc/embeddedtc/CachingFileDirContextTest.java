@@ -0,0 +1,129 @@
+/**
+ * Copyright 2012-2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.rasc.embeddedtc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class CachingFileDirContextTest {
+
+	private File docBase;
+
+	private CachingFileDirContext resources;
+
+	@Before
+	public void createDocBase() throws IOException {
+		this.docBase = new File("target/cachingfiledircontext").getAbsoluteFile();
+		ResourceVersionsTest.delete(this.docBase);
+		this.docBase.mkdirs();
+		ResourceVersionsTest.write(new File(this.docBase, "index.html"), "index");
+	}
+
+	@After
+	public void stop() {
+		if (this.resources != null) {
+			this.resources.release();
+		}
+	}
+
+	private void start(long watchInterval, boolean contentVersioning) {
+		this.resources = new CachingFileDirContext();
+		this.resources.setDocBase(this.docBase.getPath());
+		this.resources.setWatchInterval(watchInterval);
+		this.resources.setContentVersioning(contentVersioning);
+		this.resources.allocate();
+	}
+
+	@Test
+	public void cachesMissingFiles() throws Exception {
+		start(60000, false);
+		assertEquals(new File(this.docBase, "index.html"),
+				this.resources.file("/index.html", true));
+		assertNull(this.resources.file("/new.html", true));
+
+		// the watcher has not run yet
+		ResourceVersionsTest.write(new File(this.docBase, "new.html"), "new");
+		assertNull(this.resources.file("/new.html", true));
+
+		// restarting the watcher clears the cache
+		this.resources.stopWatcher();
+		this.resources.startWatcher();
+		assertEquals(new File(this.docBase, "new.html"),
+				this.resources.file("/new.html", true));
+	}
+
+	@Test
+	public void watcherClearsTheCache() throws Exception {
+		start(50, false);
+		assertNull(this.resources.file("/new.html", true));
+		ResourceVersionsTest.write(new File(this.docBase, "new.html"), "new");
+
+		long deadline = System.currentTimeMillis() + 5000;
+		while (this.resources.file("/new.html", true) == null
+				&& System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		assertEquals(new File(this.docBase, "new.html"),
+				this.resources.file("/new.html", true));
+
+		// deleted files are not served from the cache
+		new File(this.docBase, "new.html").delete();
+		deadline = System.currentTimeMillis() + 5000;
+		while (this.resources.file("/new.html", true) != null
+				&& System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		assertNull(this.resources.file("/new.html", true));
+	}
+
+	@Test
+	public void noCacheWithoutWatchInterval() throws Exception {
+		start(-1, false);
+		assertNull(this.resources.file("/new.html", true));
+		ResourceVersionsTest.write(new File(this.docBase, "new.html"), "new");
+		assertEquals(new File(this.docBase, "new.html"),
+				this.resources.file("/new.html", true));
+	}
+
+	@Test
+	public void versionedPathMissesAreNotCached() throws Exception {
+		start(60000, true);
+		String name = "/index.0123456789abcdef.html";
+		assertNull(this.resources.file(name, true));
+
+		// a file that happens to have a fingerprint in its name
+		ResourceVersionsTest.write(new File(this.docBase, name.substring(1)), "x");
+		assertEquals(new File(this.docBase, name.substring(1)),
+				this.resources.file(name, true));
+	}
+
+	@Test
+	public void resolvesVersionedPaths() throws Exception {
+		start(60000, true);
+		String versionedPath = this.resources.getResourceVersions()
+				.getVersionedPath("/index.html");
+		assertEquals(new File(this.docBase, "index.html"),
+				this.resources.file(versionedPath, true));
+	}
+
+}
@@ -0,0 +1,164 @@
+/**
+ * Copyright 2012-2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.rasc.embeddedtc;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class ClassScanCacheTest {
+
+	private File dir;
+
+	private File cacheFile;
+
+	@Before
+	public void createDirectory() {
+		this.dir = new File("target/classscancache").getAbsoluteFile();
+		ResourceVersionsTest.delete(this.dir);
+		this.dir.mkdirs();
+		this.cacheFile = new File(this.dir, "classscan.properties");
+	}
+
+	@Test
+	public void entriesSurviveARestart() {
+		ClassScanCache cache = new ClassScanCache(this.cacheFile);
+		File classFile = new File(this.dir, "classes/a/B.class");
+		cache.put(classFile, new ClassScanCache.Entry(10, 20, 30, true, "a.B",
+				new String[] { "java.lang.Object", "a.I" }));
+		cache.put(new File(this.dir, "classes/a/C.class"),
+				new ClassScanCache.Entry(1, 2, 3, false, "a.C", new String[0]));
+		cache.store();
+
+		cache = new ClassScanCache(this.cacheFile);
+		ClassScanCache.Entry entry = cache.get(classFile);
+		assertNotNull(entry);
+		assertTrue(entry.matches(10, 20));
+		assertFalse(entry.matches(10, 21));
+		assertEquals(30, entry.getChecksum());
+		assertTrue(entry.isRelevant());
+		assertEquals("a.B", entry.getClassName());
+		assertArrayEquals(new String[] { "java.lang.Object", "a.I" },
+				entry.getSuperTypes());
+		assertArrayEquals(new String[0],
+				cache.get(new File(this.dir, "classes/a/C.class")).getSuperTypes());
+
+		assertTrue(entry.touch(25).matches(10, 25));
+		assertNull(ClassScanCache.Entry.parse("1,2,3"));
+		assertNull(ClassScanCache.Entry.parse("x,2,3,false,a.B,"));
+	}
+
+	@Test
+	public void retainRemovesDeletedClasses() {
+		ClassScanCache cache = new ClassScanCache(this.cacheFile);
+		File classes = new File(this.dir, "classes");
+		File kept = new File(classes, "a/B.class");
+		File deleted = new File(classes, "a/C.class");
+		File other = new File(this.dir, "other/a/D.class");
+		for (File file : new File[] { kept, deleted, other }) {
+			cache.put(file, new ClassScanCache.Entry(1, 2, 3, false, "x", new String[0]));
+		}
+
+		cache.retain(classes, Collections.singleton(kept.getAbsolutePath()));
+		assertNotNull(cache.get(kept));
+		assertNull(cache.get(deleted));
+		// entries of other directories are kept
+		assertNotNull(cache.get(other));
+	}
+
+	@Test
+	public void changedHandlesTypesAndClasspathAreDetected() {
+		ClassScanCache cache = new ClassScanCache(this.cacheFile);
+		cache.setHandlesTypes("a.I;");
+		cache.setClasspath("42");
+		assertTrue(cache.isHandlesTypesChanged());
+		assertTrue(cache.isClasspathChanged());
+		cache.store();
+
+		cache = new ClassScanCache(this.cacheFile);
+		cache.setHandlesTypes("a.I;");
+		cache.setClasspath("42");
+		assertFalse(cache.isHandlesTypesChanged());
+		assertFalse(cache.isClasspathChanged());
+
+		cache.setClasspath("43");
+		assertTrue(cache.isClasspathChanged());
+		assertFalse(cache.isHandlesTypesChanged());
+	}
+
+	@Test
+	public void classpathSignatureChangesWithAJar() throws IOException {
+		File jar = new File(this.dir, "lib.jar");
+		ResourceVersionsTest.write(jar, "jar");
+		URLClassLoader classLoader = new URLClassLoader(
+				new URL[] { jar.toURI().toURL(), this.dir.toURI().toURL() }, null);
+		String signature = CachingContextConfig.classpathSignature(classLoader);
+		assertEquals(signature, CachingContextConfig.classpathSignature(classLoader));
+
+		jar.setLastModified(jar.lastModified() - 10000);
+		assertNotEquals(signature, CachingContextConfig.classpathSignature(classLoader));
+	}
+
+	@Test
+	public void hierarchy() {
+		Map<String, CachingContextConfig.ClassFileResult> results = new HashMap<String, CachingContextConfig.ClassFileResult>();
+		add(results, "a.Base", true, "java.lang.Object");
+		add(results, "a.Middle", true, "a.Base", "a.I");
+		add(results, "a.I", false, "java.io.Serializable");
+		add(results, "a.Loop1", true, "a.Loop2");
+		add(results, "a.Loop2", true, "a.Loop1");
+
+		// super types outside of the directory
+		assertTrue(isHierarchyUnchanged(results, "java.lang.Object"));
+		assertTrue(isHierarchyUnchanged(results, "a.Base"));
+		// a changed interface of a super class
+		assertFalse(isHierarchyUnchanged(results, "a.Middle"));
+		assertFalse(isHierarchyUnchanged(results, "java.lang.Object", "a.I"));
+		assertTrue(isHierarchyUnchanged(results, "a.Loop1"));
+	}
+
+	private static boolean isHierarchyUnchanged(
+			Map<String, CachingContextConfig.ClassFileResult> results,
+			String... superTypes) {
+		return CachingContextConfig.isHierarchyUnchanged(superTypes, results,
+				new HashMap<String, Boolean>());
+	}
+
+	private static void add(Map<String, CachingContextConfig.ClassFileResult> results,
+			String className, boolean unchanged, String... superTypes) {
+		CachingContextConfig.ClassFileResult result = new CachingContextConfig.ClassFileResult();
+		result.className = className;
+		result.unchanged = unchanged;
+		result.superTypes = superTypes;
+		results.put(className, result);
+	}
+
+}
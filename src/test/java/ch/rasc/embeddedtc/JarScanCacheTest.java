@@ -0,0 +1,196 @@
+/**
+ * Copyright 2012-2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.rasc.embeddedtc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.URL;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class JarScanCacheTest {
+
+	private File dir;
+
+	private File cacheFile;
+
+	@Before
+	public void createDirectory() {
+		this.dir = new File("target/jarscancache").getAbsoluteFile();
+		ResourceVersionsTest.delete(this.dir);
+		this.dir.mkdirs();
+		this.cacheFile = new File(this.dir, "jarscan.properties");
+	}
+
+	private File jar(String path, String... entries) throws IOException {
+		File jar = new File(this.dir, path);
+		jar.getParentFile().mkdirs();
+		JarOutputStream out = new JarOutputStream(new FileOutputStream(jar));
+		try {
+			out.putNextEntry(new JarEntry("a/B.class"));
+			out.write(new byte[] { 1, 2, 3 });
+			for (String entry : entries) {
+				out.putNextEntry(new JarEntry(entry));
+				out.write(new byte[] { 4 });
+			}
+		}
+		finally {
+			out.close();
+		}
+		return jar;
+	}
+
+	@Test
+	public void indexesFeatures() throws IOException {
+		JarScanCache cache = new JarScanCache(this.cacheFile);
+		JarScanCache.Entry entry = cache.getEntry(jar("all.jar",
+				"META-INF/web-fragment.xml", "META-INF/tags/a.tld",
+				"META-INF/services/javax.servlet.ServletContainerInitializer",
+				"META-INF/resources/index.html"));
+		assertTrue(entry.has(JarScanCache.WEB_FRAGMENT));
+		assertTrue(entry.has(JarScanCache.TLD));
+		assertTrue(entry.has(JarScanCache.SCI));
+		assertTrue(entry.has(JarScanCache.RESOURCES));
+
+		entry = cache.getEntry(jar("plain.jar", "a/b.tld", "web-fragment.xml"));
+		assertFalse(entry.has(JarScanCache.WEB_FRAGMENT | JarScanCache.TLD
+				| JarScanCache.SCI | JarScanCache.RESOURCES));
+
+		assertNull(cache.getEntry(new File(this.dir, "missing.jar")));
+	}
+
+	@Test
+	public void changedJarIsIndexedAgain() throws IOException {
+		JarScanCache cache = new JarScanCache(this.cacheFile);
+		File jar = jar("lib.jar");
+		assertFalse(cache.getEntry(jar).has(JarScanCache.SCI));
+		assertNotNull(cache.getCachedEntry(jar));
+
+		jar("lib.jar", "META-INF/services/javax.servlet.ServletContainerInitializer");
+		assertNull(cache.getCachedEntry(jar));
+		assertTrue(cache.getEntry(jar).has(JarScanCache.SCI));
+
+		// only the modification time changed
+		jar.setLastModified(jar.lastModified() - 10000);
+		assertNull(cache.getCachedEntry(jar));
+		assertNotNull(cache.getEntry(jar));
+		assertNotNull(cache.getCachedEntry(jar));
+	}
+
+	@Test
+	public void jarsWithout() throws IOException {
+		JarScanCache cache = new JarScanCache(this.cacheFile);
+		File plain = jar("plain.jar");
+		cache.getEntry(plain);
+		cache.getEntry(jar("fragment.jar", "META-INF/web-fragment.xml"));
+		cache.getEntry(jar("tld.jar", "META-INF/a.tld"));
+
+		assertEquals("plain.jar,tld.jar", cache.getJarsWithout(JarScanCache.WEB_FRAGMENT));
+		assertEquals("plain.jar",
+				cache.getJarsWithout(JarScanCache.WEB_FRAGMENT | JarScanCache.TLD));
+		assertEquals("fragment.jar,plain.jar,tld.jar",
+				cache.getJarsWithout(JarScanCache.SCI));
+
+		// changed jars are not skipped until they are indexed again
+		plain.setLastModified(plain.lastModified() - 10000);
+		assertEquals("tld.jar", cache.getJarsWithout(JarScanCache.WEB_FRAGMENT));
+		cache.getEntry(plain);
+		assertEquals("plain.jar,tld.jar", cache.getJarsWithout(JarScanCache.WEB_FRAGMENT));
+
+		// deleted jars are not skipped
+		new File(this.dir, "tld.jar").delete();
+		assertEquals("plain.jar", cache.getJarsWithout(JarScanCache.WEB_FRAGMENT));
+	}
+
+	@Test
+	public void jarsWithTheSameNameMustAllQualify() throws IOException {
+		JarScanCache cache = new JarScanCache(this.cacheFile);
+		cache.getEntry(jar("a/lib.jar"));
+		cache.getEntry(jar("b/lib.jar", "META-INF/web-fragment.xml"));
+		assertEquals("", cache.getJarsWithout(JarScanCache.WEB_FRAGMENT));
+		assertEquals("lib.jar", cache.getJarsWithout(JarScanCache.TLD));
+	}
+
+	@Test
+	public void jarsWithoutAnnotations() throws IOException {
+		JarScanCache cache = new JarScanCache(this.cacheFile);
+		File plain = jar("plain.jar");
+		File annotated = jar("annotated.jar");
+		cache.getEntry(plain);
+		cache.getEntry(annotated);
+		// no context was scanned yet
+		assertEquals("", cache.getJarsWithout(JarScanCache.ANNOTATIONS));
+
+		cache.addHandlesTypes("a.I;");
+		cache.recordAnnotations(plain, "a.I;", false);
+		cache.recordAnnotations(annotated, "a.I;", true);
+		assertFalse(cache.getEntry(plain).isAnnotationScanNeeded("a.I;"));
+		assertTrue(cache.getEntry(annotated).isAnnotationScanNeeded("a.I;"));
+		assertEquals("plain.jar", cache.getJarsWithout(JarScanCache.ANNOTATIONS));
+
+		// a context with other types has not scanned the jar yet
+		cache.addHandlesTypes("b.I;");
+		assertTrue(cache.getEntry(plain).isAnnotationScanNeeded("b.I;"));
+		assertEquals("", cache.getJarsWithout(JarScanCache.ANNOTATIONS));
+		cache.recordAnnotations(plain, "b.I;", false);
+		assertEquals("plain.jar", cache.getJarsWithout(JarScanCache.ANNOTATIONS));
+	}
+
+	@Test
+	public void resultsSurviveARestart() throws IOException {
+		JarScanCache cache = new JarScanCache(this.cacheFile);
+		File plain = jar("plain.jar");
+		cache.getEntry(jar("fragment.jar", "META-INF/web-fragment.xml"));
+		cache.addHandlesTypes("a.I;");
+		cache.recordAnnotations(plain, "a.I;", false);
+		cache.store();
+
+		cache = new JarScanCache(this.cacheFile);
+		assertTrue(cache.getCachedEntry(new File(this.dir, "fragment.jar"))
+				.has(JarScanCache.WEB_FRAGMENT));
+		assertFalse(cache.getCachedEntry(plain).isAnnotationScanNeeded("a.I;"));
+		assertEquals("plain.jar", cache.getJarsWithout(
+				JarScanCache.WEB_FRAGMENT | JarScanCache.ANNOTATIONS));
+
+		// only the signatures of the contexts configured since the load are kept
+		cache.addHandlesTypes("b.I;");
+		cache.store();
+		cache = new JarScanCache(this.cacheFile);
+		assertTrue(cache.getCachedEntry(plain).isAnnotationScanNeeded("a.I;"));
+		assertEquals("", cache.getJarsWithout(JarScanCache.ANNOTATIONS));
+	}
+
+	@Test
+	public void toJarFile() throws IOException {
+		File jar = new File(this.dir, "lib.jar");
+		assertEquals(jar, JarScanCache.toJarFile(jar.toURI().toURL()));
+		assertEquals(jar, JarScanCache.toJarFile(
+				new URL("jar:" + jar.toURI().toURL() + "!/META-INF/MANIFEST.MF")));
+		assertNull(JarScanCache.toJarFile(this.dir.toURI().toURL()));
+		assertNull(JarScanCache.toJarFile(new URL("http://localhost/lib.jar")));
+	}
+
+}
@@ -0,0 +1,134 @@
+/**
+ * Copyright 2012-2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.rasc.embeddedtc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.io.File;
+import java.net.ServerSocket;
+import java.util.List;
+
+import org.junit.Test;
+
+public class JdbcStatisticsTest {
+
+	@Test
+	public void replacesLiterals() {
+		assertEquals("SELECT * FROM t WHERE a = ? AND b = ?",
+				JdbcStatistics.normalize("SELECT * FROM t WHERE a = 'x' AND b = 42"));
+		assertEquals("SELECT * FROM t WHERE a = ?",
+				JdbcStatistics.normalize("SELECT * FROM t WHERE a = 'it''s'"));
+		assertEquals("SELECT ? FROM t WHERE a > ?",
+				JdbcStatistics.normalize("SELECT 1 FROM t WHERE a > 3.14"));
+		assertEquals("UPDATE t SET a = ? WHERE id = ?",
+				JdbcStatistics.normalize("UPDATE t SET a = 0x1F WHERE id = ?"));
+	}
+
+	@Test
+	public void keepsDigitsInIdentifiers() {
+		assertEquals("SELECT col1, t_2.x FROM table3 t_2",
+				JdbcStatistics.normalize("SELECT col1, t_2.x FROM table3 t_2"));
+	}
+
+	@Test
+	public void collapsesWhitespace() {
+		assertEquals("SELECT a FROM t WHERE b = ?",
+				JdbcStatistics.normalize("  SELECT a\n\tFROM   t\r\n WHERE b = ? \n"));
+	}
+
+	@Test
+	public void collapsesParameterLists() {
+		assertEquals("SELECT * FROM t WHERE id IN (?)",
+				JdbcStatistics.normalize("SELECT * FROM t WHERE id IN (1, 2, 3)"));
+		assertEquals("SELECT * FROM t WHERE id IN (?)",
+				JdbcStatistics.normalize("SELECT * FROM t WHERE id IN (?,?, ? , ?)"));
+		assertEquals("INSERT INTO t VALUES (?)",
+				JdbcStatistics.normalize("INSERT INTO t VALUES ('a', 'b')"));
+		assertEquals("SELECT f(?)", JdbcStatistics.normalize("SELECT f(?)"));
+	}
+
+	@Test
+	public void batch() {
+		assertEquals("[batch]", JdbcStatistics.normalize(null));
+	}
+
+	@Test
+	public void truncatesLongStatements() {
+		StringBuilder sb = new StringBuilder("SELECT ");
+		while (sb.length() < 5000) {
+			sb.append("abcdefghij, ");
+		}
+		assertEquals(2048, JdbcStatistics.normalize(sb.toString()).length());
+	}
+
+	@Test
+	public void shapeIsCached() {
+		JdbcStatistics statistics = new JdbcStatistics("jdbc/test");
+		String sql = "SELECT * FROM t WHERE a = 'x'";
+		String shape = statistics.shape(sql);
+		assertEquals("SELECT * FROM t WHERE a = ?", shape);
+		assertSame(shape, statistics.shape(sql));
+		assertEquals("[batch]", statistics.shape(null));
+	}
+
+	@Test
+	public void statementsWithDifferentLiteralsShareOneEntry() {
+		JdbcStatistics statistics = new JdbcStatistics("jdbc/test");
+		statistics.recordQuery(statistics.shape("SELECT * FROM t WHERE a = 1"), 2000000,
+				false);
+		statistics.recordQuery(statistics.shape("SELECT * FROM t WHERE a = 2"), 4000000,
+				true);
+		statistics.recordQuery(statistics.shape("DELETE FROM t"), 1000000, false);
+
+		List<JdbcStatistics.QueryStatistics> slowest = statistics.getSlowestQueries(10);
+		assertEquals(2, slowest.size());
+		assertEquals("SELECT * FROM t WHERE a = ?", slowest.get(0).getSql());
+		assertEquals(2, slowest.get(0).getCount());
+		assertEquals(4000, slowest.get(0).getMaxMicros());
+		assertEquals(3000, slowest.get(0).getMeanMicros());
+		assertEquals("DELETE FROM t", slowest.get(1).getSql());
+
+		assertEquals(1, statistics.getSlowestQueries(1).size());
+		assertEquals(1, statistics.getFailedQueries());
+		assertEquals(3, statistics.getQueryTimes().getTotalCount());
+	}
+
+	@Test
+	public void failedStartDoesNotRegister() throws Exception {
+		File baseDir = new File("target/tomcat.jdbcstatistics");
+		File contextDir = new File(baseDir, "webapp");
+		contextDir.mkdirs();
+
+		ServerSocket blocker = new ServerSocket(0);
+		try {
+			EmbeddedTomcat embeddedTomcat = new EmbeddedTomcat(blocker.getLocalPort())
+					.dontAddShutdownHook().setContextDirectory(contextDir.getAbsolutePath())
+					.setTempDirectory(baseDir).setSilent(true).enableJdbcStatistics()
+					.addDataSource(new DataSourceBuilder("jdbc/test"));
+			embeddedTomcat.start();
+
+			List<JdbcStatistics> statistics = embeddedTomcat.getJdbcStatistics();
+			assertEquals(1, statistics.size());
+			assertNull(JdbcStatistics.lookup(statistics.get(0).getKey()));
+		}
+		finally {
+			blocker.close();
+		}
+	}
+
+}
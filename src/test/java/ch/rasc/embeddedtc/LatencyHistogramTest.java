@@ -0,0 +1,114 @@
+/**
+ * Copyright 2012-2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.rasc.embeddedtc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class LatencyHistogramTest {
+
+	@Test
+	public void smallValuesHaveTheirOwnBucket() {
+		for (int value = 0; value < 64; value++) {
+			assertEquals(value, LatencyHistogram.indexOf(value));
+			assertEquals(value, LatencyHistogram.highestValueOf(value));
+		}
+	}
+
+	@Test
+	public void bucketBoundaries() {
+		assertEquals(64, LatencyHistogram.indexOf(64));
+		assertEquals(64, LatencyHistogram.indexOf(65));
+		assertEquals(65, LatencyHistogram.indexOf(66));
+		assertEquals(65, LatencyHistogram.highestValueOf(64));
+		assertEquals(95, LatencyHistogram.indexOf(127));
+		assertEquals(127, LatencyHistogram.highestValueOf(95));
+		assertEquals(96, LatencyHistogram.indexOf(128));
+		assertEquals(131, LatencyHistogram.highestValueOf(96));
+	}
+
+	@Test
+	public void everyValueIsInsideItsBucket() {
+		long value = 0;
+		while (value < 1L << 40) {
+			int index = LatencyHistogram.indexOf(value);
+			long highest = LatencyHistogram.highestValueOf(index);
+			assertTrue(value + " > " + highest, value <= highest);
+			if (index > 0) {
+				assertTrue(LatencyHistogram.highestValueOf(index - 1) < value);
+			}
+			// relative error of the reported value is less than 1/32
+			assertTrue(highest - value <= value / 32);
+			value = value < 1000 ? value + 1 : value + value / 7;
+		}
+	}
+
+	@Test
+	public void hugeValuesGoToTheLastBucket() {
+		int last = LatencyHistogram.indexOf((1L << 40) - 1);
+		assertEquals((1L << 40) - 1, LatencyHistogram.highestValueOf(last));
+		assertEquals(last, LatencyHistogram.indexOf(1L << 40));
+		assertEquals(last, LatencyHistogram.indexOf(Long.MAX_VALUE));
+
+		LatencyHistogram histogram = new LatencyHistogram();
+		histogram.record(Long.MAX_VALUE);
+		assertEquals(Long.MAX_VALUE, histogram.getMaxValue());
+		assertEquals((1L << 40) - 1, histogram.getValueAtPercentile(50));
+	}
+
+	@Test
+	public void emptyHistogram() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		assertEquals(0, histogram.getTotalCount());
+		assertEquals(0, histogram.getMaxValue());
+		assertEquals(0.0, histogram.getMean(), 0.0);
+		assertEquals(0, histogram.getValueAtPercentile(99));
+	}
+
+	@Test
+	public void percentiles() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		for (int value = 1; value <= 100; value++) {
+			histogram.record(value);
+		}
+		histogram.record(-5);
+
+		assertEquals(101, histogram.getTotalCount());
+		assertEquals(100, histogram.getMaxValue());
+		assertEquals(5050 / 101.0, histogram.getMean(), 0.0001);
+
+		assertEquals(0, histogram.getValueAtPercentile(0));
+		assertEquals(50, histogram.getValueAtPercentile(50));
+		// 91 is recorded in the bucket 90..91
+		assertEquals(91, histogram.getValueAtPercentile(90));
+		assertEquals(100, histogram.getValueAtPercentile(99.5));
+		assertEquals(100, histogram.getValueAtPercentile(100));
+		assertEquals(100, histogram.getValueAtPercentile(150));
+	}
+
+	@Test
+	public void percentileIsCappedByTheMaximum() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		histogram.record(1000);
+		// the bucket of 1000 ends at 1007
+		assertEquals(1007,
+				LatencyHistogram.highestValueOf(LatencyHistogram.indexOf(1000)));
+		assertEquals(1000, histogram.getValueAtPercentile(50));
+	}
+
+}
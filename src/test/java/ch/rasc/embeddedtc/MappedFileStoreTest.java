@@ -0,0 +1,273 @@
+/**
+ * Copyright 2012-2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.rasc.embeddedtc;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import org.apache.catalina.Context;
+import org.apache.catalina.Session;
+import org.apache.catalina.session.StandardSession;
+import org.apache.catalina.startup.Tomcat;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class MappedFileStoreTest {
+
+	private static final int HEADER_SIZE = 16;
+
+	private static final int RECORD_HEADER_SIZE = 22;
+
+	private Tomcat tomcat;
+
+	private Context ctx;
+
+	private File sessionDir;
+
+	private MappedFileStore store;
+
+	@Before
+	public void start() throws Exception {
+		File baseDir = new File("target/tomcat.mappedfilestore");
+		this.sessionDir = new File(baseDir, "sessions");
+		this.sessionDir.mkdirs();
+		new File(this.sessionDir, "store.sessions").delete();
+
+		this.tomcat = new Tomcat();
+		this.tomcat.setBaseDir(baseDir.getAbsolutePath());
+		this.tomcat.setPort(0);
+		this.tomcat.setSilent(true);
+		this.ctx = this.tomcat.addContext("/store", baseDir.getAbsolutePath());
+		this.tomcat.start();
+
+		this.store = openStore();
+	}
+
+	@After
+	public void stop() throws Exception {
+		this.store.stop();
+		this.tomcat.stop();
+		this.tomcat.destroy();
+	}
+
+	private MappedFileStore openStore() throws Exception {
+		MappedFileStore mappedFileStore = new MappedFileStore();
+		mappedFileStore.setDirectory(this.sessionDir.getAbsolutePath());
+		mappedFileStore.setManager(this.ctx.getManager());
+		mappedFileStore.start();
+		return mappedFileStore;
+	}
+
+	private MappedFileStore reopenStore() throws Exception {
+		this.store.stop();
+		this.store = openStore();
+		return this.store;
+	}
+
+	private StandardSession createSession(String id, long lastAccessedTime,
+			int maxInactiveInterval, String value) {
+		StandardSession session = (StandardSession) this.ctx.getManager()
+				.createEmptySession();
+		session.setValid(true);
+		session.setCreationTime(lastAccessedTime);
+		session.setMaxInactiveInterval(maxInactiveInterval);
+		session.setId(id, false);
+		session.setAttribute("value", value, false);
+		return session;
+	}
+
+	private ByteBuffer readFile() throws IOException {
+		RandomAccessFile file = new RandomAccessFile(
+				new File(this.sessionDir, "store.sessions"), "r");
+		try {
+			byte[] bytes = new byte[(int) file.length()];
+			file.readFully(bytes);
+			return ByteBuffer.wrap(bytes);
+		}
+		finally {
+			file.close();
+		}
+	}
+
+	private static int exactLength(ByteBuffer file, int position) {
+		return RECORD_HEADER_SIZE + file.getShort(position + 20)
+				+ file.getInt(position + 4);
+	}
+
+	@Test
+	public void recordLayout() throws Exception {
+		this.store.save(createSession("s1", 1000000L, 1800, "one"));
+		this.store.stop();
+
+		ByteBuffer file = readFile();
+		assertEquals(0x45544353, file.getInt(0));
+		assertEquals(1, file.getInt(4));
+
+		int capacity = file.getInt(HEADER_SIZE);
+		int dataLength = file.getInt(HEADER_SIZE + 4);
+		assertEquals(1000000L, file.getLong(HEADER_SIZE + 8));
+		assertEquals(1800, file.getInt(HEADER_SIZE + 16));
+		assertEquals(2, file.getShort(HEADER_SIZE + 20));
+		byte[] id = new byte[2];
+		file.position(HEADER_SIZE + RECORD_HEADER_SIZE);
+		file.get(id);
+		assertArrayEquals("s1".getBytes("UTF-8"), id);
+
+		// a record leaves room for a growing session
+		int length = RECORD_HEADER_SIZE + 2 + dataLength;
+		assertEquals(length + length / 4, capacity);
+		assertEquals(HEADER_SIZE + capacity, file.getLong(8));
+
+		this.store.start();
+	}
+
+	@Test
+	public void reopen() throws Exception {
+		this.store.save(createSession("s1", 1000000L, 1800, "one"));
+		this.store.save(createSession("s2", 2000000L, -1, "two"));
+
+		reopenStore();
+		assertEquals(2, this.store.getSize());
+		String[] keys = this.store.keys();
+		Arrays.sort(keys);
+		assertArrayEquals(new String[] { "s1", "s2" }, keys);
+
+		Session s1 = this.store.load("s1");
+		assertEquals("one", ((StandardSession) s1).getAttribute("value"));
+		assertEquals(1800, s1.getMaxInactiveInterval());
+		Session s2 = this.store.load("s2");
+		assertEquals("two", ((StandardSession) s2).getAttribute("value"));
+		assertNull(this.store.load("s3"));
+	}
+
+	@Test
+	public void rewritesInPlace() throws Exception {
+		StandardSession session = createSession("s1", 1000000L, 1800, "one");
+		this.store.save(session);
+		long end = readEnd();
+
+		session.setCreationTime(3000000L);
+		session.setAttribute("value", "uno", false);
+		this.store.save(session);
+		assertEquals(end, readEnd());
+		assertEquals(3000000L, readFile().getLong(HEADER_SIZE + 8));
+
+		reopenStore();
+		assertEquals("uno",
+				((StandardSession) this.store.load("s1")).getAttribute("value"));
+	}
+
+	@Test
+	public void unchangedSessionIsNotWritten() throws Exception {
+		StandardSession session = createSession("s1", 1000000L, 1800, "one");
+		this.store.save(session);
+
+		// same last accessed time, the changed attribute is not written
+		session.setAttribute("value", "uno", false);
+		this.store.save(session);
+
+		reopenStore();
+		assertEquals("one",
+				((StandardSession) this.store.load("s1")).getAttribute("value"));
+	}
+
+	@Test
+	public void growingSessionMovesToTheEnd() throws Exception {
+		StandardSession session = createSession("s1", 1000000L, 1800, "one");
+		this.store.save(session);
+		this.store.save(createSession("s2", 1000000L, 1800, "two"));
+		long end = readEnd();
+
+		char[] large = new char[1000];
+		Arrays.fill(large, 'x');
+		session.setCreationTime(2000000L);
+		session.setAttribute("value", new String(large), false);
+		this.store.save(session);
+
+		ByteBuffer file = readFile();
+		// the old record is free
+		assertEquals(-1, file.getInt(HEADER_SIZE + 4));
+		assertEquals("s1", readId(file, (int) end));
+		assertEquals(new String(large),
+				((StandardSession) this.store.load("s1")).getAttribute("value"));
+	}
+
+	@Test
+	public void compactsOnOpen() throws Exception {
+		this.store.save(createSession("s1", 1000000L, 1800, "one"));
+		this.store.save(createSession("s2", 1000000L, 1800, "two"));
+		this.store.save(createSession("s3", 1000000L, 1800, "three"));
+		this.store.remove("s1");
+		this.store.remove("s2");
+
+		// more than half of the file is free
+		reopenStore();
+		assertArrayEquals(new String[] { "s3" }, this.store.keys());
+
+		ByteBuffer file = readFile();
+		assertEquals("s3", readId(file, HEADER_SIZE));
+		int length = exactLength(file, HEADER_SIZE);
+		assertEquals(length, file.getInt(HEADER_SIZE));
+		assertEquals(HEADER_SIZE + length, file.getLong(8));
+
+		reopenStore();
+		assertEquals("three",
+				((StandardSession) this.store.load("s3")).getAttribute("value"));
+	}
+
+	@Test
+	public void expiredKeys() throws Exception {
+		long now = System.currentTimeMillis();
+		this.store.save(createSession("expired", now - 5000, 1, "one"));
+		this.store.save(createSession("valid", now, 1800, "two"));
+		this.store.save(createSession("eternal", now - 5000, -1, "three"));
+
+		assertArrayEquals(new String[] { "expired" }, this.store.expiredKeys());
+		reopenStore();
+		assertArrayEquals(new String[] { "expired" }, this.store.expiredKeys());
+	}
+
+	@Test
+	public void clear() throws Exception {
+		this.store.save(createSession("s1", 1000000L, 1800, "one"));
+		this.store.clear();
+		assertEquals(0, this.store.getSize());
+		assertEquals(HEADER_SIZE, readEnd());
+
+		reopenStore();
+		assertEquals(0, this.store.getSize());
+	}
+
+	private long readEnd() throws IOException {
+		return readFile().getLong(8);
+	}
+
+	private static String readId(ByteBuffer file, int position) throws IOException {
+		byte[] id = new byte[file.getShort(position + 20)];
+		file.position(position + RECORD_HEADER_SIZE);
+		file.get(id);
+		return new String(id, "UTF-8");
+	}
+
+}
@@ -0,0 +1,158 @@
+/**
+ * Copyright 2012-2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.rasc.embeddedtc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ResourceVersionsTest {
+
+	private File docBase;
+
+	private CachingFileDirContext resources;
+
+	private ResourceVersions versions;
+
+	@Before
+	public void start() throws IOException {
+		this.docBase = new File("target/resourceversions").getAbsoluteFile();
+		delete(this.docBase);
+		new File(this.docBase, "css").mkdirs();
+		write(new File(this.docBase, "css/app.css"), "body {}");
+		write(new File(this.docBase, "LICENSE"), "license");
+
+		this.resources = new CachingFileDirContext();
+		this.resources.setDocBase(this.docBase.getPath());
+		this.resources.setContentVersioning(true);
+		this.resources.allocate();
+		this.versions = this.resources.getResourceVersions();
+	}
+
+	@After
+	public void stop() {
+		this.resources.release();
+	}
+
+	@Test
+	public void versionedPath() throws Exception {
+		String hash = sha1("body {}");
+		assertEquals("/css/app." + hash + ".css",
+				this.versions.getVersionedPath("/css/app.css"));
+		assertEquals("/LICENSE." + sha1("license"),
+				this.versions.getVersionedPath("/LICENSE"));
+		assertEquals("\"" + hash + "\"",
+				this.versions.getETag(new File(this.docBase, "css/app.css")));
+
+		// missing files and directories are not fingerprinted
+		assertEquals("/css/missing.css", this.versions.getVersionedPath("/css/missing.css"));
+		assertEquals("/css", this.versions.getVersionedPath("/css"));
+	}
+
+	@Test
+	public void resolve() throws Exception {
+		String versionedPath = this.versions.getVersionedPath("/css/app.css");
+		assertEquals(new File(this.docBase, "css/app.css"),
+				this.versions.resolve(versionedPath));
+		assertTrue(this.versions.isVersionedPath(versionedPath));
+		assertEquals(new File(this.docBase, "LICENSE"),
+				this.versions.resolve("/LICENSE." + sha1("license")));
+
+		assertNull(this.versions.resolve("/css/app.0123456789abcdef.css"));
+		assertNull(this.versions.resolve("/css/app.css"));
+		assertNull(this.versions.resolve("/css/missing." + sha1("body {}") + ".css"));
+		assertFalse(this.versions.isVersionedPath("/css/app.css"));
+	}
+
+	@Test
+	public void versionedPathSyntax() {
+		assertTrue(ResourceVersions.isVersionedPathSyntax("/app.0123456789abcdef.css"));
+		assertTrue(ResourceVersions.isVersionedPathSyntax("/a/b.c.0123456789abcdef.js"));
+		assertTrue(ResourceVersions.isVersionedPathSyntax("/LICENSE.0123456789abcdef"));
+
+		assertFalse(ResourceVersions.isVersionedPathSyntax("/app.css"));
+		assertFalse(ResourceVersions.isVersionedPathSyntax("/app.0123456789ABCDEF.css"));
+		assertFalse(ResourceVersions.isVersionedPathSyntax("/app.0123456789abcde.css"));
+		assertFalse(ResourceVersions.isVersionedPathSyntax("/app.0123456789abcdef0.css"));
+		assertFalse(ResourceVersions.isVersionedPathSyntax("/.0123456789abcdef"));
+		assertFalse(ResourceVersions.isVersionedPathSyntax("/app.0123456789abcdef.css/x"));
+	}
+
+	@Test
+	public void changeIsDetectedBeforeTheWatcherRuns() throws Exception {
+		String oldPath = this.versions.getVersionedPath("/css/app.css");
+
+		File file = new File(this.docBase, "css/app.css");
+		write(file, "body { color: red; }");
+		String newPath = this.versions.getVersionedPath("/css/app.css");
+		assertEquals("/css/app." + sha1("body { color: red; }") + ".css", newPath);
+		assertNull(this.versions.resolve(oldPath));
+
+		// same size, only the modification time differs
+		write(file, "body { color: tan; }");
+		file.setLastModified(file.lastModified() + 2000);
+		assertNotEquals(newPath, this.versions.getVersionedPath("/css/app.css"));
+		assertNull(this.versions.resolve(newPath));
+	}
+
+	@Test
+	public void clear() throws Exception {
+		String path = this.versions.getVersionedPath("/css/app.css");
+		this.versions.clear();
+		assertEquals(path, this.versions.getVersionedPath("/css/app.css"));
+	}
+
+	private static String sha1(String content) throws Exception {
+		byte[] digest = MessageDigest.getInstance("SHA-1").digest(content.getBytes("UTF-8"));
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < 8; i++) {
+			sb.append(String.format("%02x", digest[i] & 0xff));
+		}
+		return sb.toString();
+	}
+
+	static void write(File file, String content) throws IOException {
+		FileOutputStream out = new FileOutputStream(file);
+		try {
+			out.write(content.getBytes("UTF-8"));
+		}
+		finally {
+			out.close();
+		}
+	}
+
+	static void delete(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+
+}
@@ -0,0 +1,243 @@
+/**
+ * Copyright 2012-2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.rasc.embeddedtc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.catalina.Context;
+import org.apache.catalina.startup.Tomcat;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ResponseCacheValveTest {
+
+	private Tomcat tomcat;
+
+	private ResponseCacheValve valve;
+
+	private int port;
+
+	private final AtomicInteger invocations = new AtomicInteger();
+
+	private final CountDownLatch bothRunning = new CountDownLatch(2);
+
+	@Before
+	public void start() throws Exception {
+		File baseDir = new File("target/tomcat.responsecache");
+		baseDir.mkdirs();
+		this.tomcat = new Tomcat();
+		this.tomcat.setBaseDir(baseDir.getAbsolutePath());
+		this.tomcat.setPort(0);
+		this.tomcat.setSilent(true);
+
+		Context ctx = this.tomcat.addContext("", baseDir.getAbsolutePath());
+		Tomcat.addServlet(ctx, "cached", new HttpServlet() {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected void doGet(HttpServletRequest req, HttpServletResponse resp)
+					throws IOException {
+				ResponseCacheValveTest.this.invocations.incrementAndGet();
+				resp.setHeader("Cache-Control", "public, max-age=60");
+				resp.setHeader("Vary", "Accept-Language");
+				resp.setContentType("text/plain");
+				resp.getWriter().write("cached " + req.getHeader("Accept-Language"));
+			}
+		});
+		ctx.addServletMapping("/cached", "cached");
+
+		Tomcat.addServlet(ctx, "uncacheable", new HttpServlet() {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected void doGet(HttpServletRequest req, HttpServletResponse resp)
+					throws IOException {
+				ResponseCacheValveTest.this.invocations.incrementAndGet();
+				if (req.getHeader("X-Wait") != null) {
+					// only returns early if both requests run the servlet concurrently
+					ResponseCacheValveTest.this.bothRunning.countDown();
+					try {
+						ResponseCacheValveTest.this.bothRunning.await(5, TimeUnit.SECONDS);
+					}
+					catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+				}
+				resp.setContentType("text/plain");
+				resp.getWriter().write("uncacheable");
+			}
+		});
+		ctx.addServletMapping("/uncacheable", "uncacheable");
+
+		this.valve = new ResponseCacheValve();
+		this.tomcat.getEngine().getPipeline().addValve(this.valve);
+		this.tomcat.start();
+		this.port = this.tomcat.getConnector().getLocalPort();
+	}
+
+	@After
+	public void stop() throws Exception {
+		this.tomcat.stop();
+		this.tomcat.destroy();
+	}
+
+	@Test
+	public void storesAndServes() throws IOException {
+		assertEquals("cached en", get("/cached", "en").body);
+		assertEquals("cached en", get("/cached", "en").body);
+		assertEquals(1, this.invocations.get());
+		assertEquals(1, this.valve.getHitCount());
+		assertEquals(1, this.valve.getEntryCount());
+
+		Result hit = get("/cached", "en");
+		assertEquals(200, hit.status);
+		assertEquals("Accept-Language", hit.connection.getHeaderField("Vary"));
+		assertEquals("public, max-age=60", hit.connection.getHeaderField("Cache-Control"));
+	}
+
+	@Test
+	public void varyHeaderIsPartOfTheKey() throws IOException {
+		assertEquals("cached en", get("/cached", "en").body);
+		assertEquals("cached de", get("/cached", "de").body);
+		assertEquals("cached en", get("/cached", "en").body);
+		assertEquals("cached de", get("/cached", "de").body);
+		assertEquals(2, this.invocations.get());
+		assertEquals(2, this.valve.getEntryCount());
+	}
+
+	@Test
+	public void clearDropsEverything() throws IOException {
+		get("/cached", "en");
+		get("/uncacheable", null);
+		this.valve.clear();
+		assertEquals(0, this.valve.getEntryCount());
+		assertEquals(0, this.valve.getSize());
+		get("/cached", "en");
+		assertEquals(3, this.invocations.get());
+	}
+
+	@Test
+	public void sizeIsBounded() throws IOException {
+		this.valve.setMaxSize(2048);
+		for (int i = 0; i < 100; i++) {
+			get("/uncacheable?q=" + i, null);
+			get("/cached?q=" + i, "en");
+		}
+		assertEquals(true, this.valve.getSize() <= 2048);
+	}
+
+	@Test
+	public void doesNotStoreWithoutCacheControl() throws IOException {
+		assertEquals("uncacheable", get("/uncacheable", null).body);
+		Result second = get("/uncacheable", null);
+		assertEquals("uncacheable", second.body);
+		assertNull(second.connection.getHeaderField("Age"));
+		assertEquals(2, this.invocations.get());
+		assertEquals(0, this.valve.getEntryCount());
+	}
+
+	@Test
+	public void doesNotCoalesceUncacheableResponses() throws Exception {
+		get("/uncacheable", null);
+		this.invocations.set(0);
+
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+		try {
+			Callable<Long> request = new Callable<Long>() {
+				@Override
+				public Long call() throws Exception {
+					long start = System.nanoTime();
+					get("/uncacheable", null, true);
+					return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+				}
+			};
+			Future<Long> first = executor.submit(request);
+			Future<Long> second = executor.submit(request);
+			assertEquals(true, first.get() < 4000);
+			assertEquals(true, second.get() < 4000);
+		}
+		finally {
+			executor.shutdown();
+		}
+		assertEquals(2, this.invocations.get());
+		assertEquals(0, this.valve.getCoalescedCount());
+	}
+
+	private Result get(String path, String acceptLanguage) throws IOException {
+		return get(path, acceptLanguage, false);
+	}
+
+	private Result get(String path, String acceptLanguage, boolean wait)
+			throws IOException {
+		HttpURLConnection connection = (HttpURLConnection) new URL(
+				"http://localhost:" + this.port + path).openConnection();
+		if (acceptLanguage != null) {
+			connection.setRequestProperty("Accept-Language", acceptLanguage);
+		}
+		if (wait) {
+			connection.setRequestProperty("X-Wait", "true");
+		}
+		InputStream in = connection.getInputStream();
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		try {
+			byte[] buffer = new byte[1024];
+			int len;
+			while ((len = in.read(buffer)) != -1) {
+				out.write(buffer, 0, len);
+			}
+		}
+		finally {
+			in.close();
+		}
+		return new Result(connection, connection.getResponseCode(),
+				out.toString("UTF-8"));
+	}
+
+	private static final class Result {
+		final HttpURLConnection connection;
+
+		final int status;
+
+		final String body;
+
+		Result(HttpURLConnection connection, int status, String body) {
+			this.connection = connection;
+			this.status = status;
+			this.body = body;
+		}
+	}
+
+}
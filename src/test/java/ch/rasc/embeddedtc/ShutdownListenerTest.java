@@ -0,0 +1,212 @@
+/**
+ * Copyright 2012-2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.rasc.embeddedtc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ShutdownListenerTest {
+
+	private int port;
+
+	private ShutdownListener listener;
+
+	private final AtomicInteger shutdownCalls = new AtomicInteger();
+
+	private final AtomicBoolean acknowledgedAfterShutdown = new AtomicBoolean();
+
+	private final CountDownLatch acknowledged = new CountDownLatch(1);
+
+	private static int freePort() throws IOException {
+		ServerSocket socket = new ServerSocket(0, 1, InetAddress.getByName("localhost"));
+		try {
+			return socket.getLocalPort();
+		}
+		finally {
+			socket.close();
+		}
+	}
+
+	@Before
+	public void start() throws IOException {
+		this.port = freePort();
+
+		this.listener = new ShutdownListener(this.port, new ShutdownListener.Callback() {
+			@Override
+			public void shutdown() {
+				try {
+					// the sender has to wait until the connectors are closed
+					Thread.sleep(200);
+				}
+				catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				ShutdownListenerTest.this.shutdownCalls.incrementAndGet();
+			}
+
+			@Override
+			public void shutdownAcknowledged() {
+				ShutdownListenerTest.this.acknowledgedAfterShutdown
+						.set(ShutdownListenerTest.this.shutdownCalls.get() == 1);
+				ShutdownListenerTest.this.acknowledged.countDown();
+			}
+		});
+		this.listener.start();
+	}
+
+	@After
+	public void stop() {
+		this.listener.stop();
+	}
+
+	@Test
+	public void acknowledgesAfterShutdown() throws Exception {
+		assertTrue(ShutdownListener.sendShutdown(this.port, 5000));
+		// the acknowledgement is sent after shutdown() returned
+		assertEquals(1, this.shutdownCalls.get());
+		assertTrue(this.acknowledged.await(5, TimeUnit.SECONDS));
+		assertTrue(this.acknowledgedAfterShutdown.get());
+	}
+
+	@Test
+	public void stopsListeningAfterShutdown() throws Exception {
+		assertTrue(ShutdownListener.sendShutdown(this.port, 5000));
+
+		// the port is free for a new instance
+		ServerSocket socket = new ServerSocket(this.port, 1,
+				InetAddress.getByName("localhost"));
+		socket.close();
+	}
+
+	@Test
+	public void ignoresInvalidCommands() throws Exception {
+		Socket socket = new Socket("localhost", this.port);
+		try {
+			OutputStream out = socket.getOutputStream();
+			out.write("STOP".getBytes("US-ASCII"));
+			out.flush();
+			socket.shutdownOutput();
+			assertEquals(-1, socket.getInputStream().read());
+		}
+		finally {
+			socket.close();
+		}
+		assertEquals(0, this.shutdownCalls.get());
+
+		assertTrue(ShutdownListener.sendShutdown(this.port, 5000));
+		assertEquals(1, this.shutdownCalls.get());
+	}
+
+	@Test
+	public void plainShutdownPortIsNotAnAcknowledgement() throws Exception {
+		// answers like the shutdown port of StandardServer: closes without a reply
+		final ServerSocket server = new ServerSocket(0, 1,
+				InetAddress.getByName("localhost"));
+		Thread thread = new Thread() {
+			@Override
+			public void run() {
+				try {
+					Socket socket = server.accept();
+					socket.getInputStream().read(new byte[8]);
+					socket.close();
+				}
+				catch (IOException e) {
+					// ignore
+				}
+			}
+		};
+		thread.start();
+		try {
+			assertFalse(ShutdownListener.sendShutdown(server.getLocalPort(), 5000));
+		}
+		finally {
+			thread.join(5000);
+			server.close();
+		}
+		assertEquals(0, this.shutdownCalls.get());
+	}
+
+	@Test
+	public void embeddedTomcatAcknowledges() throws Exception {
+		File baseDir = new File("target/tomcat.shutdown");
+		File contextDir = new File(baseDir, "webapp");
+		contextDir.mkdirs();
+		final int httpPort = freePort();
+		final int shutdownPort = freePort();
+		final EmbeddedTomcat embeddedTomcat = new EmbeddedTomcat(httpPort)
+				.setShutdownPort(shutdownPort)
+				.setContextDirectory(contextDir.getAbsolutePath())
+				.setTempDirectory(baseDir).setSilent(true);
+
+		Thread thread = new Thread() {
+			@Override
+			public void run() {
+				embeddedTomcat.startAndWait();
+			}
+		};
+		thread.start();
+		try {
+			assertTrue(sendShutdownWhenListening(shutdownPort));
+			thread.join(10000);
+			assertFalse(thread.isAlive());
+
+			// the connector is closed
+			ServerSocket socket = new ServerSocket(httpPort);
+			socket.close();
+		}
+		finally {
+			embeddedTomcat.stop();
+		}
+	}
+
+	private static boolean sendShutdownWhenListening(int port) throws Exception {
+		long deadline = System.currentTimeMillis() + 30000;
+		while (true) {
+			try {
+				return ShutdownListener.sendShutdown(port, 10000);
+			}
+			catch (IOException e) {
+				// not started yet
+				if (System.currentTimeMillis() > deadline) {
+					throw e;
+				}
+				Thread.sleep(50);
+			}
+		}
+	}
+
+	@Test(expected = IOException.class)
+	public void failsIfNoServerIsListening() throws IOException {
+		ShutdownListener.sendShutdown(freePort(), 1000);
+	}
+
+}
@@ -0,0 +1,91 @@
+/**
+ * Copyright 2012-2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.rasc.embeddedtc;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+
+import javax.servlet.ServletContextEvent;
+import javax.servlet.ServletContextListener;
+import javax.servlet.http.HttpServlet;
+
+import org.apache.catalina.Context;
+import org.apache.catalina.Wrapper;
+import org.apache.catalina.core.StandardContext;
+import org.apache.catalina.startup.Tomcat;
+import org.junit.After;
+import org.junit.Test;
+
+public class StartupProfilerTest {
+
+	private Tomcat tomcat;
+
+	@After
+	public void stop() throws Exception {
+		this.tomcat.stop();
+		this.tomcat.destroy();
+	}
+
+	@Test
+	public void reloadDoesNotAddPhases() throws Exception {
+		File baseDir = new File("target/tomcat.startupprofiler");
+		baseDir.mkdirs();
+		this.tomcat = new Tomcat();
+		this.tomcat.setBaseDir(baseDir.getAbsolutePath());
+		this.tomcat.setPort(0);
+		this.tomcat.setSilent(true);
+
+		Context ctx = this.tomcat.addContext("", baseDir.getAbsolutePath());
+		ctx.addApplicationListener(TestListener.class.getName());
+		Wrapper wrapper = Tomcat.addServlet(ctx, "test", TestServlet.class.getName());
+		wrapper.setLoadOnStartup(1);
+
+		StartupReport report = new StartupReport();
+		new StartupProfiler(report).profileContext(ctx);
+		this.tomcat.start();
+
+		assertEquals(1, report.getPhases(StartupReport.CONTEXT_START).size());
+		assertEquals(1, report.getPhases(StartupReport.CONTEXT_LISTENER).size());
+		assertEquals("/ " + TestListener.class.getName(),
+				report.getPhases(StartupReport.CONTEXT_LISTENER).get(0).getTarget());
+		assertEquals(1, report.getPhases(StartupReport.LOAD_ON_STARTUP).size());
+		int phases = report.getPhases().size();
+
+		((StandardContext) ctx).reload();
+		assertEquals(phases, report.getPhases().size());
+	}
+
+	public static class TestListener implements ServletContextListener {
+
+		@Override
+		public void contextInitialized(ServletContextEvent sce) {
+			// nothing to do
+		}
+
+		@Override
+		public void contextDestroyed(ServletContextEvent sce) {
+			// nothing to do
+		}
+	}
+
+	public static class TestServlet extends HttpServlet {
+
+		private static final long serialVersionUID = 1L;
+
+	}
+
+}